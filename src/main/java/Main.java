@@ -1,5 +1,110 @@
+import javazoom.jl.player.NullAudioDevice;
+import support.AudioOutput;
+import support.ControlServer;
+import support.HeadlessView;
+import support.HttpRangeSource;
+import support.OfflineRenderer;
+import support.PlayerWindow;
+import support.Song;
+import support.SongParser;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
 public class Main {
-    public static void main(String[] args) {
-        new Player();
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("--headless")) headless(args);
+        else if (args.length > 0 && args[0].equals("--render")) render(args);
+        else {
+            PlayerWindow.prepare();         // TEMA, FONTE E ÍCONES CARREGAM EM PARALELO COM O RESTO DA INICIALIZAÇÃO
+            new Player();
+        }
+    }
+
+    // MODO SEM JANELA: --headless [--port N] [--null-audio] [--play] [ARQUIVOS, PASTAS OU URLS...]
+    // SEM --port OS COMANDOS VÊM DO STDIN (VER ControlServer); O AWT/SWING NUNCA É INICIALIZADO
+    private static void headless(String[] args) throws IOException {
+        int port = -1;
+        boolean nullAudio = false;
+        boolean play = false;
+        List<String> sources = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {                     // PRIMEIRO TODAS AS FLAGS, EM QUALQUER POSIÇÃO
+            switch (args[i]) {
+                case "--port" -> port = Integer.parseInt(args[++i]);
+                case "--null-audio" -> nullAudio = true;            // PARA MÁQUINAS SEM PLACA DE SOM (E MEDIÇÕES)
+                case "--play" -> play = true;
+                default -> sources.add(args[i]);
+            }
+        }
+        Player player = headlessPlayer(nullAudio);                  // SÓ DEPOIS O PLAYER, COM O DEVICE ESCOLHIDO
+        for (String source : sources) {
+            File file = new File(source);
+            if (!HttpRangeSource.isUrl(source) && file.isDirectory()) player.importFolder(file);
+            else {
+                Song song = HttpRangeSource.isUrl(source) ? SongParser.parse(URI.create(source))    // TOCADA POR STREAMING
+                        : SongParser.parse(file);
+                if (song != null) player.enqueue(song);
+                else System.err.println("cannot parse " + source);     // O PARSER DEVOLVE NULL
+            }
+        }
+        if (play) player.play(0);                                   // TOCA O PRIMEIRO ARQUIVO PASSADO
+
+        ControlServer server = new ControlServer(player);
+        if (port >= 0) {
+            System.out.println("listening on " + server.listen(port).getLocalSocketAddress());
+            try {
+                Thread.currentThread().join();                      // OS CLIENTES SÃO ATENDIDOS EM OUTRAS THREADS
+            } catch (InterruptedException ignored) {
+            }
+        } else {
+            server.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8), new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        }
+        System.exit(0);
+    }
+
+    // RENDERIZAÇÃO OFFLINE: --render PASTA_DE_SAÍDA [--raw] [--threads N] [ARQUIVOS, PASTAS OU URLS...]
+    // DECODIFICA TUDO PARA WAV (OU PCM CRU) O MAIS RÁPIDO POSSÍVEL, UMA MÚSICA POR CORE; NÃO ABRE A PLACA DE SOM
+    private static void render(String[] args) throws IOException {
+        if (args.length < 2) throw new IllegalArgumentException("--render needs an output folder");
+        Path output = Path.of(args[1]);
+        OfflineRenderer.Format format = OfflineRenderer.Format.WAV;
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Song> songs = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            switch (args[i]) {
+                case "--raw" -> format = OfflineRenderer.Format.RAW;
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                default -> {
+                    File file = new File(args[i]);
+                    if (HttpRangeSource.isUrl(args[i])) songs.add(SongParser.parse(URI.create(args[i])));
+                    else if (file.isDirectory()) {
+                        try (Stream<Path> tree = Files.walk(file.toPath())) {      // NA ORDEM DOS NOMES, COMO NUM ÁLBUM
+                            for (Path mp3 : tree.filter(path -> path.toString().toLowerCase().endsWith(".mp3")).sorted().toList())
+                                songs.add(SongParser.parse(mp3.toFile()));
+                        }
+                    }
+                    else songs.add(SongParser.parse(file));
+                    if (songs.removeIf(song -> song == null)) System.err.println("skipped unreadable files in " + args[i]);   // O PARSER DEVOLVE NULL
+                }
+            }
+        }
+        OfflineRenderer.Report report = new OfflineRenderer(threads, format).render(songs, output);
+        for (OfflineRenderer.Track track : report.tracks())
+            System.out.printf("%s: %.0f s in %.2f s (%.1fx)%n", track.file().getFileName(), track.audioSeconds(), track.nanos() / 1e9, track.realtimeFactor());
+        System.out.println(report);
+    }
+
+    private static Player headlessPlayer(boolean nullAudio) {
+        System.setProperty("java.awt.headless", "true");
+        return new Player(new HeadlessView(System.out), nullAudio ? format -> new NullAudioDevice() : AudioOutput.JAVA_SOUND);
     }
 }
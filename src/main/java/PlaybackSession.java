@@ -0,0 +1,668 @@
+import javazoom.jl.decoder.*;
+import javazoom.jl.player.AudioDevice;
+import support.AudioOutput;
+import support.CommandQueue;
+import support.FrameIndex;
+import support.HttpRangeSource;
+import support.LibraryScanner;
+import support.MetadataCache;
+import support.PcmRingBuffer;
+import support.PcmCache;
+import support.PlaybackMetrics;
+import support.PlaybackRuntime;
+import support.Prefetcher;
+import support.PlaybackSnapshot;
+import support.PlaybackState;
+import support.PlaybackStateMachine;
+import support.PlayerCommand;
+import support.PlayerControl;
+import support.PlayerView;
+import support.Song;
+import support.Playlist;
+import support.TrackDecoder;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.concurrent.locks.ReentrantLock;
+
+// UMA REPRODUÇÃO INDEPENDENTE (FILA, SAÍDA E MÉTRICAS PRÓPRIAS); VÁRIAS SESSÕES DIVIDEM AS THREADS E CACHES DO PlaybackRuntime
+public class PlaybackSession implements PlayerControl {
+    // PROFUNDIDADE DO BUFFER DE PCM ENTRE O DECODER E O DEVICE (ms), CONFIGURÁVEL COM -Dtolafy.ringDepthMs
+    private static final int RING_DEPTH_MS = Integer.getInteger("tolafy.ringDepthMs", 500);
+    // TEMPO QUE AS THREADS DORMEM QUANDO O BUFFER ESTÁ CHEIO/VAZIO
+    private static final long RING_WAIT_NANOS = 1_000_000;
+    // FRAMES QUE UM PASSO DO DECODER DECODIFICA ANTES DE DEVOLVER A THREAD DO POOL PARA AS OUTRAS SESSÕES
+    private static final int DECODE_BATCH = 16;
+    // COM O BUFFER CHEIO, O DECODER SÓ VOLTA DEPOIS QUE O DEVICE CONSUMIR ESSES FRAMES (UM POR VEZ ESFRIARIA O CACHE DA CPU A CADA FRAME)
+    private static final int REFILL_FRAMES = 8;
+    // EMENDA AS MÚSICAS SEM SILÊNCIO ENTRE ELAS, DESLIGÁVEL COM -Dtolafy.gapless=false
+    private static final boolean GAPLESS = Boolean.parseBoolean(System.getProperty("tolafy.gapless", "true"));
+    // FRAMES DA PRÓXIMA MÚSICA DECODIFICADOS ANTES DA ATUAL ACABAR
+    private static final int PRIMED_FRAMES = 8;
+
+    //The MPEG audio bitstream and decoder of the song being decoded.
+    private TrackDecoder track;
+    //The AudioDevice where audio samples are written to.
+    private AudioDevice device;
+    // O DEVICE E OS DECODERS FICAM ABERTOS ENTRE AS MÚSICAS (O DEVICE SÓ É REABERTO SE O FORMATO MUDAR)
+    private final AudioOutput output;
+    // PCM DAS MÚSICAS TOCADAS RECENTEMENTE (MEMÓRIA E DISCO), LIGADO COM -Dtolafy.pcmCache.memoryMB/diskMB
+    private final PcmCache cache;
+    // ABRE A PRÓXIMA E A ANTERIOR DA FILA EM SEGUNDO PLANO, PARA O NEXT/PREVIOUS TOCAR NA HORA (-Dtolafy.prefetch.*)
+    private final Prefetcher prefetcher;
+
+    //Importando outras Classes
+    private final Playlist playlist = new Playlist();
+    private final PlayerView view;          // JANELA SWING OU MODO HEADLESS (O PLAYER NÃO CONHECE O SWING)
+    private Song music;
+    private volatile CompletableFuture<FrameIndex> frameIndex;     // ÍNDICE DE FRAMES DA MÚSICA ATUAL (PARA O SEEK)
+
+    //Variáveis necessárias
+    private volatile int currentFrame;      // ÚLTIMO FRAME ESCRITO NO DEVICE
+    private volatile long startRequested;   // INSTANTE EM QUE A MÚSICA FOI PEDIDA (0 DEPOIS DO PRIMEIRO SAMPLE TOCADO)
+    private volatile int currentTime;
+    private volatile boolean scrobbles;
+    private final PlaybackStateMachine state = new PlaybackStateMachine();  // STOPPED/PLAYING/PAUSED/SEEKING
+    private volatile PcmRingBuffer ring;    // BUFFER ENTRE A THREAD DO DECODER E A DO DEVICE
+    private volatile int epoch;             // INCREMENTADO A CADA SEEK PARA DESCARTAR O PCM ANTIGO
+    private boolean decodeFinished;         // O DECODER CHEGOU NO FIM DO ARQUIVO (PROTEGIDO PELO LOCK)
+    private volatile CompletableFuture<TrackDecoder> upcoming;  // PRÓXIMA MÚSICA, JÁ ABERTA E COM OS PRIMEIROS FRAMES DECODIFICADOS
+    private Song upcomingSong;              // MÚSICA QUE upcoming ESTÁ ABRINDO (PROTEGIDO PELO LOCK)
+    private int trackNumber;                // MÚSICA QUE O DECODER ESTÁ COLOCANDO NO BUFFER (PROTEGIDO PELO LOCK)
+    private int playingTrack;               // MÚSICA QUE O DEVICE ESTÁ TOCANDO (SÓ A THREAD DO DEVICE)
+    private final Queue<Song> chained = new ConcurrentLinkedQueue<>();  // MÚSICAS QUE O DECODER EMENDOU, NA ORDEM
+    private final PlaybackMetrics metrics = new PlaybackMetrics();     // SÓ GRAVA COM -Dtolafy.metrics=true
+    private ScheduledFuture<?> metricsReport;       // RELATÓRIO PERIÓDICO, NO AGENDADOR DO RUNTIME (SEM UMA THREAD POR SESSÃO)
+    private volatile LibraryScanner scanner;    // IMPORTAÇÃO DE PASTA EM ANDAMENTO (OU NULL)
+    private final Lock lock = new ReentrantLock();
+    // TODAS AS TROCAS DE MÚSICA E MUDANÇAS NA FILA PASSAM POR AQUI, UMA DE CADA VEZ (CLIQUES RÁPIDOS SÃO AGRUPADOS)
+    private final CommandQueue<PlayerCommand> commands;
+    private final PlaybackRuntime runtime;      // POOLS DO DECODER, DAS THREADS DO DEVICE E DOS COMANDOS, E O CACHE DE PCM
+    private final String name;
+    private volatile long refillNanos = RING_WAIT_NANOS;    // ESPERA DO DECODER COM O BUFFER CHEIO
+
+    // SESSÃO COM UMA VIEW JÁ CRIADA (HEADLESS, TESTES, ZONAS SEM INTERFACE)
+    public PlaybackSession(String name, PlayerView view, AudioOutput.DeviceFactory devices, PlaybackRuntime runtime) {
+        this(name, control -> view, devices, runtime);
+    }
+
+    // A VIEW É CRIADA PELA SESSÃO PORQUE PRECISA DELA COMO PlayerControl (JANELA SWING)
+    protected PlaybackSession(String name, Function<PlayerControl, PlayerView> views, AudioOutput.DeviceFactory devices, PlaybackRuntime runtime) {
+        this.name = name;
+        this.runtime = runtime;
+        this.cache = runtime.getCache();
+        this.prefetcher = Prefetcher.fromProperties(this::prefetchTrack, runtime.getPrefetching(), runtime::isDecoding);
+        this.output = new AudioOutput(devices);
+        this.commands = new CommandQueue<>(runtime.getTasks(), this::execute, PlayerCommand::collapse);
+        this.view = views.apply(this);
+        startMetrics();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public PlaybackMetrics getMetrics() {
+        return metrics;
+    }
+
+    // PARA A MÚSICA, ESPERA OS COMANDOS PENDENTES E SOLTA O DEVICE; A SESSÃO NÃO PODE SER USADA DEPOIS
+    public void shutdown() throws InterruptedException {
+        commands.submit(new PlayerCommand.Stop());
+        commands.awaitIdle(5, TimeUnit.SECONDS);
+        commands.shutdown();
+        prefetcher.update();
+        output.close();
+        if (metricsReport != null) {
+            metricsReport.cancel(false);
+            metrics.unregister(name);
+        }
+    }
+
+    private void startMetrics() {
+        if (PlaybackMetrics.ENABLED) {      // JMX (JConsole) E UM RELATÓRIO NO STDERR A CADA -Dtolafy.metrics.intervalS SEGUNDOS
+            metrics.watch(output);
+            metrics.watch(cache);
+            metrics.watch(prefetcher);
+            metrics.register(name);
+            long interval = Long.getLong("tolafy.metrics.intervalS", 10);
+            // NA THREAD DE BAIXA PRIORIDADE DO PREFETCHER: FORMATAR E ESPERAR O STDERR NÃO PODE ATRASAR O DECODER DE NENHUMA SESSÃO
+            metricsReport = runtime.getPrefetching().scheduleAtFixedRate(() -> System.err.println(name + ": " + metrics.getReport()),
+                    interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    //<editor-fold desc="Controle">
+    @Override
+    public void play(int index) {
+        if (index >= 0) commands.submit(new PlayerCommand.PlayAt(index));
+    }
+
+    @Override
+    public void togglePause() {
+        PlaybackState now = state.togglePause();    // ACORDA AS THREADS SE VOLTOU A TOCAR
+        if (now == PlaybackState.PAUSED) output.pause();    // PARA NA HORA, SEM ESPERAR O BUFFER DA LINHA ESVAZIAR
+        else output.resume();
+        view.showPaused(now == PlaybackState.PAUSED);
+    }
+
+    @Override
+    public void stop() {
+        commands.submit(new PlayerCommand.Stop());
+    }
+
+    @Override
+    public void next() {
+        commands.submit(PlayerCommand.next());
+    }
+
+    @Override
+    public void previous() {
+        commands.submit(PlayerCommand.previous());
+    }
+
+    @Override
+    public void enqueue(Song song) {
+        commands.submit(new PlayerCommand.Add(song));
+    }
+
+    @Override
+    public void remove(int index) {
+        commands.submit(new PlayerCommand.Remove(index));
+    }
+
+    @Override
+    public boolean cancelImport() {
+        LibraryScanner running = scanner;
+        if (running == null) return false;
+        running.cancel();
+        return true;
+    }
+
+    @Override
+    public void toggleShuffle() {
+        lock.lock();
+        playlist.toggleShuffle(state.get() != PlaybackState.STOPPED);               // CHAMA A FUNÇÃO DE SHUFFLE
+        view.showQueue(playlist.getSongs());                    // ATUALIZA A JANELA (TODAS AS LINHAS MUDARAM)
+        lock.unlock();
+        updatePrefetch();                                       // A PRÓXIMA E A ANTERIOR MUDARAM
+    }
+
+    @Override
+    public void toggleLoop() {
+        playlist.toggleLooping();
+        updatePrefetch();
+    }
+
+    // ENQUANTO O USUÁRIO ARRASTA O SCRUBBER APENAS ATUALIZA O TEMPO MOSTRADO
+    @Override
+    public void scrub(int ms) {
+        scrobbles = true;                           // FLAG PARA O TEMPO RECEBER O VALOR DO SCRUBBER
+        currentTime = ms;
+        windowActualize();                          // ATUALIZA A JANELA
+    }
+
+    // QUANDO SOLTA O SCRUBBER ATUALIZA O TEMPO DA MUSICA
+    @Override
+    public void seek(int ms) {
+        long seekStart = PlaybackMetrics.ENABLED ? System.nanoTime() : 0;
+        PlaybackState previous = state.beginSeek();                                    // AS THREADS ESPERAM O SEEK TERMINAR
+        if (previous == null) {                                                       // NADA TOCANDO
+            scrobbles = false;
+            return;
+        }
+        lock.lock();
+        try {
+            currentTime = ms;
+            boolean failed = false;
+            try {                                                                     // SE O DECODER JÁ EMENDOU A PRÓXIMA MÚSICA, O SEEK É IGNORADO
+                if (track.getSong() == music) track.seek(frameAt(currentTime));       // REPOSICIONA O BITSTREAM (O DEVICE CONTINUA ABERTO)
+                currentFrame = track.getFrame();
+            } catch (IOException | BitstreamException | RuntimeException ex) {      // A FONTE FALHOU (EX.: RANGE HTTP): TERMINA A MÚSICA EM VEZ DE TRAVAR O PLAYER
+                ex.printStackTrace();
+                failed = true;
+                decodeFinished = true;
+                ring.setEnded(true);
+            }
+            epoch++;                                                                  // DESCARTA O PCM DECODIFICADO ANTES DO SEEK
+            output.drop();                                                            // E O QUE JÁ ESTAVA NA LINHA
+            if (decodeFinished && !failed) {                                          // O DECODER JÁ TINHA TERMINADO, REINICIA
+                decodeFinished = false;
+                ring.setEnded(false);
+                startDecoder(ring);
+            }
+            scrobbles = false;                                                        // DESATIVA A FLAG PRA ATUALIZAR A MUSICA NORMALMENTE
+        } finally {
+            lock.unlock();
+            state.compareAndSet(PlaybackState.SEEKING, previous);                     // VOLTA A TOCAR (OU CONTINUA PAUSADO), MESMO SE O SEEK FALHOU
+        }
+        if (PlaybackMetrics.ENABLED) metrics.recordSeek(System.nanoTime() - seekStart);
+    }
+
+    @Override
+    public String status() {
+        lock.lock();
+        try {
+            PlaybackState now = state.get();
+            if (music == null || now == PlaybackState.STOPPED) return String.format("%s queue=%d", now, playlist.size());
+            return String.format("%s index=%d time=%d/%d queue=%d song=%s - %s", now, playlist.getCurrentIndex(),
+                    timeAt(currentFrame), totalTime(), playlist.size(), music.getTitle(), music.getArtist());
+        } finally {lock.unlock();}
+    }
+    //</editor-fold>
+
+    //<editor-fold desc="Essential">
+    /**
+     * Decodes the next frame into the ring. The caller must hold the lock and make sure the ring has space.
+     *
+     * @return False if there are no more frames to decode.
+     */
+    private boolean decodeNextFrame(PcmRingBuffer ring) throws JavaLayerException {
+        long start = PlaybackMetrics.ENABLED ? System.nanoTime() : 0;
+        if (!track.decodeFrame(ring, epoch, trackNumber)) return false;
+        if (PlaybackMetrics.ENABLED) metrics.recordDecode(System.nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Writes the oldest block of the ring to the audio device, dropping it if it was decoded before a seek.
+     *
+     * @return False if the ring is empty.
+     */
+    private boolean playNextFrame(PcmRingBuffer ring) throws JavaLayerException {
+        int slot = ring.peek();
+        if (slot < 0) return false;
+        if (ring.epoch(slot) == epoch) {
+            if (ring.track(slot) != playingTrack) startedTrack(ring.track(slot));
+            long start = PlaybackMetrics.ENABLED ? System.nanoTime() : 0;
+            device.write(ring.samples(slot), 0, ring.length(slot));
+            if (PlaybackMetrics.ENABLED) metrics.recordWrite(System.nanoTime() - start);
+            if (startRequested != 0) {                  // PRIMEIRO SAMPLE DA MÚSICA: MEDE A LATÊNCIA DE INÍCIO
+                long latency = System.nanoTime() - startRequested;
+                if (PlaybackMetrics.ENABLED) metrics.recordStart(latency);
+                view.audioStarted(music, latency);
+                startRequested = 0;
+            }
+            currentFrame = ring.frame(slot) + 1;
+        }
+        else if (PlaybackMetrics.ENABLED) metrics.recordSkipped();     // DECODIFICADO ANTES DO SEEK
+        ring.release();
+        return true;
+    }
+
+    /**
+     * @return the frame index of the current song, or null if it is still being built.
+     */
+    private FrameIndex readyFrameIndex() {
+        CompletableFuture<FrameIndex> future = frameIndex;
+        if (future == null || !future.isDone() || future.isCompletedExceptionally()) return null;
+        return future.join();
+    }
+
+    /**
+     * @return the frame playing at the specified time, using the exact frame times of the index when available.
+     */
+    private int frameAt(int ms) {
+        FrameIndex index = readyFrameIndex();
+        return index != null ? index.frameAt(ms) : (int) (ms / music.getMsPerFrame());
+    }
+
+    /**
+     * @return the time in milliseconds at which the specified frame starts.
+     */
+    private int timeAt(int frame) {
+        FrameIndex index = readyFrameIndex();
+        return (int) (index != null ? index.timeAt(frame) : frame * music.getMsPerFrame());
+    }
+    //</editor-fold>
+    // FUNÇÃO PARA INICIALIZAR A MÚSICA
+    private void playNow() {
+        long requested = System.nanoTime();
+        closeResources();   // FECHA O DECODER E O BITSTREAM
+        ring = PcmRingBuffer.forDuration(RING_DEPTH_MS, music.getMsPerFrame());  // BUFFER NOVO (AS THREADS ANTIGAS SAEM ANTES DE LER A MÚSICA NOVA)
+        refillNanos = Math.max(RING_WAIT_NANOS,     // ATÉ METADE DO BUFFER: A OUTRA METADE SEGURA O DEVICE ATÉ O DECODER VOLTAR
+                (long) (Math.min(REFILL_FRAMES, ring.capacity() / 2) * music.getMsPerFrame() * 1_000_000));
+        currentFrame = 0;   // DEFINE O FRAME ATUAL PARA 0
+        decodeFinished = false;
+        trackNumber = 0;
+        playingTrack = 0;
+        chained.clear();
+        frameIndex = FrameIndex.of(music);  // CONSTRÓI O ÍNDICE EM SEGUNDO PLANO (SÓ NA PRIMEIRA VEZ)
+        view.showSong(music);   // INICIALIZA OS BOTÕES E O NOME DA MÚSICA
+        try {               //INICIALIZAÇÃO DO DEVICE, DECODER E BITSTREAM (REAPROVEITADOS DA MÚSICA ANTERIOR)
+            device = output.open(FrameIndex.readFormat(music.getSource()));
+            output.resume();    // A LINHA PODE TER FICADO PARADA POR UM PAUSE ANTES DO STOP
+            TrackDecoder prefetched = prefetcher.take(music);     // JÁ ABERTA E COM OS PRIMEIROS SEGUNDOS DECODIFICADOS?
+            track = prefetched != null ? prefetched : new TrackDecoder(music, frameIndex, output, GAPLESS, cache);
+        } catch (IOException | JavaLayerException | RuntimeException e) {  // ARQUIVO APAGADO OU FONTE HTTP FORA DO AR: PARA EM VEZ DE
+            e.printStackTrace();                                            // FICAR EM PLAYING SEM DECODER NEM DEVICE
+            stopMusic();
+            return;
+        }
+        startRequested = requested;
+        prepareNext();      // ABRE A PRÓXIMA MÚSICA EM SEGUNDO PLANO
+        state.set(PlaybackState.PLAYING);
+        playing();          // INICIA AS THREADS DO DECODER E DO DEVICE (TOCAR MUSICA)
+    }
+
+    // FUNÇÃO PARA RODAR A MÚSICA
+    private void playing(){
+        PcmRingBuffer trackRing = ring;     // AS THREADS DESSA MÚSICA SÓ USAM ESSE BUFFER
+        startDecoder(trackRing);
+        runtime.getWorkers().execute(()-> {       // THREAD DO DEVICE: REAPROVEITADA DO POOL, BLOQUEIA NO WRITE
+            boolean playingTrack = true;
+            while (playingTrack && trackRing == ring){
+                // DORME ENQUANTO ESTIVER PAUSADO OU NO SEEK, SÓ ACORDA NO RESUME, STOP OU FIM DO SEEK
+                if (state.awaitRunnable() == PlaybackState.STOPPED) break;
+                if (trackRing != ring) break;
+                // ATUALIZA A JANELA COM NOVAS INFORMAÇÕES DESDE QUE NAO ESTEJA ARRASTANDO (E SE O EDT JÁ DESENHOU O ÚLTIMO ESTADO)
+                if(!scrobbles && !view.isStatePending()) windowActualize();
+                try {
+                    if (!playNextFrame(trackRing)) {            // BUFFER VAZIO
+                        if (trackRing.isEnded()) playingTrack = false;  // O DECODER TERMINOU, A MÚSICA ACABOU
+                        else {
+                            if (PlaybackMetrics.ENABLED) metrics.recordUnderrun();  // O DECODER NÃO ACOMPANHOU O DEVICE
+                            LockSupport.parkNanos(RING_WAIT_NANOS);
+                        }
+                    }
+                } catch (JavaLayerException e) {throw new RuntimeException(e);}
+            }
+            if (trackRing != ring) return;  // OUTRA MÚSICA JÁ COMEÇOU, ELA CUIDA DOS RECURSOS
+            device.flush();             // ESPERA O FIM DA MÚSICA SAIR DO DEVICE ANTES DE FECHAR
+            closeResources();           // FECHA O DECODER E O BITSTREAM
+            if (state.get() != PlaybackState.STOPPED) commands.submit(new PlayerCommand.SongEnded(trackRing)); // SE NÃO PAROU POR STOP, TOCA A PRÓXIMA MUSICA
+        });
+    }
+
+    // AGENDA O DECODER NO POOL COMPARTILHADO (ENCHE O BUFFER ENQUANTO O DEVICE TOCA)
+    private void startDecoder(PcmRingBuffer trackRing){
+        runtime.getDecoders().execute(() -> decodeStep(trackRing));
+    }
+
+    // UM PASSO DO DECODER: DECODIFICA ATÉ DECODE_BATCH FRAMES E DEVOLVE A THREAD; NUNCA DORME DENTRO DO POOL
+    private void decodeStep(PcmRingBuffer trackRing){
+        for (int decoded = 0; decoded < DECODE_BATCH; decoded++) {
+            if (state.get() == PlaybackState.STOPPED || trackRing != ring) return;
+            if (!trackRing.hasSpace()) {                // BUFFER CHEIO, VOLTA QUANDO O DEVICE TIVER CONSUMIDO UM PEDAÇO
+                if (state.get() == PlaybackState.PLAYING) runtime.getDecoders().schedule(() -> decodeStep(trackRing), refillNanos, TimeUnit.NANOSECONDS);
+                else state.whenRunnable(() -> startDecoder(trackRing));     // PAUSADO: SÓ VOLTA NO RESUME OU STOP
+                return;
+            }
+            lock.lock();
+            try {
+                if (state.get() == PlaybackState.STOPPED || trackRing != ring || decodeFinished) return;    // TERMINADA POR UM SEEK QUE FALHOU
+                if (!decodeNextFrame(trackRing)) {      // FIM DO ARQUIVO
+                    if (GAPLESS && nextOpening(trackRing)) {    // A PRÓXIMA AINDA ESTÁ ABRINDO: TENTA DE NOVO NO PRÓXIMO PASSO, SEM ESPERAR COM O LOCK
+                        runtime.getDecoders().schedule(() -> decodeStep(trackRing), refillNanos, TimeUnit.NANOSECONDS);
+                        return;
+                    }
+                    TrackDecoder next = GAPLESS ? nextTrack() : null;
+                    if (next != null) {                 // EMENDA A PRÓXIMA MÚSICA NO MESMO BUFFER, O DEVICE NÃO É FECHADO
+                        track.close();
+                        track = next;
+                        trackNumber++;
+                        chained.add(next.getSong());
+                        prepareNext();
+                        continue;
+                    }
+                    decodeFinished = true;
+                    trackRing.setEnded(true);
+                    return;
+                }
+            } catch (JavaLayerException | RuntimeException e) {     // ARQUIVO CORROMPIDO: TERMINA A MÚSICA, A THREAD DO POOL SEGUE VIVA
+                e.printStackTrace();
+                decodeFinished = true;
+                trackRing.setEnded(true);
+                return;
+            } finally {lock.unlock();}
+        }
+        startDecoder(trackRing);        // VOLTA PARA O FIM DA FILA, AS OUTRAS SESSÕES DECODIFICAM ANTES
+    }
+
+    // ABRE A MÚSICA QUE VEM DEPOIS DA QUE ESTÁ SENDO DECODIFICADA, EM SEGUNDO PLANO
+    private void prepareNext(){
+        lock.lock();
+        try {
+            openUpcoming(GAPLESS ? songAfter(track.getSong()) : null);
+        } finally {lock.unlock();}
+    }
+
+    // TROCA A MÚSICA QUE ESTÁ SENDO ABERTA NO POOL DE TAREFAS (NUNCA NA THREAD DO DECODER) (CHAMADA COM O LOCK)
+    private void openUpcoming(Song next){
+        discard(upcoming);
+        upcomingSong = next;
+        if (next == null) {
+            upcoming = null;
+            return;
+        }
+        // ARQUIVO LOCAL: ABRE DEPOIS DO ÍNDICE (A LEITURA PARA NO FIM DO ÚLTIMO FRAME), ENCADEADO NO FUTURE SEM PRENDER
+        // UMA THREAD DO POOL; STREAMING ABRE NA HORA (O ÍNDICE BAIXARIA A MÚSICA INTEIRA). ÍNDICE COM ERRO NÃO IMPEDE DE ABRIR
+        CompletableFuture<?> index = HttpRangeSource.isUrl(next.getFilePath()) ? CompletableFuture.completedFuture(null) : FrameIndex.of(next);
+        upcoming = index.handleAsync((ready, failure) -> {
+            try {
+                return openTrack(next);
+            } catch (IOException | JavaLayerException e) {throw new CompletionException(e);}
+        }, runtime.getTasks());       // O POOL COMUM CRIA UMA THREAD POR TAREFA QUANDO SÓ HÁ UM PROCESSADOR
+    }
+
+    // NO FIM DO ARQUIVO: A PRÓXIMA AINDA ESTÁ SENDO ABERTA E O DEVICE AINDA TEM O QUE TOCAR ENQUANTO ISSO? (CHAMADA COM O LOCK)
+    private boolean nextOpening(PcmRingBuffer trackRing){
+        Song expected = songAfter(track.getSong());
+        if (expected == null) return false;
+        if (expected != upcomingSong) openUpcoming(expected);     // A FILA MUDOU DEPOIS QUE ELA FOI ABERTA
+        // COM O BUFFER VAZIO A MÚSICA TERMINA NORMALMENTE E A PRÓXIMA É ABERTA PELO SongEnded
+        return !upcoming.isDone() && trackRing.size() > 0;
+    }
+
+    // DEVOLVE A PRÓXIMA MÚSICA JÁ ABERTA, OU NULL SE NÃO TIVER PRÓXIMA, SE AINDA NÃO ESTIVER PRONTA OU SE ELA NÃO
+    // PUDER SER EMENDADA (CHAMADA COM O LOCK, NUNCA ESPERA)
+    private TrackDecoder nextTrack(){
+        CompletableFuture<TrackDecoder> future = upcoming;
+        Song expected = songAfter(track.getSong());
+        if (future == null || expected != upcomingSong || !future.isDone() || future.isCompletedExceptionally()) return null;
+        upcoming = null;
+        upcomingSong = null;
+        TrackDecoder next = future.join();      // JÁ TERMINOU, NÃO BLOQUEIA
+        FrameIndex.Gapless current = track.getGapless();
+        FrameIndex.Gapless following = next.getGapless();
+        if (current == null || following == null || current.sampleRate() != following.sampleRate()
+                || current.channels() != following.channels()) {
+            next.close();       // FORMATO DIFERENTE, O DEVICE PRECISA SER REABERTO
+            return null;
+        }
+        return next;
+    }
+
+    // ABRE UMA MÚSICA E DECODIFICA OS PRIMEIROS FRAMES (SEM O ÍNDICE PRONTO O CORTE DO SILÊNCIO VEM DO PRIMEIRO FRAME)
+    private TrackDecoder openTrack(Song song) throws IOException, JavaLayerException {
+        TrackDecoder next = new TrackDecoder(song, FrameIndex.of(song), output, GAPLESS, cache);
+        next.prime(PRIMED_FRAMES);
+        return next;
+    }
+
+    // ABRE UMA MÚSICA PARA O PREFETCHER (ELE MESMO DECODIFICA OS PRIMEIROS SEGUNDOS)
+    private TrackDecoder prefetchTrack(Song song) throws IOException {
+        return new TrackDecoder(song, FrameIndex.of(song), output, GAPLESS, cache);     // NÃO ESPERA O ÍNDICE (STREAMING BAIXARIA A MÚSICA INTEIRA)
+    }
+
+    // O PREFETCHER ACOMPANHA A PRÓXIMA E A ANTERIOR DA FILA (O QUE DEIXOU DE SER VIZINHO É CANCELADO); PARADO NÃO GUARDA NADA
+    private void updatePrefetch(){
+        lock.lock();
+        try {
+            if (state.get() == PlaybackState.STOPPED || music == null) prefetcher.update();
+            else prefetcher.update(playlist.hasNext() ? playlist.get(playlist.getNextIndex()) : null,
+                    playlist.hasPrevious() ? playlist.get(playlist.getPreviousIndex()) : null);
+        } finally {lock.unlock();}
+    }
+
+    private Song songAfter(Song song){
+        int index = playlist.getNextIndex(playlist.findIndex(song.getUuid()));
+        return index < 0 ? null : playlist.get(index);
+    }
+
+    private static void discard(CompletableFuture<TrackDecoder> future){
+        if (future != null) future.thenAccept(TrackDecoder::close);
+    }
+
+    // A THREAD DO DEVICE CHEGOU NA MÚSICA QUE O DECODER EMENDOU: ATUALIZA A MÚSICA ATUAL SEM FECHAR O DEVICE
+    private void startedTrack(int number){
+        Song song = null;
+        while (playingTrack < number) {
+            song = chained.poll();
+            playingTrack++;
+        }
+        if (song == null) return;
+        lock.lock();
+        music = song;
+        int index = playlist.findIndex(song.getUuid());
+        if (index >= 0) playlist.setCurrentIndex(index);
+        frameIndex = FrameIndex.of(song);
+        lock.unlock();
+        view.showSong(song);
+        updatePrefetch();
+    }
+
+    // EXECUTA UM COMANDO NA THREAD DO CommandQueue (SÓ ELA TROCA DE MÚSICA, ENTÃO NUNCA HÁ DOIS LOOPS TOCANDO)
+    private void execute(PlayerCommand command){
+        long start = PlaybackMetrics.ENABLED ? System.nanoTime() : 0;
+        if (command instanceof PlayerCommand.PlayAt play) playAt(play.index());
+        else if (command instanceof PlayerCommand.Skip skip) skip(skip.steps());
+        else if (command instanceof PlayerCommand.SongEnded ended) {
+            if (ended.playback() == ring && state.get() != PlaybackState.STOPPED) skip(1);  // IGNORA SE O USUÁRIO JÁ TROCOU DE MÚSICA
+        }
+        else if (command instanceof PlayerCommand.Add add) addSong(add.song());
+        else if (command instanceof PlayerCommand.Remove remove) removeSong(remove.index());
+        else if (command instanceof PlayerCommand.Stop) stopMusic();
+        // SEMPRE QUE UMA MUSICA É ADICIONADA OU REMOVIDA VERIFICA OS BOTÕES DE LOOP E SHUFFLE
+        boolean enabled = !playlist.isEmpty();
+        view.showQueueControls(enabled);
+        updatePrefetch();
+        if (PlaybackMetrics.ENABLED) metrics.recordCommand(System.nanoTime() - start);
+    }
+
+    // TOCA A MÚSICA DO INDEX ESCOLHIDO
+    private void playAt(int index){
+        if (index >= playlist.size()) return;   // A MÚSICA FOI REMOVIDA ANTES DO COMANDO RODAR
+        stopMusic();
+        lock.lock();
+        music = playlist.get(index);            // pega o index da musica
+        playlist.setCurrentIndex(index);        // adiciona a musica na playlist
+        lock.unlock();
+        playNow();
+    }
+
+    // AVANÇA (OU VOLTA) VÁRIAS MÚSICAS DE UMA VEZ E SÓ ABRE A ÚLTIMA
+    private void skip(int steps){
+        int moved = 0;
+        lock.lock();
+        for (; moved < Math.abs(steps); moved++) {
+            if (steps > 0 ? !playlist.hasNext() : !playlist.hasPrevious()) break;
+            playlist.setCurrentIndex(steps > 0 ? playlist.getNextIndex() : playlist.getPreviousIndex());  // ATUALIZA O INDEX ATUAL
+        }
+        if (moved > 0) music = playlist.get(playlist.getCurrentIndex());   // ATUALIZA A MÚSICA
+        lock.unlock();
+        if (moved > 0) playNow();
+        else if (steps > 0) state.set(PlaybackState.STOPPED);   // NÃO TEM PRÓXIMA
+    }
+
+    // ADD MUSIC
+    private void addSong(Song song){
+        lock.lock();
+        try {
+            playlist.add(song);                             // ADD A MUSICA NA LISTA DE MUSICAS
+            view.showAdded(List.of(song));                  // ATUALIZA O DISPLAY (SÓ A LINHA NOVA)
+        } finally {lock.unlock();}                          // UMA MÚSICA INVÁLIDA NÃO PODE DEIXAR O PLAYER TRAVADO
+    }
+
+    // REMOVE MUSIC
+    private void removeSong(int index){
+        Song next = null;
+        lock.lock();
+        try {
+            int removed = playlist.remove(index);                       // CAPTURA A FLAG DE REMOÇÃO DE MÚSICA
+            if (removed != 0) view.showRemoved(index);                  // ATUALIZA A JANELA (SÓ A LINHA REMOVIDA)
+            if (removed == 2 && playlist.hasNext())                     // SE A MÚSICA QUE FOI REMOVIDA ESTAVA TOCANDO E TIVER MAIS MUSICA PRA TOCAR
+                next = playlist.get(playlist.getCurrentIndex());        // COMO A MUSICA FOI REMOVIDA DA LISTA, ENTAO O SEU INDEX JA EH O DA PROXIMA MUSICA
+        } finally {lock.unlock();}
+        if (next == null) return;
+        stopMusic();                                                    // PARA A REPRODUÇÃO
+        lock.lock();
+        music = next;
+        lock.unlock();
+        playNow();                                                      // FORA DO LOCK, COMO NO playAt E NO skip
+    }
+    // FUNÇÃO PARA IMPORTAR UMA PASTA INTEIRA (PARSE EM PARALELO, MÚSICAS ENTRAM NA LISTA EM LOTES)
+    @Override
+    public void importFolder(File folder){
+        LibraryScanner importer = new LibraryScanner(folder.toPath(), new LibraryScanner.Listener() {
+            @Override
+            public void songsFound(List<Song> batch) {
+                lock.lock();
+                try {
+                    for (Song song : batch) playlist.add(song);     // UM LOTE POR VEZ, O LOCK FICA POUCO TEMPO PRESO
+                    view.showAdded(batch);
+                } finally {lock.unlock();}
+                view.showQueueControls(!playlist.isEmpty());
+            }
+
+            @Override
+            public void progress(LibraryScanner.Progress progress) {
+                view.showImportProgress(progress.toString());
+            }
+
+            @Override
+            public void finished(LibraryScanner.Progress progress, boolean cancelled) {
+                scanner = null;
+                view.showImporting(false);
+            }
+        }, MetadataCache.getDefault());
+        scanner = importer;
+        view.showImporting(true);
+        importer.start();
+    }
+
+    private void stopMusic(){
+        lock.lock();
+        try {
+            currentFrame = 0;           // REINICIA O FRAME
+            state.set(PlaybackState.STOPPED);   // PARA O LOOP DO PLAYING (E ACORDA SE ESTIVER PAUSADO)
+            closeResources();           // FECHA O DECODER E BITSTREAM
+            view.showStopped();         // DESLIGA TODOS OS BOTÕES
+        } finally {lock.unlock();}
+    }
+
+    // ATUALIZA A JANELA (SÓ MONTA O ESTADO; A VIEW DECIDE QUANDO MOSTRAR)
+    private void windowActualize(){
+        // ALGORITMO PARA O TEMPO DA MÚSICA
+        if (!scrobbles) currentTime = timeAt(currentFrame);     // ATUALIZA O TEMPO DESDE QUE NAO ESTEJA ARRASTANDO
+        // BOTÕES SITUACIONAIS (DEPENDEM DE ALGO QUE ESTARÁ RODANDO)
+        view.showState(new PlaybackSnapshot(currentTime, totalTime(), state.get() == PlaybackState.PAUSED,
+                playlist.hasNext(), playlist.hasPrevious(), playlist.size() > 1, playlist.size() > 1));
+    }
+
+    // DURAÇÃO DA MÚSICA ATUAL; COM O ÍNDICE O TEMPO É EXATO (INCLUSIVE VBR)
+    private int totalTime(){
+        FrameIndex index = readyFrameIndex();
+        return index != null ? (int) index.getMsLength() : (int) (music.getNumFrames() * music.getMsPerFrame());
+    }
+    // CORREÇÃO DE BUGS, FECHA O BISTREAM E DESCARTA O ÁUDIO PENDENTE DO DEVICE
+    private void closeResources() {
+        lock.lock();        // O DECODER VOLTA PARA O POOL, ENTÃO NÃO PODE ESTAR DECODIFICANDO
+        try {
+            if (track != null) track.close();
+            discard(upcoming);
+            upcoming = null;
+            upcomingSong = null;
+        } finally {lock.unlock();}
+        output.drop();      // DESCARTA O ÁUDIO QUE AINDA NÃO TOCOU (O DEVICE CONTINUA ABERTO)
+    }
+}
@@ -0,0 +1,160 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.AudioDevice;
+
+import javax.sound.sampled.AudioFormat;
+import java.util.ArrayDeque;
+
+/**
+ * Long-lived audio output shared by every song. Opening a sound line can take hundreds of milliseconds, so the
+ * device is opened once and kept open across songs and seeks; it is only reopened when a song has another
+ * sample rate or number of channels. Decoders are pooled as well: a {@link TrackDecoder} takes a
+ * {@link ReusableDecoder} from the pool when it is opened and gives it back when it is closed, so steady playback
+ * (the current song plus the next one being prepared) keeps reusing the same two decoders.
+ * <p>
+ * The output latency follows a {@link LatencyProfile}; the {@link LatencyController} is shared by every line
+ * opened, and tells the underruns and the latency target.
+ * <p>
+ * All methods are thread safe.
+ */
+public class AudioOutput {
+    /**
+     * Creates the audio device for a format. The returned device is opened by the pool.
+     */
+    public interface DeviceFactory {
+        AudioDevice create(AudioFormat format) throws JavaLayerException;
+    }
+
+    /**
+     * Factory of devices writing to the default Java Sound mixer.
+     */
+    public static final DeviceFactory JAVA_SOUND = LineAudioDevice::new;
+
+    private final DeviceFactory factory;
+    private final LatencyController latency;
+    private final ArrayDeque<ReusableDecoder> decoders = new ArrayDeque<>();
+    private AudioDevice device;
+    private AudioFormat format;
+    private int devicesOpened;
+    private int decodersCreated;
+
+    /**
+     * @param factory factory of the devices the audio is written to.
+     */
+    public AudioOutput(DeviceFactory factory) {
+        this(factory, LatencyProfile.fromProperty());
+    }
+
+    /**
+     * @param factory factory of the devices the audio is written to.
+     * @param profile output latency of the sound lines.
+     */
+    public AudioOutput(DeviceFactory factory, LatencyProfile profile) {
+        this.factory = factory;
+        this.latency = new LatencyController(profile, System.nanoTime());
+    }
+
+    /**
+     * Returns the open device, opening or reopening it only if there is none or its format is different.
+     *
+     * @param format format of the audio about to be written.
+     * @return an open device for the format.
+     */
+    public synchronized AudioDevice open(AudioFormat format) throws JavaLayerException {
+        if (device != null && device.isOpen() && this.format.matches(format)) return device;
+        if (device != null) device.close();
+        device = null;
+        AudioDevice created = factory.create(format);
+        if (created instanceof LineAudioDevice line) line.setLatency(latency);
+        created.open(null);
+        device = created;
+        this.format = format;
+        devicesOpened++;
+        return device;
+    }
+
+    /**
+     * Discards the audio written to the device but not played yet, if the device supports it.
+     */
+    public void drop() {
+        if (current() instanceof LineAudioDevice line) line.drop();
+    }
+
+    private synchronized AudioDevice current() {
+        return device;
+    }
+
+    /**
+     * Stops playing the audio queued in the device, keeping it for {@link #resume()}, so pause takes effect
+     * at once whatever the size of the buffer.
+     */
+    public void pause() {
+        if (current() instanceof LineAudioDevice line) line.pause();
+    }
+
+    public void resume() {
+        if (current() instanceof LineAudioDevice line) line.resume();
+    }
+
+    public LatencyController getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return milliseconds of audio queued in the device, the delay before what is written now is heard.
+     */
+    public int getLatencyMs() {
+        return current() instanceof LineAudioDevice line ? line.getLatencyMs() : 0;
+    }
+
+    /**
+     * @return a decoder from the pool, reset, or a new one if all of them are in use.
+     */
+    public synchronized ReusableDecoder acquireDecoder() {
+        ReusableDecoder decoder = decoders.poll();
+        if (decoder == null) {
+            decodersCreated++;
+            return new ReusableDecoder();
+        }
+        decoder.reset();
+        return decoder;
+    }
+
+    /**
+     * Gives a decoder back to the pool. The caller must not use it afterwards.
+     *
+     * @param decoder decoder taken with {@link #acquireDecoder()}.
+     */
+    public synchronized void releaseDecoder(ReusableDecoder decoder) {
+        decoders.push(decoder);
+    }
+
+    /**
+     * Closes the device. The next call to {@link #open(AudioFormat)} opens a new one.
+     */
+    public synchronized void close() {
+        if (device != null) device.close();
+        device = null;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("output: %s, target %d ms, queued %d ms, underruns %d", latency.getProfile(),
+                latency.getTargetMs(), getLatencyMs(), latency.getUnderruns());
+    }
+
+    /**
+     * @return number of times a device was opened, including reopening for another format.
+     */
+    public synchronized int getDevicesOpened() {
+        return devicesOpened;
+    }
+
+    /**
+     * @return number of decoders created; stays at 2 during normal playback.
+     */
+    public synchronized int getDecodersCreated() {
+        return decodersCreated;
+    }
+}
@@ -0,0 +1,193 @@
+package support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+
+/**
+ * Runs commands one at a time, in the order they were submitted, on a single worker thread, or on a shared
+ * {@link Executor} without holding a thread between bursts. Whatever was
+ * submitted while the previous command ran is taken as one burst, and consecutive commands of the burst are
+ * merged with the collapse function before running, so a burst of clicks costs one execution instead of many.
+ * <p>
+ * {@link #submit(Object)} never blocks and can be called from any thread, including the Event Dispatch Thread.
+ * A command that throws is reported and does not stop the worker.
+ *
+ * @param <C> type of the commands.
+ */
+public class CommandQueue<C> {
+    private final BlockingQueue<C> queue = new LinkedBlockingQueue<>();
+    private final Consumer<C> handler;
+    private final BinaryOperator<C> collapse;
+    private final Thread worker;        // Null when running on an executor.
+    private final Executor executor;
+    private boolean draining;           // A burst is queued or running on the executor. Guarded by this.
+    private volatile boolean shutdown;
+    private long submitted;     // Guarded by this.
+    private long executed;
+    private long collapsed;
+
+    /**
+     * Starts the worker thread.
+     *
+     * @param name     name of the worker thread.
+     * @param handler  executes a command.
+     * @param collapse merges two consecutive commands into one, or returns null if both must run.
+     */
+    public CommandQueue(String name, Consumer<C> handler, BinaryOperator<C> collapse) {
+        this.handler = handler;
+        this.collapse = collapse;
+        this.executor = null;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+        this.worker.start();
+    }
+
+    /**
+     * Runs the commands on an executor shared with other queues. Commands of this queue still run one at a time
+     * and in order; a thread is only taken while there are commands to run.
+     *
+     * @param executor executor running the bursts.
+     * @param handler  executes a command.
+     * @param collapse merges two consecutive commands into one, or returns null if both must run.
+     */
+    public CommandQueue(Executor executor, Consumer<C> handler, BinaryOperator<C> collapse) {
+        this.handler = handler;
+        this.collapse = collapse;
+        this.executor = executor;
+        this.worker = null;
+    }
+
+    /**
+     * Queues a command to run after the ones already submitted.
+     *
+     * @param command command to run.
+     */
+    public void submit(C command) {
+        synchronized (this) {
+            submitted++;
+        }
+        queue.add(command);
+        if (executor != null) schedule();
+    }
+
+    private void schedule() {
+        synchronized (this) {
+            if (draining || shutdown) return;
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    /**
+     * Runs bursts on the executor until the queue is empty. The queue is checked under the same lock as
+     * {@link #schedule()}, so a command submitted meanwhile is either seen here or schedules another drain.
+     */
+    private void drain() {
+        List<C> burst = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                if (queue.isEmpty() || shutdown) {
+                    draining = false;
+                    return;
+                }
+            }
+            queue.drainTo(burst);
+            runBurst(burst);
+        }
+    }
+
+    private void run() {
+        List<C> burst = new ArrayList<>();
+        try {
+            while (true) {
+                burst.add(queue.take());
+                queue.drainTo(burst);
+                runBurst(burst);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runBurst(List<C> burst) {
+        C pending = burst.get(0);
+        int merged = 0;
+        for (int i = 1; i < burst.size(); i++) {
+            C next = burst.get(i);
+            C combined = collapse.apply(pending, next);
+            if (combined != null) {
+                pending = combined;
+                merged++;
+            } else {
+                execute(pending);
+                pending = next;
+            }
+        }
+        execute(pending);
+        synchronized (this) {
+            collapsed += merged;
+            notifyAll();
+        }
+        burst.clear();
+    }
+
+    private void execute(C command) {
+        try {
+            handler.accept(command);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            executed++;
+        }
+    }
+
+    /**
+     * Waits until every command submitted so far has run or was merged into another one.
+     *
+     * @param timeout maximum time to wait.
+     * @param unit    unit of the timeout.
+     * @return False if the timeout elapsed first.
+     */
+    public synchronized boolean awaitIdle(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (executed + collapsed < submitted) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Stops the worker. Commands not run yet are dropped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (worker != null) worker.interrupt();
+    }
+
+    public synchronized long getSubmitted() {
+        return submitted;
+    }
+
+    /**
+     * @return number of times the handler ran.
+     */
+    public synchronized long getExecuted() {
+        return executed;
+    }
+
+    /**
+     * @return number of commands merged into another one instead of running.
+     */
+    public synchronized long getCollapsed() {
+        return collapsed;
+    }
+}
@@ -0,0 +1,139 @@
+package support;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Line-based text protocol controlling a {@link PlayerControl}, for headless playout. Commands are read one per
+ * line and answered with one line: {@code ok}, {@code error <reason>} or, for {@code status}, the status line.
+ * <pre>
+ * play &lt;index&gt;     play the song at a position of the queue (0 is the first)
+ * pause             pause, or resume if paused
+ * stop
+ * next | prev
+ * seek &lt;seconds&gt;    move in the current song
+ * enqueue &lt;path&gt;    add an MP3, every MP3 under a folder, or an MP3 streamed from an http(s) URL
+ * status
+ * quit              end this session
+ * </pre>
+ * The protocol is served on standard input, or on a TCP port bound to the loopback interface only.
+ */
+public class ControlServer {
+    private final PlayerControl control;
+
+    /**
+     * @param control engine the commands control.
+     */
+    public ControlServer(PlayerControl control) {
+        this.control = control;
+    }
+
+    /**
+     * Executes one command.
+     *
+     * @param line command line.
+     * @return the answer, or null if the session ends.
+     */
+    public String handle(String line) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        String command = (space < 0 ? trimmed : trimmed.substring(0, space)).toLowerCase();
+        String argument = space < 0 ? "" : trimmed.substring(space + 1).trim();
+        try {
+            switch (command) {
+                case "play" -> control.play(Integer.parseInt(argument));
+                case "pause" -> control.togglePause();
+                case "stop" -> control.stop();
+                case "next" -> control.next();
+                case "prev", "previous" -> control.previous();
+                case "seek" -> control.seek((int) (Double.parseDouble(argument) * 1000));
+                case "enqueue" -> {
+                    File file = new File(argument);
+                    if (HttpRangeSource.isUrl(argument)) {
+                        Song song = SongParser.parse(URI.create(argument));
+                        if (song == null) return "error cannot stream: " + argument;
+                        control.enqueue(song);
+                    } else if (file.isDirectory()) control.importFolder(file);
+                    else if (file.isFile()) {
+                        Song song = SongParser.parse(file);
+                        if (song == null) return "error cannot parse: " + argument;
+                        control.enqueue(song);
+                    } else return "error no such file: " + argument;
+                }
+                case "status" -> {
+                    return control.status();
+                }
+                case "quit" -> {
+                    return null;
+                }
+                case "" -> {
+                    return "error empty command";
+                }
+                default -> {
+                    return "error unknown command: " + command;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return "error " + command + " needs a number";
+        }
+        return "ok";
+    }
+
+    /**
+     * Reads commands until {@code quit} or the end of the input, answering each one.
+     *
+     * @param in  commands.
+     * @param out answers.
+     */
+    public void serve(Reader in, Writer out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        PrintWriter writer = new PrintWriter(out, true);
+        for (String line; (line = reader.readLine()) != null; ) {
+            String answer = handle(line);
+            if (answer == null) return;
+            writer.println(answer);
+        }
+    }
+
+    /**
+     * Serves sessions on a TCP port of the loopback interface, each on its own daemon thread.
+     *
+     * @param port port to listen on, or 0 for any free port.
+     * @return the listening socket; close it to stop accepting sessions.
+     */
+    public ServerSocket listen(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket client = server.accept();
+                    Thread session = new Thread(() -> {
+                        try (client) {
+                            serve(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8),
+                                    new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8));
+                        } catch (IOException ignored) {     // Client went away
+                        }
+                    }, "control-session");
+                    session.setDaemon(true);
+                    session.start();
+                } catch (IOException e) {
+                    if (!server.isClosed()) e.printStackTrace();
+                }
+            }
+        }, "control-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return server;
+    }
+}
@@ -0,0 +1,67 @@
+package support;
+
+import java.util.Arrays;
+
+/**
+ * Binary indexed (Fenwick) tree of non-negative counts. Used by {@link Playlist} to turn storage slots into
+ * positions and back in O(log n), so removing a song never has to renumber the songs after it.
+ */
+final class FenwickTree {
+    private int[] tree;
+
+    FenwickTree(int capacity) {
+        tree = new int[capacity + 1];
+    }
+
+    int capacity() {
+        return tree.length - 1;
+    }
+
+    /**
+     * Adds delta to the count at index i.
+     */
+    void add(int i, int delta) {
+        for (int x = i + 1; x < tree.length; x += x & -x) tree[x] += delta;
+    }
+
+    /**
+     * @return sum of the counts at indexes 0 to i, inclusive.
+     */
+    int prefixSum(int i) {
+        int sum = 0;
+        for (int x = i + 1; x > 0; x -= x & -x) sum += tree[x];
+        return sum;
+    }
+
+    /**
+     * @param k 1-based rank.
+     * @return smallest index whose prefix sum is at least k.
+     */
+    int findKth(int k) {
+        int position = 0;
+        for (int step = Integer.highestOneBit(capacity()); step > 0; step >>= 1) {
+            int next = position + step;
+            if (next < tree.length && tree[next] < k) {
+                position = next;
+                k -= tree[next];
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Resets the tree in O(n) so that the first {@code length} indexes have a count of 1 and the rest 0.
+     *
+     * @param length   number of indexes set to 1.
+     * @param capacity new capacity of the tree, at least length.
+     */
+    void fill(int length, int capacity) {
+        if (tree.length != capacity + 1) tree = new int[capacity + 1];
+        else Arrays.fill(tree, 0);
+        for (int i = 1; i <= length; i++) tree[i] = 1;
+        for (int x = 1; x < tree.length; x++) {
+            int parent = x + (x & -x);
+            if (parent < tree.length) tree[parent] += tree[x];
+        }
+    }
+}
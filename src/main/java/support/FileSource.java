@@ -0,0 +1,46 @@
+package support;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * {@link SongSource} reading a local file. Streams are not buffered; {@link Song} wraps them when it needs to.
+ */
+public class FileSource implements SongSource {
+    private final Path file;
+
+    public FileSource(Path file) {
+        this.file = file;
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        FileInputStream stream = new FileInputStream(file.toFile());
+        try {
+            stream.getChannel().position(offset);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        return stream;
+    }
+
+    @Override
+    public long size() throws IOException {
+        return Files.size(file);
+    }
+
+    @Override
+    public MappedByteBuffer map() throws IOException {
+        return MappedInputStream.map(file);
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+}
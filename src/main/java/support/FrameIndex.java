@@ -0,0 +1,618 @@
+package support;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact seek table of an MP3 file. Every {@code interval}-th frame is a checkpoint, and for each checkpoint
+ * the index stores the byte offset of the frame header and the exact time at which the frame starts.
+ * Times are accumulated from the real duration of every frame, so the index stays correct for VBR files
+ * and files whose frames do not all last the same.
+ * <p>
+ * Seeking with the index costs one file reposition plus at most {@code interval} frame headers parsed,
+ * regardless of the length of the song or the direction of the seek.
+ * <p>
+ * The index also keeps what gapless playback needs: whether the first frame is a Xing/Info frame (which carries
+ * no audio), the encoder delay and padding from its LAME extension, and the byte offset where the last frame ends.
+ * The same {@link Gapless} information can be read from the first frame alone with {@link #readGapless}, so a
+ * streamed song can be trimmed long before it is downloaded and indexed.
+ */
+public final class FrameIndex {
+    /**
+     * Default number of frames between checkpoints (about 1.7 seconds at 44.1 kHz).
+     */
+    public static final int DEFAULT_INTERVAL = 64;
+
+    /**
+     * Number of indexes kept for the whole JVM, least recently requested dropped first.
+     */
+    public static final int CACHE_SIZE = 1024;
+    private static final int BUILD_THREADS = 4;
+
+    private static final Map<String, CompletableFuture<FrameIndex>> CACHE = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<FrameIndex>> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    // Building reads the whole song, which for a streamed song means downloading it: kept off the common pool.
+    private static final ExecutorService BUILDERS = newBuilders();
+
+    private static final int[][] BITRATES = {
+            // MPEG1 layer I, II, III
+            {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+            {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+            // MPEG2/2.5 layer I, II and III
+            {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+            {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+    };
+    private static final int[][] SAMPLE_RATES = {
+            {11025, 12000, 8000},   // MPEG2.5
+            {0, 0, 0},              // reserved
+            {22050, 24000, 16000},  // MPEG2
+            {44100, 48000, 32000},  // MPEG1
+    };
+
+    private final int interval;
+    private final long[] offsets;
+    private final long[] startMicros;
+    private final int numFrames;
+    private final long totalMicros;
+    private final int firstHeader;
+    private final long dataEnd;
+    private final boolean infoFrame;
+    private final int encoderDelay;
+    private final int encoderPadding;
+    private final Gapless gapless;
+
+    /**
+     * What gapless playback needs to know about a song: the format of the stream, and the Xing/Info tag of the
+     * first frame with the encoder delay and padding of its LAME extension.
+     *
+     * @param sampleRate      sample rate of the stream in Hz.
+     * @param channels        number of channels.
+     * @param samplesPerFrame PCM samples (per channel) each frame decodes into.
+     * @param infoFrame       True if frame 0 is a Xing/Info frame, which holds the tag and decodes into silence.
+     * @param numFrames       number of frames, the Info frame included, or -1 if the tag does not say.
+     * @param encoderDelay    samples (per channel) of silence the encoder added before the audio.
+     * @param encoderPadding  samples (per channel) of silence the encoder added after the audio.
+     */
+    public record Gapless(int sampleRate, int channels, int samplesPerFrame, boolean infoFrame, int numFrames,
+                          int encoderDelay, int encoderPadding) {
+    }
+
+    private FrameIndex(int interval, long[] offsets, long[] startMicros, int numFrames, long totalMicros,
+                       int firstHeader, long dataEnd, int[] infoTag) {
+        this.interval = interval;
+        this.offsets = offsets;
+        this.startMicros = startMicros;
+        this.numFrames = numFrames;
+        this.totalMicros = totalMicros;
+        this.firstHeader = firstHeader;
+        this.dataEnd = dataEnd;
+        this.infoFrame = infoTag != null;
+        this.encoderDelay = infoTag == null ? 0 : infoTag[0];
+        this.encoderPadding = infoTag == null ? 0 : infoTag[1];
+        this.gapless = new Gapless(getSampleRate(), getChannels(), getSamplesPerFrame(), infoFrame, numFrames,
+                encoderDelay, encoderPadding);
+    }
+
+    private static ExecutorService newBuilders() {
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor builders = new ThreadPoolExecutor(BUILD_THREADS, BUILD_THREADS, 5, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+            Thread thread = new Thread(task, "frame-index-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        builders.allowCoreThreadTimeOut(true);
+        return builders;
+    }
+
+    /**
+     * Returns the index of the specified song, building it on one of {@value #BUILD_THREADS} background threads
+     * the first time it is requested.
+     * Indexes are shared by every {@link Song} pointing to the same file, with the same size and modification time,
+     * so an edited file is indexed again. The last {@link #CACHE_SIZE} indexes are kept; an index that failed to
+     * build is dropped, so the next request tries again.
+     *
+     * @param song song to index.
+     * @return a future completed with the index of the song.
+     */
+    public static CompletableFuture<FrameIndex> of(Song song) {
+        String key = key(song);
+        CompletableFuture<FrameIndex> future;
+        synchronized (CACHE) {
+            future = CACHE.get(key);
+            if (future != null) return future;
+            future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return build(song.getSource(), DEFAULT_INTERVAL);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, BUILDERS);
+            CACHE.put(key, future);
+        }
+        CompletableFuture<FrameIndex> building = future;
+        building.whenComplete((index, failure) -> {
+            if (failure != null) synchronized (CACHE) {
+                CACHE.remove(key, building);
+            }
+        });
+        return building;
+    }
+
+    /**
+     * Identifies the file of a song as it is now: its location, size and modification time.
+     */
+    private static String key(Song song) {
+        String location = song.getFilePath();
+        if (HttpRangeSource.isUrl(location)) return location + '|' + song.getFileSize();
+        File file = new File(location);
+        return location + '|' + file.length() + '|' + file.lastModified();
+    }
+
+    /**
+     * Scans every frame header of an MP3 file and builds its index.
+     *
+     * @param file     MP3 file.
+     * @param interval number of frames between checkpoints.
+     * @return the index of the file.
+     */
+    public static FrameIndex build(Path file, int interval) throws IOException {
+        return build(new FileSource(file), interval);
+    }
+
+    /**
+     * Scans every frame header of an MP3 song and builds its index. The song is read once, from start to end, so
+     * a streamed song is indexed while it downloads.
+     *
+     * @param source   where the song is read from.
+     * @param interval number of frames between checkpoints.
+     * @return the index of the song.
+     */
+    public static FrameIndex build(SongSource source, int interval) throws IOException {
+        long[] offsets = new long[64];
+        long[] startMicros = new long[64];
+        int frames = 0;
+        long samples = 0;
+        int checkpoints = 0;
+        long dataEnd = 0;
+        int[] infoTag = null;
+
+        long size = source.size();
+        try (InputStream in = source.open(0)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).limit(0);
+            long bufferStart = 0;
+            fill(in, buffer);
+
+            long position = id3v2Size(buffer);
+            int firstHeader = 0;
+            while (true) {
+                // Make sure the 4 header bytes at 'position' are in the buffer.
+                if (position + 4 > bufferStart + buffer.limit()) {
+                    if (position >= size) break;
+                    long bufferEnd = bufferStart + buffer.limit();
+                    if (position < bufferEnd) {         // Keeps the start of the header, at the end of the buffer.
+                        buffer.position((int) (position - bufferStart));
+                        buffer.compact();
+                        buffer.flip();
+                    } else {
+                        in.skipNBytes(position - bufferEnd);
+                        buffer.clear();
+                        buffer.flip();
+                    }
+                    bufferStart = position;
+                    if (fill(in, buffer) < 4) break;
+                }
+                int header = buffer.getInt((int) (position - bufferStart));
+                int length = frameLength(header);
+                if (length <= 0 || (firstHeader != 0 && !sameStream(firstHeader, header))) {
+                    position++;     // Lost sync (garbage or a tag between frames): search for the next header.
+                    continue;
+                }
+                if (firstHeader == 0) {
+                    firstHeader = header;
+                    int at = (int) (position - bufferStart);
+                    if (at + length <= buffer.limit()) infoTag = infoTag(buffer, at, header, length);
+                }
+                if (frames % interval == 0) {
+                    if (checkpoints == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, checkpoints * 2);
+                        startMicros = Arrays.copyOf(startMicros, checkpoints * 2);
+                    }
+                    offsets[checkpoints] = position;
+                    startMicros[checkpoints] = samples * 1_000_000 / sampleRate(header);
+                    checkpoints++;
+                }
+                frames++;
+                samples += samplesPerFrame(header);
+                position += length;
+                dataEnd = Math.min(position, size);
+            }
+            long totalMicros = firstHeader == 0 ? 0 : samples * 1_000_000 / sampleRate(firstHeader);
+            return new FrameIndex(interval, Arrays.copyOf(offsets, checkpoints),
+                    Arrays.copyOf(startMicros, checkpoints), frames, totalMicros, firstHeader, dataEnd, infoTag);
+        }
+    }
+
+    /**
+     * Reads from the stream into the free part of the buffer, after the bytes it holds, until it is full or the
+     * stream ends.
+     *
+     * @param buffer buffer in read mode; left in read mode with the new bytes after the old ones.
+     * @return number of bytes in the buffer.
+     */
+    private static int fill(InputStream in, ByteBuffer buffer) throws IOException {
+        int start = buffer.limit();
+        int read = in.readNBytes(buffer.array(), start, buffer.capacity() - start);
+        buffer.limit(start + read);
+        return buffer.limit();
+    }
+
+    /**
+     * Reads the Xing/Info tag of a Layer III frame. The tag follows the side information, and the LAME extension
+     * after it stores the encoder delay and padding as two 12-bit numbers 21 bytes into the extension.
+     *
+     * @param buffer buffer holding the whole frame.
+     * @param at     position of the frame header in the buffer.
+     * @return {encoder delay, encoder padding} in samples, or null if the frame is a regular audio frame.
+     */
+    private static int[] infoTag(ByteBuffer buffer, int at, int header, int length) {
+        int tag = xingTag(buffer, at, header, length);
+        if (tag < 0) return null;
+        int end = at + length;
+        int flags = buffer.getInt(tag + 4);
+        int extension = tag + 8 + ((flags & 1) != 0 ? 4 : 0) + ((flags & 2) != 0 ? 4 : 0)
+                + ((flags & 4) != 0 ? 100 : 0) + ((flags & 8) != 0 ? 4 : 0);
+        if (extension + 24 > end || !Character.isLetter(buffer.get(extension))) return new int[]{0, 0};
+        int b0 = buffer.get(extension + 21) & 0xFF;
+        int b1 = buffer.get(extension + 22) & 0xFF;
+        int b2 = buffer.get(extension + 23) & 0xFF;
+        return new int[]{b0 << 4 | b1 >>> 4, (b1 & 0x0F) << 8 | b2};
+    }
+
+    /**
+     * @return position of the Xing/Info tag of a Layer III frame in the buffer, or -1 if the frame has none.
+     */
+    private static int xingTag(ByteBuffer buffer, int at, int header, int length) {
+        if ((header >>> 17 & 3) != 1) return -1;        // Layer III only
+        boolean mpeg1 = (header >>> 19 & 3) == 3;
+        boolean mono = (header >>> 6 & 3) == 3;
+        boolean crc = (header >>> 16 & 1) == 0;
+        int tag = at + 4 + (crc ? 2 : 0) + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));
+        if (tag + 8 > at + length || tag + 8 > buffer.limit()) return -1;
+        int id = buffer.getInt(tag);
+        if (id != 0x58696E67 && id != 0x496E666F) return -1;       // "Xing" or "Info"
+        return tag;
+    }
+
+    /**
+     * Estimates the length of a song from its first frame only, for songs that are streamed and not indexed yet:
+     * the number of frames comes from the Xing/Info tag of the first frame when it has one (VBR files), or else
+     * from the bytes of audio divided by the size of the first frame (CBR files).
+     *
+     * @param buffer     bytes holding the first frame.
+     * @param at         position of the first frame header in the buffer, found with {@link #firstFrame}.
+     * @param audioBytes bytes from the first frame header to the end of the song.
+     * @return {number of frames, milliseconds per frame}.
+     */
+    static float[] estimate(ByteBuffer buffer, int at, long audioBytes) {
+        int header = buffer.getInt(at);
+        int length = frameLength(header);
+        float msPerFrame = samplesPerFrame(header) * 1000f / sampleRate(header);
+        int tag = xingTag(buffer, at, header, length);
+        if (tag >= 0 && (buffer.getInt(tag + 4) & 1) != 0 && tag + 12 <= buffer.limit()) {
+            return new float[]{buffer.getInt(tag + 8), msPerFrame};
+        }
+        return new float[]{(float) Math.floor((double) audioBytes / length), msPerFrame};
+    }
+
+    /**
+     * Finds the first frame header in the buffer. A second header right after the frame rules out sync words
+     * that are just audio data; a frame running past the end of the buffer is accepted as it is.
+     *
+     * @return position of the header, or -1 if there is none.
+     */
+    static int firstFrame(ByteBuffer buffer) {
+        for (int i = 0; i + 4 <= buffer.limit(); i++) {
+            int header = buffer.getInt(i);
+            int length = frameLength(header);
+            if (length <= 0) continue;
+            int next = i + length;
+            if (next + 4 > buffer.limit() || sameStream(header, buffer.getInt(next))) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads the format of an MP3 file from its first frame header, without scanning the rest of the file.
+     *
+     * @param file MP3 file.
+     * @return the 16-bit signed little-endian PCM format the file decodes into.
+     * @throws IOException if there is no frame header at the start of the file.
+     */
+    public static AudioFormat readFormat(Path file) throws IOException {
+        return readFormat(new FileSource(file));
+    }
+
+    /**
+     * Reads the format of an MP3 song from its first frame header, reading only the start of the song.
+     *
+     * @param source where the song is read from.
+     * @return the 16-bit signed little-endian PCM format the song decodes into.
+     * @throws IOException if there is no frame header at the start of the song.
+     */
+    public static AudioFormat readFormat(SongSource source) throws IOException {
+        ByteBuffer buffer = readStart(source);
+        return format(buffer.getInt(buffer.position()));
+    }
+
+    /**
+     * Reads what gapless playback needs from the first frame of an MP3 song, reading only the start of the song.
+     * For a LAME file this matches {@link #getGapless()} of the full index.
+     *
+     * @param source where the song is read from.
+     * @return the format of the song, and its encoder delay and padding if the first frame is a Xing/Info frame.
+     * @throws IOException if there is no frame header at the start of the song.
+     */
+    public static Gapless readGapless(SongSource source) throws IOException {
+        ByteBuffer buffer = readStart(source);
+        int at = buffer.position();
+        int header = buffer.getInt(at);
+        int length = frameLength(header);
+        int[] infoTag = at + length <= buffer.limit() ? infoTag(buffer, at, header, length) : null;
+        int frames = -1;
+        if (infoTag != null) {
+            int tag = xingTag(buffer, at, header, length);
+            if ((buffer.getInt(tag + 4) & 1) != 0) frames = buffer.getInt(tag + 8) + 1;   // The tag does not count itself
+        }
+        int channels = (header >>> 6 & 3) == 3 ? 1 : 2;
+        return new Gapless(sampleRate(header), channels, samplesPerFrame(header), infoTag != null, frames,
+                infoTag == null ? 0 : infoTag[0], infoTag == null ? 0 : infoTag[1]);
+    }
+
+    /**
+     * Reads the start of a song, after its ID3v2 tag.
+     *
+     * @return a buffer positioned at the first frame header.
+     * @throws IOException if there is no frame header at the start of the song.
+     */
+    private static ByteBuffer readStart(SongSource source) throws IOException {
+        long tag;
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024).limit(0);
+        try (InputStream in = source.open(0)) {
+            fill(in, buffer);
+            tag = id3v2Size(buffer);
+        }
+        if (tag > 0) {
+            buffer.limit(0);
+            try (InputStream in = source.open(tag)) {
+                fill(in, buffer);
+            }
+        }
+        int first = firstFrame(buffer);
+        if (first >= 0) return buffer.position(first);
+        throw new IOException("no MPEG audio frame found at the start of " + source);
+    }
+
+    private static AudioFormat format(int header) {
+        int channels = (header >>> 6 & 3) == 3 ? 1 : 2;
+        return new AudioFormat(sampleRate(header), 16, channels, true, false);
+    }
+
+    /**
+     * @return number of bytes taken by an ID3v2 tag at the start of the buffer, or 0 if there is none.
+     */
+    static long id3v2Size(ByteBuffer buffer) {
+        if (buffer.limit() < 10 || buffer.get(0) != 'I' || buffer.get(1) != 'D' || buffer.get(2) != '3') return 0;
+        int size = (buffer.get(6) & 0x7F) << 21 | (buffer.get(7) & 0x7F) << 14
+                | (buffer.get(8) & 0x7F) << 7 | (buffer.get(9) & 0x7F);
+        boolean footer = (buffer.get(5) & 0x10) != 0;
+        return 10 + size + (footer ? 10 : 0);
+    }
+
+    /**
+     * @param header the 4 bytes of a frame header.
+     * @return length of the frame in bytes, or -1 if the bytes are not a valid header.
+     */
+    static int frameLength(int header) {
+        if ((header & 0xFFE00000) != 0xFFE00000) return -1;
+        int version = header >>> 19 & 3;
+        int layer = header >>> 17 & 3;
+        int bitrateIndex = header >>> 12 & 15;
+        int sampleRateIndex = header >>> 10 & 3;
+        int padding = header >>> 9 & 1;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || sampleRateIndex == 3) return -1;
+
+        boolean mpeg1 = version == 3;
+        int table = mpeg1 ? 3 - layer : (layer == 3 ? 3 : 4);
+        int bitrate = BITRATES[table][bitrateIndex] * 1000;
+        int sampleRate = SAMPLE_RATES[version][sampleRateIndex];
+        if (layer == 3) return (12 * bitrate / sampleRate + padding) * 4;
+        if (layer == 1 && !mpeg1) return 72 * bitrate / sampleRate + padding;
+        return 144 * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * @param header the 4 bytes of a valid frame header.
+     * @return number of PCM samples (per channel) the frame decodes into.
+     */
+    static int samplesPerFrame(int header) {
+        int layer = header >>> 17 & 3;
+        if (layer == 3) return 384;
+        if (layer == 1 && (header >>> 19 & 3) != 3) return 576;
+        return 1152;
+    }
+
+    /**
+     * @param header the 4 bytes of a valid frame header.
+     * @return sample rate of the frame in Hz.
+     */
+    static int sampleRate(int header) {
+        return SAMPLE_RATES[header >>> 19 & 3][header >>> 10 & 3];
+    }
+
+    /**
+     * Two headers belong to the same stream if version, layer and sample rate match.
+     * This also means the sample rate never changes within an index.
+     */
+    private static boolean sameStream(int first, int header) {
+        return (first & 0xFFFE0C00) == (header & 0xFFFE0C00);
+    }
+
+    /**
+     * @return number of frames between checkpoints.
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return total number of frames in the file.
+     */
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * @return sample rate of the stream in Hz, or 0 if the file has no frames.
+     */
+    public int getSampleRate() {
+        return firstHeader == 0 ? 0 : sampleRate(firstHeader);
+    }
+
+    /**
+     * @return number of channels of the stream, or 0 if the file has no frames.
+     */
+    public int getChannels() {
+        return firstHeader == 0 ? 0 : (firstHeader >>> 6 & 3) == 3 ? 1 : 2;
+    }
+
+    /**
+     * @return the 16-bit signed little-endian PCM format the file decodes into, or null if the file has no frames.
+     */
+    public AudioFormat getFormat() {
+        return firstHeader == 0 ? null : format(firstHeader);
+    }
+
+    /**
+     * @return number of PCM samples (per channel) each frame decodes into, or 0 if the file has no frames.
+     */
+    public int getSamplesPerFrame() {
+        return firstHeader == 0 ? 0 : samplesPerFrame(firstHeader);
+    }
+
+    /**
+     * @return byte offset right after the last frame, before any trailing tag such as ID3v1.
+     */
+    public long getDataEnd() {
+        return dataEnd;
+    }
+
+    /**
+     * @return True if frame 0 is a Xing/Info frame, which holds the tag and decodes into silence.
+     */
+    public boolean hasInfoFrame() {
+        return infoFrame;
+    }
+
+    /**
+     * @return number of samples (per channel) of silence the encoder added before the audio.
+     */
+    public int getEncoderDelay() {
+        return encoderDelay;
+    }
+
+    /**
+     * @return number of samples (per channel) of silence the encoder added after the audio.
+     */
+    public int getEncoderPadding() {
+        return encoderPadding;
+    }
+
+    /**
+     * @return what gapless playback needs, as the index found it.
+     */
+    public Gapless getGapless() {
+        return gapless;
+    }
+
+    /**
+     * @return exact length of the file in milliseconds.
+     */
+    public float getMsLength() {
+        return totalMicros / 1000f;
+    }
+
+    /**
+     * @param frame frame to seek to.
+     * @return the last checkpoint at or before the specified frame.
+     */
+    public int checkpointBefore(int frame) {
+        return Math.max(0, Math.min(frame / interval, offsets.length - 1));
+    }
+
+    /**
+     * @param checkpoint checkpoint number.
+     * @return byte offset of the header of the checkpoint frame.
+     */
+    public long offsetOf(int checkpoint) {
+        return offsets[checkpoint];
+    }
+
+    /**
+     * @param checkpoint checkpoint number.
+     * @return frame number of the checkpoint frame.
+     */
+    public int frameOf(int checkpoint) {
+        return checkpoint * interval;
+    }
+
+    /**
+     * @param ms time in milliseconds.
+     * @return the frame playing at the specified time.
+     */
+    public int frameAt(long ms) {
+        if (numFrames == 0) return 0;
+        long micros = Math.max(0, ms * 1000);
+        int checkpoint = Arrays.binarySearch(startMicros, micros);
+        if (checkpoint < 0) checkpoint = -checkpoint - 2;
+        double frame = frameOf(checkpoint) + (micros - startMicros[checkpoint]) / microsPerFrameAt(checkpoint);
+        return (int) Math.min(frame, numFrames);
+    }
+
+    /**
+     * @param frame frame number.
+     * @return the time in milliseconds at which the specified frame starts.
+     */
+    public float timeAt(int frame) {
+        if (numFrames == 0) return 0;
+        int checkpoint = checkpointBefore(frame);
+        long micros = startMicros[checkpoint] + (long) ((frame - frameOf(checkpoint)) * microsPerFrameAt(checkpoint));
+        return Math.min(micros, totalMicros) / 1000f;
+    }
+
+    private double microsPerFrameAt(int checkpoint) {
+        long end = checkpoint + 1 < startMicros.length ? startMicros[checkpoint + 1] : totalMicros;
+        int frames = (checkpoint + 1 < startMicros.length ? frameOf(checkpoint + 1) : numFrames) - frameOf(checkpoint);
+        return frames == 0 ? 1 : (double) (end - startMicros[checkpoint]) / frames;
+    }
+}
@@ -0,0 +1,77 @@
+package support;
+
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Front end of the player without any window, for machines without a display. Nothing is shown; song changes,
+ * pauses and the time from the start of the process to the first audio are printed as events, one per line.
+ * <p>
+ * Touches no AWT or Swing class, so running headless never initializes them.
+ */
+public class HeadlessView implements PlayerView {
+    private final PrintStream events;
+    private volatile boolean heard;
+
+    /**
+     * @param events stream the events are printed to, or null to print nothing.
+     */
+    public HeadlessView(PrintStream events) {
+        this.events = events;
+    }
+
+    @Override
+    public void showState(PlaybackSnapshot snapshot) {
+    }
+
+    @Override
+    public void showSong(Song song) {
+        print("song " + song.getTitle() + " - " + song.getArtist());
+    }
+
+    @Override
+    public void audioStarted(Song song, long latencyNanos) {
+        if (heard) return;
+        heard = true;
+        print(String.format("first-audio %d ms after process start (%d ms after play)",
+                PlaybackMetrics.millisSinceProcessStart(), latencyNanos / 1_000_000));
+    }
+
+    @Override
+    public void showStopped() {
+    }
+
+    @Override
+    public void showPaused(boolean paused) {
+        print(paused ? "paused" : "resumed");
+    }
+
+    @Override
+    public void showAdded(List<Song> songs) {
+    }
+
+    @Override
+    public void showRemoved(int index) {
+    }
+
+    @Override
+    public void showQueue(List<Song> songs) {
+    }
+
+    @Override
+    public void showQueueControls(boolean enabled) {
+    }
+
+    @Override
+    public void showImporting(boolean importing) {
+        if (!importing) print("import finished");
+    }
+
+    @Override
+    public void showImportProgress(String progress) {
+    }
+
+    private void print(String event) {
+        if (events != null) events.println("event " + event);
+    }
+}
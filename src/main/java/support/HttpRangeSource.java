@@ -0,0 +1,145 @@
+package support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Locale;
+
+/**
+ * {@link SongSource} streaming a song from an HTTP server or object store with range requests. Opening the song
+ * at an offset asks for {@code Range: bytes=offset-}, so playback starts after the first bytes arrive instead of
+ * after the whole file is downloaded, and a seek resumes from the byte offset of the target frame.
+ * <p>
+ * The response is read on a background thread into a {@link ReadAheadInputStream} of
+ * {@code -Dtolafy.http.readAheadKB} kilobytes (512 by default, about 30 seconds at 128 kbps), so the decoder
+ * never waits on the network while the connection keeps up. A server that ignores ranges still works: the bytes
+ * before the offset are read and dropped.
+ */
+public class HttpRangeSource implements SongSource {
+    private static final int READ_AHEAD = Integer.getInteger("tolafy.http.readAheadKB", 512) * 1024;
+    private static final Duration TIMEOUT = Duration.ofSeconds(Long.getLong("tolafy.http.timeoutS", 15));
+
+    private final URI uri;
+    private volatile long size = -1;
+
+    /**
+     * @param uri {@code http} or {@code https} address of the song.
+     */
+    public HttpRangeSource(URI uri) {
+        this.uri = uri;
+    }
+
+    /**
+     * @return True if the location is an {@code http://} or {@code https://} URL rather than a file path.
+     */
+    public static boolean isUrl(String location) {
+        String lower = location.toLowerCase(Locale.ROOT);
+        return lower.startsWith("http://") || lower.startsWith("https://");
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri).timeout(TIMEOUT)
+                .header("Range", "bytes=" + offset + "-").GET().build();
+        HttpResponse<InputStream> response = send(request, HttpResponse.BodyHandlers.ofInputStream());
+        InputStream body = response.body();
+        try {
+            switch (response.statusCode()) {
+                case 206 -> {
+                    String range = response.headers().firstValue("Content-Range").orElse("");
+                    if (rangeStart(range) != offset) throw new IOException("server sent " + range + " for offset " + offset + " of " + uri);
+                    long total = rangeTotal(range);
+                    if (total >= 0) size = total;
+                }
+                case 200 -> {       // Ranges not supported: the whole song is sent.
+                    response.headers().firstValueAsLong("Content-Length").ifPresent(length -> size = length);
+                    body.skipNBytes(offset);
+                }
+                case 416 -> {       // Offset at or past the end.
+                    body.close();
+                    return InputStream.nullInputStream();
+                }
+                default -> throw new IOException("HTTP " + response.statusCode() + " reading " + uri);
+            }
+        } catch (IOException e) {
+            body.close();
+            throw e;
+        }
+        return new ReadAheadInputStream(body, READ_AHEAD, "read-ahead " + uri.getPath());
+    }
+
+    /**
+     * @return size of the song, asked with a HEAD request the first time, or learned from a previous response.
+     */
+    @Override
+    public long size() throws IOException {
+        if (size < 0) {
+            HttpRequest request = HttpRequest.newBuilder(uri).timeout(TIMEOUT)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()).build();
+            HttpResponse<Void> response = send(request, HttpResponse.BodyHandlers.discarding());
+            if (response.statusCode() != 200) throw new IOException("HTTP " + response.statusCode() + " reading " + uri);
+            size = response.headers().firstValueAsLong("Content-Length")
+                    .orElseThrow(() -> new IOException("no Content-Length for " + uri));
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+
+    private static <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> handler) throws IOException {
+        try {
+            return Client.HTTP.send(request, handler);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted requesting " + request.uri());
+        }
+    }
+
+    /**
+     * @param range value of a Content-Range header, such as {@code bytes 100-999/1000}.
+     * @return first byte of the range, or -1 if the header cannot be parsed.
+     */
+    private static long rangeStart(String range) {
+        int dash = range.indexOf('-');
+        if (!range.startsWith("bytes ") || dash < 0) return -1;
+        try {
+            return Long.parseLong(range.substring(6, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @return total size in a Content-Range header, or -1 if it is unknown ({@code *}) or cannot be parsed.
+     */
+    private static long rangeTotal(String range) {
+        try {
+            return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Holds the client, so it and its threads are only created when a song is streamed.
+     */
+    private static final class Client {
+        static final HttpClient HTTP = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(TIMEOUT)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+    }
+}
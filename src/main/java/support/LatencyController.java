@@ -0,0 +1,72 @@
+package support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides how many milliseconds of audio a {@link LineAudioDevice} may queue, according to a
+ * {@link LatencyProfile}. Fixed profiles always answer the same. The adaptive profile grows the target by half
+ * after every underrun, up to its maximum, and shrinks it by a tenth after every {@link #STABLE_NANOS} without
+ * one, down to its minimum, so it settles at the smallest buffer the machine can keep fed.
+ * <p>
+ * Also counts the underruns. One controller is shared by every line an {@link AudioOutput} opens, so what it
+ * learned is kept when the line is reopened for another format. All methods are thread safe.
+ */
+public class LatencyController {
+    /**
+     * Time without underruns after which the adaptive target shrinks.
+     */
+    public static final long STABLE_NANOS = 10_000_000_000L;
+
+    private final LatencyProfile profile;
+    private final AtomicLong underruns = new AtomicLong();
+    private volatile int targetMs;
+    private long lastChange;
+
+    /**
+     * @param profile   profile to follow.
+     * @param nowNanos  current time, from {@link System#nanoTime()}.
+     */
+    public LatencyController(LatencyProfile profile, long nowNanos) {
+        this.profile = profile;
+        this.targetMs = profile.getInitialMs();
+        this.lastChange = nowNanos;
+    }
+
+    public LatencyProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return how much audio the line may hold, in milliseconds.
+     */
+    public int getTargetMs() {
+        return targetMs;
+    }
+
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    /**
+     * Records that the line ran out of audio while playing.
+     *
+     * @param nowNanos current time, from {@link System#nanoTime()}.
+     */
+    public synchronized void underrun(long nowNanos) {
+        underruns.incrementAndGet();
+        if (!profile.isAdaptive()) return;
+        targetMs = Math.min(profile.getMaxMs(), targetMs + Math.max(1, targetMs / 2));
+        lastChange = nowNanos;
+    }
+
+    /**
+     * Records that audio was written without an underrun, shrinking the target if that has been the case for a while.
+     *
+     * @param nowNanos current time, from {@link System#nanoTime()}.
+     */
+    public synchronized void played(long nowNanos) {
+        if (!profile.isAdaptive() || nowNanos - lastChange < STABLE_NANOS) return;
+        targetMs = Math.max(profile.getMinMs(), targetMs - Math.max(1, targetMs / 10));
+        lastChange = nowNanos;
+    }
+}
@@ -0,0 +1,69 @@
+package support;
+
+/**
+ * How much audio the sound line holds ahead of what is being heard. A small buffer makes stop and seek take effect
+ * sooner but underruns (audible gaps) as soon as the machine is busy; a large one is the opposite.
+ * <p>
+ * The profile is chosen with {@code -Dtolafy.latency=low|robust|adaptive}.
+ *
+ * @see LatencyController
+ */
+public enum LatencyProfile {
+    /**
+     * Small fixed buffer: fast response to pause, seek and stop.
+     */
+    LOW_LATENCY(40, 40, 40),
+    /**
+     * Large fixed buffer, for loaded machines.
+     */
+    ROBUST(500, 500, 500),
+    /**
+     * Starts small, grows after underruns and shrinks back while playback is stable.
+     */
+    ADAPTIVE(80, 40, 1000);
+
+    private final int initialMs;
+    private final int minMs;
+    private final int maxMs;
+
+    LatencyProfile(int initialMs, int minMs, int maxMs) {
+        this.initialMs = initialMs;
+        this.minMs = minMs;
+        this.maxMs = maxMs;
+    }
+
+    /**
+     * @return the profile selected with {@code -Dtolafy.latency}, adaptive by default.
+     */
+    public static LatencyProfile fromProperty() {
+        String name = System.getProperty("tolafy.latency", "adaptive");
+        switch (name.toLowerCase()) {
+            case "low":
+            case "low_latency":
+                return LOW_LATENCY;
+            case "robust":
+                return ROBUST;
+            default:
+                return ADAPTIVE;
+        }
+    }
+
+    public int getInitialMs() {
+        return initialMs;
+    }
+
+    public int getMinMs() {
+        return minMs;
+    }
+
+    /**
+     * @return the largest amount of audio ever queued, which is also the size the line is opened with.
+     */
+    public int getMaxMs() {
+        return maxMs;
+    }
+
+    public boolean isAdaptive() {
+        return minMs != maxMs;
+    }
+}
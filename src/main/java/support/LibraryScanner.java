@@ -0,0 +1,234 @@
+package support;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Imports every MP3 under a folder tree. Files are parsed in parallel by {@link SongParser} on a bounded pool of
+ * low-priority threads (one less than the number of cores, so playback always has a core to itself), and the
+ * resulting songs are handed to a {@link Listener} in batches, in the order they finish parsing. Songs are delivered
+ * while the tree is still being walked, so the first batch of a large library does not wait for the whole walk.
+ * <p>
+ * Progress, including throughput in files and megabytes per second, is reported after every batch.
+ * The import can be cancelled at any time with {@link #cancel()}.
+ */
+public class LibraryScanner {
+    /**
+     * Maximum number of songs delivered in one call to {@link Listener#songsFound(List)}.
+     */
+    public static final int BATCH_SIZE = 256;
+    private static final long BATCH_INTERVAL_MS = 250;
+
+    /**
+     * Receives the results of an import. All methods are called from the same background thread.
+     */
+    public interface Listener {
+        /**
+         * @param batch songs parsed since the last call.
+         */
+        void songsFound(List<Song> batch);
+
+        /**
+         * @param progress progress of the import after the last batch.
+         */
+        void progress(Progress progress);
+
+        /**
+         * @param progress  final progress of the import.
+         * @param cancelled True if the import stopped because of {@link #cancel()}.
+         */
+        void finished(Progress progress, boolean cancelled);
+    }
+
+    /**
+     * Snapshot of the progress of an import.
+     *
+     * @param filesDone  number of files parsed (including the ones that failed).
+     * @param filesTotal number of MP3 files found so far; final once {@code walking} is false.
+     * @param bytesDone  number of bytes of the parsed files.
+     * @param elapsedMs  milliseconds since the import started.
+     * @param walking    True while the folder is still being walked and more files may be found.
+     */
+    public record Progress(int filesDone, int filesTotal, long bytesDone, long elapsedMs, boolean walking) {
+        public double filesPerSecond() {
+            return elapsedMs == 0 ? 0 : filesDone * 1000.0 / elapsedMs;
+        }
+
+        public double megabytesPerSecond() {
+            return elapsedMs == 0 ? 0 : bytesDone / 1048576.0 * 1000.0 / elapsedMs;
+        }
+
+        @Override
+        public String toString() {
+            String total = walking ? filesTotal + "+" : String.valueOf(filesTotal);
+            return String.format("%d/%s files, %.0f files/s, %.1f MB/s", filesDone, total, filesPerSecond(), megabytesPerSecond());
+        }
+    }
+
+    private final Path root;
+    private final Listener listener;
+    private final MetadataCache cache;
+    private final ForkJoinPool pool;
+    private final AtomicInteger filesDone = new AtomicInteger();
+    private final AtomicLong bytesDone = new AtomicLong();
+    private volatile int filesTotal;
+    private volatile boolean walking = true;
+    private volatile boolean cancelled;
+    private long startNanos;
+    // Owned by the coordinator thread
+    private List<Song> batch = new ArrayList<>(BATCH_SIZE);
+    private int received;
+    private long lastBatch;
+
+    /**
+     * @param root     folder to import.
+     * @param listener receiver of the songs and progress.
+     * @param cache    metadata cache handed to {@link SongParser}.
+     */
+    public LibraryScanner(Path root, Listener listener, MetadataCache cache) {
+        this.root = root;
+        this.listener = listener;
+        this.cache = cache;
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("library-scanner-" + thread.getPoolIndex());
+            thread.setPriority(Thread.MIN_PRIORITY);
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Starts the import on a background thread and returns immediately.
+     */
+    public void start() {
+        Thread coordinator = new Thread(this::run, "library-scanner");
+        coordinator.setDaemon(true);
+        coordinator.setPriority(Thread.MIN_PRIORITY);
+        coordinator.start();
+    }
+
+    /**
+     * Stops the import. Songs already delivered stay delivered; no more batches are sent.
+     */
+    public void cancel() {
+        cancelled = true;
+        pool.shutdownNow();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return the progress of the import right now.
+     */
+    public Progress getProgress() {
+        return new Progress(filesDone.get(), filesTotal, bytesDone.get(), (System.nanoTime() - startNanos) / 1_000_000, walking);
+    }
+
+    private void run() {
+        startNanos = System.nanoTime();
+        lastBatch = startNanos;
+        CompletionService<Song> completion = new ExecutorCompletionService<>(pool);
+        try {
+            walk(completion);
+            walking = false;
+            deliver(null);      // Flushes what was received while walking
+            while (received < filesTotal && !cancelled) {
+                deliver(completion.poll(BATCH_INTERVAL_MS, TimeUnit.MILLISECONDS));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            walking = false;
+            pool.shutdownNow();
+            listener.finished(getProgress(), cancelled);
+        }
+    }
+
+    /**
+     * Adds a parsed song, if any, to the current batch, and sends the batch and the progress when they are due.
+     *
+     * @param future finished parsing task, or null to only check whether a batch is due.
+     */
+    private void deliver(Future<Song> future) throws InterruptedException {
+        if (future != null) {
+            received++;
+            Song song = getQuietly(future);
+            if (song != null) batch.add(song);
+        }
+        boolean done = !walking && received == filesTotal;
+        boolean due = System.nanoTime() - lastBatch >= BATCH_INTERVAL_MS * 1_000_000;
+        if (!batch.isEmpty() && (batch.size() >= BATCH_SIZE || due || done)) {
+            if (cancelled) return;
+            listener.songsFound(batch);
+            batch = new ArrayList<>(BATCH_SIZE);
+        }
+        if (due || done) {
+            listener.progress(getProgress());
+            lastBatch = System.nanoTime();
+        }
+    }
+
+    /**
+     * Walks the folder tree and submits one parsing task per MP3 file, delivering the songs that finish parsing
+     * meanwhile. {@link #filesTotal} counts the tasks submitted.
+     */
+    private void walk(CompletionService<Song> completion) throws IOException, InterruptedException {
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (cancelled) return FileVisitResult.TERMINATE;
+                if (attributes.isRegularFile() && file.getFileName().toString().toLowerCase().endsWith(".mp3")) {
+                    long size = attributes.size();
+                    try {
+                        completion.submit(() -> {
+                            Song song = cancelled ? null : SongParser.parse(file.toFile(), cache);
+                            bytesDone.addAndGet(size);
+                            filesDone.incrementAndGet();
+                            return song;
+                        });
+                        filesTotal++;   // Only this thread writes it
+                    } catch (RejectedExecutionException e) {
+                        return FileVisitResult.TERMINATE;   // cancelled while walking
+                    }
+                }
+                try {
+                    Future<Song> future;
+                    do {
+                        future = completion.poll();
+                        deliver(future);
+                    } while (future != null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return FileVisitResult.TERMINATE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                return FileVisitResult.CONTINUE;    // unreadable folders are skipped
+            }
+        });
+        if (Thread.interrupted()) throw new InterruptedException("interrupted while walking");
+    }
+
+    private static Song getQuietly(Future<Song> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException | CancellationException e) {
+            return null;
+        }
+    }
+}
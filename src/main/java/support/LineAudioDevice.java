@@ -0,0 +1,165 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.AudioDeviceBase;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audio device writing to a Java Sound {@link SourceDataLine} opened for a fixed format. Unlike JLayer's
+ * {@code JavaSoundAudioDevice}, the format does not come from a decoder, so the line can stay open while
+ * decoders come and go, and the audio still queued in the line can be discarded with {@link #drop()}
+ * when the user stops or changes songs.
+ * <p>
+ * The line is opened with the largest buffer its {@link LatencyController} allows, but writes wait until the
+ * audio queued in it is below the current target, so the output latency can change without reopening the line.
+ * A write that finds the line empty is counted as an underrun.
+ * <p>
+ * Samples are converted into a {@code byte[]} kept by the device and reused for every write, so steady
+ * playback allocates nothing per frame.
+ *
+ * @see AudioOutput
+ */
+public class LineAudioDevice extends AudioDeviceBase {
+    // Shortest wait for room in the line: its free space only grows by whole periods of the sound card.
+    private static final long MIN_ROOM_WAIT_NANOS = 1_000_000;
+
+    private final AudioFormat format;
+    private LatencyController latency;
+    private SourceDataLine line;
+    private byte[] bytes = new byte[PcmRingBuffer.MAX_FRAME_SAMPLES * 2];
+    private volatile boolean fed;       // Something was written since the line was opened, drained or dropped.
+    private volatile boolean paused;
+
+    /**
+     * @param format format of the line: 16-bit signed little-endian PCM.
+     */
+    public LineAudioDevice(AudioFormat format) {
+        this.format = format;
+        this.latency = new LatencyController(LatencyProfile.fromProperty(), System.nanoTime());
+    }
+
+    public AudioFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Replaces the controller of the latency. Must be called before the device is opened.
+     *
+     * @param latency controller deciding how much audio the line holds.
+     */
+    public void setLatency(LatencyController latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * @return milliseconds of audio queued in the line right now, which is the delay before a new write is heard.
+     */
+    public int getLatencyMs() {
+        SourceDataLine current = line;
+        return current == null ? 0 : (int) (queued(current) * 1000L / bytesPerSecond());
+    }
+
+    @Override
+    protected void openImpl() throws JavaLayerException {
+        try {
+            line = AudioSystem.getSourceDataLine(format);
+            line.open(format, bytesFor(latency.getProfile().getMaxMs()));
+            line.start();
+        } catch (LineUnavailableException | IllegalArgumentException e) {
+            throw new JavaLayerException("cannot open audio line for " + format, e);
+        }
+    }
+
+    @Override
+    protected void writeImpl(short[] samples, int offset, int length) {
+        if (bytes.length < length * 2) bytes = new byte[length * 2];
+        for (int i = 0, j = 0; i < length; i++) {
+            short sample = samples[offset + i];
+            bytes[j++] = (byte) sample;
+            bytes[j++] = (byte) (sample >>> 8);
+        }
+        SourceDataLine current = line;
+        if (current != null) {
+            long now = System.nanoTime();
+            if (fed && !paused && queued(current) == 0) latency.underrun(now);
+            else latency.played(now);
+            // Waits for the line to play down to the target, sleeping for the time the excess takes to play and then
+            // checking again; stops waiting if it is paused, write blocks then.
+            int limit = Math.max(bytesFor(latency.getTargetMs()), length * 2);
+            for (long excess; (excess = queued(current) + length * 2L - limit) > 0 && !paused; )
+                LockSupport.parkNanos(Math.max(MIN_ROOM_WAIT_NANOS, excess * 1_000_000_000L / bytesPerSecond()));
+        }
+        writeBytes(bytes, length * 2);
+        fed = true;
+    }
+
+    /**
+     * Writes converted samples to the line, blocking while it is full.
+     *
+     * @param bytes  16-bit little-endian samples; the array is reused by the next write.
+     * @param length number of bytes to write.
+     */
+    protected void writeBytes(byte[] bytes, int length) {
+        line.write(bytes, 0, length);
+    }
+
+    /**
+     * Blocks until the audio written so far has been played.
+     */
+    @Override
+    protected void flushImpl() {
+        if (line != null) line.drain();
+        fed = false;
+    }
+
+    /**
+     * Discards the audio written to the line but not played yet.
+     */
+    public void drop() {
+        SourceDataLine current = line;
+        fed = false;
+        if (current != null) current.flush();
+    }
+
+    /**
+     * Stops playing the audio queued in the line, keeping it for {@link #resume()}.
+     */
+    public void pause() {
+        SourceDataLine current = line;
+        paused = true;
+        if (current != null) current.stop();
+    }
+
+    public void resume() {
+        SourceDataLine current = line;
+        if (current != null) current.start();
+        paused = false;
+    }
+
+    @Override
+    protected void closeImpl() {
+        if (line != null) line.close();
+    }
+
+    @Override
+    public int getPosition() {
+        return line == null ? 0 : (int) (line.getMicrosecondPosition() / 1000);
+    }
+
+    private int queued(SourceDataLine current) {
+        return current.getBufferSize() - current.available();
+    }
+
+    private int bytesPerSecond() {
+        return (int) format.getFrameRate() * format.getFrameSize();
+    }
+
+    private int bytesFor(int ms) {
+        return (int) ((long) format.getFrameRate() * ms / 1000) * format.getFrameSize();
+    }
+}
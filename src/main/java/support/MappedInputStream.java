@@ -0,0 +1,96 @@
+package support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Input stream reading a file mapped into memory. The file is mapped once, with {@link #map(Path)}, and any number
+ * of streams can then read it from any position: opening a stream at another position for a seek is a view of
+ * the same mapping, with no system call and no buffer to fill. Reads are not synchronized and copy straight from
+ * the mapping into the caller's array, unlike {@link java.io.BufferedInputStream}, which copies through its own
+ * buffer under a lock.
+ * <p>
+ * A stream is used by one thread at a time; the mapping itself can be shared.
+ *
+ * @see Song#map()
+ */
+public class MappedInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    /**
+     * @param mapping file mapped with {@link #map(Path)}.
+     * @param offset  position of the first byte to read.
+     * @param end     position after the last byte to read; clipped to the size of the file.
+     */
+    public MappedInputStream(ByteBuffer mapping, long offset, long end) {
+        ByteBuffer view = mapping.duplicate();
+        int limit = (int) Math.min(end, view.capacity());
+        view.limit(limit);
+        view.position((int) Math.min(offset, limit));
+        this.buffer = view;
+    }
+
+    /**
+     * Maps a whole file read-only. The mapping is released when it is garbage collected.
+     *
+     * @param file file to map.
+     * @return the mapping.
+     * @throws IOException if the file cannot be mapped, for example because it is larger than 2 GB.
+     */
+    public static MappedByteBuffer map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("file too large to map: " + file);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("file cannot be mapped: " + file, e);
+        }
+    }
+
+    /**
+     * @return position of the next byte to be read, from the start of the file.
+     */
+    public long position() {
+        return buffer.position();
+    }
+
+    /**
+     * Moves to an absolute position in the file.
+     *
+     * @param position position of the next byte to be read; clipped to the end of the stream.
+     */
+    public void position(long position) {
+        buffer.position((int) Math.min(Math.max(0, position), buffer.limit()));
+    }
+
+    @Override
+    public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+        if (len == 0) return 0;
+        int n = Math.min(len, buffer.remaining());
+        if (n == 0) return -1;
+        buffer.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+}
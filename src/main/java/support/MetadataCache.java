@@ -0,0 +1,213 @@
+package support;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of the metadata {@link SongParser} extracts from MP3 files, so a file that was already parsed
+ * once does not have to be scanned again. Entries are keyed by path and are only valid while the size and the
+ * modification time of the file stay the same.
+ * <p>
+ * The cache is a compact append-only binary file: a header followed by one record per parsed file. Each record is
+ * framed with its length and a CRC32, so a record cut short by a crash is found on load, and the file is truncated
+ * to the last complete record before anything is appended. Newer records of a path replace older ones when the
+ * file is loaded; once superseded records outnumber the live ones, the file is rewritten with the live ones only.
+ * The file is read lazily, the first time the cache is used. All methods are thread safe.
+ */
+public class MetadataCache {
+    private static final int MAGIC = 0x544F4C46;   // "TOLF"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int COMPACT_MIN_RECORDS = 1024;  // Smaller files are not worth rewriting
+
+    /**
+     * Metadata stored for one file.
+     */
+    public record Entry(long size, long lastModified, String title, String album, String artist, String year,
+                        int numFrames, float msPerFrame, float msLength) {
+    }
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean loaded;
+    private DataOutputStream out;
+    private long validLength;       // Bytes of the file up to the end of its last complete record
+    private int records;            // Records in the file, superseded ones included
+
+    /**
+     * @param file file where the cache is persisted. Created on the first store.
+     */
+    public MetadataCache(File file) {
+        this.file = file;
+    }
+
+    private static final class DefaultHolder {
+        static final MetadataCache INSTANCE = new MetadataCache(new File(System.getProperty("tolafy.metadataCache",
+                System.getProperty("user.home") + File.separator + ".tolafy" + File.separator + "metadata.cache")));
+    }
+
+    /**
+     * @return the cache shared by the whole application, stored in ~/.tolafy/metadata.cache
+     * unless overridden with -Dtolafy.metadataCache.
+     */
+    public static MetadataCache getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * Returns the cached metadata of a file if the file did not change since it was stored.
+     *
+     * @param path         path of the file.
+     * @param size         current size of the file in bytes.
+     * @param lastModified current modification time of the file in milliseconds.
+     * @return the cached metadata, or null on a miss.
+     */
+    public Entry lookup(String path, long size, long lastModified) {
+        if (!loaded) load();
+        Entry entry = entries.get(path);
+        if (entry == null || entry.size() != size || entry.lastModified() != lastModified) return null;
+        return entry;
+    }
+
+    /**
+     * Stores the metadata of a file, in memory and on disk.
+     *
+     * @param path  path of the file.
+     * @param entry metadata of the file.
+     */
+    public void store(String path, Entry entry) {
+        if (!loaded) load();
+        entries.put(path, entry);
+        synchronized (this) {
+            try {
+                if (out == null) out = openForAppend();
+                writeRecord(out, path, entry);
+                out.flush();
+                records++;
+                if (records > COMPACT_MIN_RECORDS && records > 2 * entries.size()) compact();
+            } catch (IOException e) {
+                e.printStackTrace();    // The cache is only an optimization, parsing still worked.
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, String path, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream record = new DataOutputStream(bytes);
+        record.writeUTF(path);
+        record.writeLong(entry.size());
+        record.writeLong(entry.lastModified());
+        record.writeUTF(entry.title());
+        record.writeUTF(entry.album());
+        record.writeUTF(entry.artist());
+        record.writeUTF(entry.year());
+        record.writeInt(entry.numFrames());
+        record.writeFloat(entry.msPerFrame());
+        record.writeFloat(entry.msLength());
+        CRC32 crc = new CRC32();
+        crc.update(bytes.toByteArray());
+        out.writeInt(bytes.size());
+        out.writeInt((int) crc.getValue());
+        bytes.writeTo(out);
+    }
+
+    /**
+     * @return number of files in the cache.
+     */
+    public int size() {
+        if (!loaded) load();
+        return entries.size();
+    }
+
+    private synchronized void load() {
+        if (loaded) return;
+        if (file.isFile()) {
+            try {
+                ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                if (bytes.remaining() >= HEADER_BYTES && bytes.getInt() == MAGIC && bytes.getInt() == VERSION) {
+                    validLength = HEADER_BYTES;
+                    CRC32 crc = new CRC32();
+                    while (bytes.remaining() >= 8) {
+                        int length = bytes.getInt();
+                        int checksum = bytes.getInt();
+                        if (length < 0 || length > bytes.remaining()) break;    // Cut short by a crash
+                        crc.reset();
+                        crc.update(bytes.array(), bytes.position(), length);
+                        if ((int) crc.getValue() != checksum) break;             // Torn or overwritten
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.array(), bytes.position(), length));
+                        String path = in.readUTF();
+                        entries.put(path, new Entry(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(),
+                                in.readUTF(), in.readUTF(), in.readInt(), in.readFloat(), in.readFloat()));
+                        bytes.position(bytes.position() + length);
+                        validLength = bytes.position();
+                        records++;
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        loaded = true;
+    }
+
+    /**
+     * Opens the file for appending, after its last complete record. A file from another version, or without a
+     * valid header, is started over. Called with the lock.
+     */
+    private DataOutputStream openForAppend() throws IOException {
+        Path path = file.toPath();
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        boolean fresh = validLength < HEADER_BYTES;
+        if (!fresh) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(validLength);      // Drops a record cut in half, so new ones stay aligned
+            }
+        }
+        DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, !fresh)));
+        if (fresh) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            validLength = HEADER_BYTES;
+        }
+        return stream;
+    }
+
+    /**
+     * Rewrites the file with one record per path, replacing it atomically, and reopens it for appending.
+     * Called with the lock.
+     */
+    private void compact() throws IOException {
+        out.close();
+        out = null;
+        Path path = file.toPath();
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        int written = 0;
+        try (DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                writeRecord(stream, entry.getKey(), entry.getValue());
+                written++;
+            }
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        validLength = Files.size(path);
+        records = written;
+        out = openForAppend();
+    }
+
+    /**
+     * @return size of the cache file in bytes, superseded records included.
+     */
+    public synchronized long fileSize() {
+        return file.length();
+    }
+}
@@ -0,0 +1,241 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.player.NullAudioDevice;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Decodes songs to files as fast as the CPU allows, for loudness analysis and archiving. The samples are the ones
+ * playback would write to the device (same {@link TrackDecoder}, encoder delay and padding trimmed), without a
+ * device or real-time pacing.
+ * <p>
+ * Songs are rendered in parallel, one per thread, longest first so the pool does not end waiting on a long song
+ * started last. Each thread fills a direct buffer of {@link #BUFFER_BYTES} and writes it to a {@link FileChannel}
+ * in one call when full, so a song takes a handful of writes. Speed is reported as an x-realtime factor: seconds
+ * of audio rendered per second of wall time.
+ */
+public class OfflineRenderer {
+    /**
+     * Size of the buffer each thread writes through.
+     */
+    public static final int BUFFER_BYTES = 1 << 20;
+    private static final int WAV_HEADER_BYTES = 44;
+
+    /**
+     * Layout of the rendered files. Samples are 16-bit little-endian and interleaved in both.
+     */
+    public enum Format {
+        /**
+         * RIFF WAVE file with a PCM header.
+         */
+        WAV(".wav"),
+        /**
+         * Samples only, no header.
+         */
+        RAW(".pcm");
+
+        private final String extension;
+
+        Format(String extension) {
+            this.extension = extension;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    /**
+     * One rendered song.
+     *
+     * @param song       song rendered.
+     * @param file       file written.
+     * @param sampleRate samples per second per channel.
+     * @param channels   number of channels.
+     * @param samples    number of samples written, all channels together.
+     * @param nanos      time taken to decode and write the song.
+     */
+    public record Track(Song song, Path file, int sampleRate, int channels, long samples, long nanos) {
+        public double audioSeconds() {
+            return samples / (double) channels / sampleRate;
+        }
+
+        public double realtimeFactor() {
+            return nanos == 0 ? 0 : audioSeconds() * 1e9 / nanos;
+        }
+    }
+
+    /**
+     * Result of rendering a list of songs.
+     *
+     * @param tracks  rendered songs, in the order they were given.
+     * @param nanos   wall time taken by the whole list.
+     * @param threads number of threads the songs were rendered on.
+     */
+    public record Report(List<Track> tracks, long nanos, int threads) {
+        public double audioSeconds() {
+            double seconds = 0;
+            for (Track track : tracks) seconds += track.audioSeconds();
+            return seconds;
+        }
+
+        /**
+         * @return seconds of audio rendered per second of wall time, all threads together.
+         */
+        public double realtimeFactor() {
+            return nanos == 0 ? 0 : audioSeconds() * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d songs, %.0f s of audio in %.2f s on %d threads: %.1fx realtime",
+                    tracks.size(), audioSeconds(), nanos / 1e9, threads, realtimeFactor());
+        }
+    }
+
+    private final int threads;
+    private final Format format;
+
+    /**
+     * @param threads maximum number of songs rendered at once.
+     * @param format  layout of the files written.
+     */
+    public OfflineRenderer(int threads, Format format) {
+        if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+        this.threads = threads;
+        this.format = format;
+    }
+
+    /**
+     * Renders every song to its own file, named after its position in the list and its title. Songs that fail
+     * leave no file; the others are still rendered.
+     *
+     * @param songs     songs to render, for example {@link Playlist#getSongs()}.
+     * @param directory directory the files are written to, created if needed. Existing files are replaced.
+     * @return the rendered songs and the speed.
+     * @throws IOException if a song cannot be decoded or written, with the failure of each song suppressed in it.
+     */
+    public Report render(List<Song> songs, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        int poolSize = Math.max(1, Math.min(threads, songs.size()));
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize, task -> {
+            Thread thread = new Thread(task, "renderer-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        AudioOutput decoders = new AudioOutput(audioFormat -> new NullAudioDevice());   // Only its decoder pool is used
+        ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN));
+        List<Future<Track>> futures = new ArrayList<>(songs.size());
+        for (int i = 0; i < songs.size(); i++) futures.add(null);
+
+        long start = System.nanoTime();
+        try {
+            IntStream.range(0, songs.size()).boxed()
+                    .sorted(Comparator.comparingDouble(i -> -songs.get(i).getMsLength()))
+                    .forEach(i -> {
+                        Song song = songs.get(i);
+                        Path file = directory.resolve(fileName(i, song));
+                        futures.set(i, pool.submit(() -> renderTrack(song, file, decoders, buffers.get())));
+                    });
+            List<Track> tracks = new ArrayList<>(songs.size());
+            IOException failure = null;
+            for (Future<Track> future : futures) {
+                try {
+                    tracks.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) failure = new IOException("cannot render every song");
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+            if (failure != null) throw failure;
+            return new Report(tracks, System.nanoTime() - start, poolSize);
+        } catch (InterruptedException e) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("rendering interrupted");
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private Track renderTrack(Song song, Path file, AudioOutput decoders, ByteBuffer buffer) throws IOException {
+        long start = System.nanoTime();
+        TrackDecoder track = null;
+        try {
+            FrameIndex index = FrameIndex.of(song).join();      // Trimming the encoder delay needs the index
+            track = new TrackDecoder(song, CompletableFuture.completedFuture(index), decoders, true);
+            PcmRingBuffer ring = new PcmRingBuffer(1, PcmRingBuffer.MAX_FRAME_SAMPLES);
+            long samples = 0;
+            buffer.clear();
+            if (format == Format.WAV) buffer.position(WAV_HEADER_BYTES);   // Written last, when the size is known
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (track.decodeFrame(ring, 0, 0)) {
+                    int slot = ring.peek();
+                    if (slot < 0) continue;     // Frame trimmed away entirely
+                    int length = ring.length(slot);
+                    if (buffer.remaining() < length * 2) drain(channel, buffer);
+                    buffer.asShortBuffer().put(ring.samples(slot), 0, length);
+                    buffer.position(buffer.position() + length * 2);
+                    samples += length;
+                    ring.release();
+                }
+                drain(channel, buffer);
+                if (format == Format.WAV) {
+                    writeWavHeader(buffer, index.getSampleRate(), index.getChannels(), samples * 2);
+                    for (long at = 0; buffer.hasRemaining(); ) at += channel.write(buffer, at);
+                }
+            }
+            return new Track(song, file, index.getSampleRate(), index.getChannels(), samples, System.nanoTime() - start);
+        } catch (IOException | JavaLayerException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw new IOException("cannot render " + song.getFilePath(), e);
+        } finally {
+            if (track != null) track.close();
+        }
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Puts a 16-bit PCM WAVE header in the buffer, flipped for writing at the start of the file.
+     */
+    private static void writeWavHeader(ByteBuffer buffer, int sampleRate, int channels, long dataBytes) throws IOException {
+        if (dataBytes > 0xFFFFFFFFL - 36) throw new IOException("too long for a WAV file");
+        buffer.clear();
+        buffer.put("RIFF".getBytes(StandardCharsets.US_ASCII)).putInt((int) (36 + dataBytes)).put("WAVE".getBytes(StandardCharsets.US_ASCII));
+        buffer.put("fmt ".getBytes(StandardCharsets.US_ASCII)).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        buffer.put("data".getBytes(StandardCharsets.US_ASCII)).putInt((int) dataBytes);
+        buffer.flip();
+    }
+
+    private String fileName(int position, Song song) {
+        String title = song.getTitle() == null ? "" : song.getTitle().replaceAll("[\\\\/:*?\"<>|\\p{Cntrl}]", "_").trim();
+        return String.format("%03d %s%s", position + 1, title.isEmpty() ? "track" : title, format.getExtension());
+    }
+}
@@ -0,0 +1,763 @@
+package support;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the decoded PCM of recently played songs, so replaying a song or seeking inside it reads samples
+ * instead of decoding MP3 frames. A {@link TrackDecoder} records every frame it decodes while a song plays from
+ * the start, and hands the recording over when it reaches the end; a song opened later is then served from the
+ * cache, and its seeks only move a position.
+ * <p>
+ * There are two tiers, each with a budget in bytes and least-recently-used eviction:
+ * <ul>
+ * <li>memory: songs are kept in direct buffers, outside the Java heap.</li>
+ * <li>disk: songs evicted from memory are written to raw PCM files and read back through memory mappings.
+ * The files stay valid across runs.</li>
+ * </ul>
+ * The budgets come from {@code -Dtolafy.pcmCache.memoryMB} and {@code -Dtolafy.pcmCache.diskMB}, both 0 (off) by
+ * default; the files are kept in ~/.tolafy/pcm unless overridden with {@code -Dtolafy.pcmCache.dir}. Songs are
+ * keyed by location, size and modification time, so an edited file is decoded again.
+ * <p>
+ * Songs evicted from memory are written to disk by a background thread, and are still served from memory until
+ * the file is complete.
+ * <p>
+ * Recordings hold their samples in direct memory until the song ends. A recording that outgrows the memory budget
+ * spills to a temporary file in the cache directory and keeps a single chunk in memory; the file becomes part of the
+ * disk tier when the song ends. The direct memory of all recordings together is capped by
+ * {@code -Dtolafy.pcmCache.recordingMB} (by default the memory budget, and at least 16 MB): a recording that cannot
+ * get another chunk spills early, or is abandoned without a disk tier, so many sessions recording at once never
+ * exhaust direct memory.
+ * All methods are thread safe.
+ */
+public class PcmCache {
+    private static final int MAGIC = 0x54504331;   // "TPC1"
+    private static final int CHUNK_SHIFT = 20;      // Recordings grow in chunks of 1 MB.
+    private static final int CHUNK_BYTES = 1 << CHUNK_SHIFT;
+    private static final String SUFFIX = ".pcm";
+    private static final String SPILL_SUFFIX = ".rec";
+    private static final long MIN_RECORDING_BUDGET = 16L << 20;
+
+    private final long memoryBudget;
+    private final long diskBudget;
+    private final long recordingBudget;
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);     // Hash to file size.
+    private final Map<String, Entry> writing = new LinkedHashMap<>();
+    private long memoryBytes;
+    private long diskBytes;
+    private long recordingBytes;        // Direct memory held by recordings in progress.
+    private boolean loaded;
+    private ExecutorService writer;
+    private Future<?> lastWrite;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong memoryEvictedBytes = new AtomicLong();
+    private final AtomicLong diskEvictedBytes = new AtomicLong();
+    private final AtomicLong abandonedRecordings = new AtomicLong();
+
+    /**
+     * @param memoryBudget bytes of PCM kept in memory, or 0 for no memory tier.
+     * @param diskBudget   bytes of PCM kept on disk, or 0 for no disk tier.
+     * @param directory    directory of the disk tier, created when the first song is written.
+     */
+    public PcmCache(long memoryBudget, long diskBudget, Path directory) {
+        this(memoryBudget, diskBudget, Math.max(memoryBudget, MIN_RECORDING_BUDGET), directory);
+    }
+
+    /**
+     * @param memoryBudget    bytes of PCM kept in memory, or 0 for no memory tier.
+     * @param diskBudget      bytes of PCM kept on disk, or 0 for no disk tier.
+     * @param recordingBudget bytes of direct memory held by all recordings in progress together.
+     * @param directory       directory of the disk tier, created when the first song is written.
+     */
+    public PcmCache(long memoryBudget, long diskBudget, long recordingBudget, Path directory) {
+        this.memoryBudget = memoryBudget;
+        this.diskBudget = diskBudget;
+        this.recordingBudget = recordingBudget;
+        this.directory = directory;
+    }
+
+    /**
+     * @return a cache configured by the {@code tolafy.pcmCache.*} properties, disabled unless one of the budgets is set.
+     */
+    public static PcmCache fromProperties() {
+        long memoryBudget = Long.getLong("tolafy.pcmCache.memoryMB", 0) << 20;
+        long recordingBudget = Long.getLong("tolafy.pcmCache.recordingMB", Math.max(memoryBudget, MIN_RECORDING_BUDGET) >> 20) << 20;
+        return new PcmCache(memoryBudget, Long.getLong("tolafy.pcmCache.diskMB", 0) << 20, recordingBudget,
+                Path.of(System.getProperty("tolafy.pcmCache.dir",
+                        System.getProperty("user.home") + File.separator + ".tolafy" + File.separator + "pcm")));
+    }
+
+    /**
+     * @return True if at least one of the tiers has a budget.
+     */
+    public boolean isEnabled() {
+        return memoryBudget > 0 || diskBudget > 0;
+    }
+
+    /**
+     * Looks a song up in both tiers, counting a hit or a miss.
+     *
+     * @param song song to look up.
+     * @return the decoded frames of the song, or null on a miss.
+     */
+    public Entry get(Song song) {
+        if (!isEnabled()) return null;
+        String key = key(song);
+        String hash = hash(key);
+        Path file;
+        synchronized (this) {
+            Entry cached = memory.get(hash);
+            if (cached == null) cached = writing.get(hash);
+            if (cached != null) {
+                memoryHits.incrementAndGet();
+                return cached;
+            }
+            if (!loaded) load();
+            if (disk.get(hash) == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            file = fileOf(hash);
+        }
+        try {
+            Entry mapped = read(file, key);
+            diskHits.incrementAndGet();
+            return mapped;
+        } catch (IOException e) {
+            synchronized (this) {       // Deleted or damaged: forget it.
+                Long size = disk.remove(hash);
+                if (size != null) diskBytes -= size;
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Starts recording the decoded frames of a song.
+     *
+     * @param song song about to be decoded from its first frame.
+     * @return the recorder, or null if the cache is disabled.
+     */
+    public Recorder record(Song song) {
+        return isEnabled() ? new Recorder(key(song)) : null;
+    }
+
+    /**
+     * Waits until every song evicted from memory so far is written to the disk tier.
+     */
+    public void flush() {
+        Future<?> pending;
+        synchronized (this) {
+            pending = lastWrite;
+        }
+        try {
+            if (pending != null) pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        String hash = hash(key);
+        if (entry.getBytes() <= memoryBudget) {
+            Entry old = memory.put(hash, entry);
+            if (old != null) memoryBytes -= old.getBytes();
+            memoryBytes += entry.getBytes();
+            Iterator<Map.Entry<String, Entry>> eldest = memory.entrySet().iterator();
+            while (memoryBytes > memoryBudget) {
+                Map.Entry<String, Entry> evicted = eldest.next();
+                eldest.remove();
+                memoryBytes -= evicted.getValue().getBytes();
+                memoryEvictedBytes.addAndGet(evicted.getValue().getBytes());
+                demote(evicted.getKey(), evicted.getValue());
+            }
+        } else {
+            demote(hash, entry);
+        }
+    }
+
+    /**
+     * Writes a song to the disk tier in the background, if it fits. Called with the lock.
+     */
+    private void demote(String hash, Entry entry) {
+        long size = entry.getFileBytes();
+        if (size > diskBudget || writing.containsKey(hash)) return;
+        if (!loaded) load();
+        if (disk.containsKey(hash)) {
+            disk.get(hash);     // Already on disk: just mark it as recently used.
+            return;
+        }
+        writing.put(hash, entry);
+        lastWrite = writer().submit(() -> {
+            boolean written = false;
+            try {
+                write(entry, fileOf(hash));
+                written = true;
+            } catch (IOException e) {
+                e.printStackTrace();    // The cache is only an optimization, the song can still be decoded.
+            }
+            synchronized (this) {
+                writing.remove(hash);
+                if (written) {
+                    disk.put(hash, size);
+                    diskBytes += size;
+                    evictFromDisk();
+                }
+            }
+        });
+    }
+
+    /**
+     * Turns the samples a recording spilled to a file into a file of the disk tier, in the background.
+     *
+     * @param samples file holding the samples of every frame, in order; deleted when done.
+     */
+    private synchronized void storeSpilled(String key, int channels, int frames, long[] offsets, Path samples) {
+        String hash = hash(key);
+        long size = headerBytes(key, frames) + offsets[frames];
+        lastWrite = writer().submit(() -> {
+            boolean written = false;
+            try {
+                write(key, channels, frames, offsets, fileOf(hash), channel -> {
+                    try (FileChannel in = FileChannel.open(samples, StandardOpenOption.READ)) {
+                        for (long at = 0; at < offsets[frames]; ) at += in.transferTo(at, offsets[frames] - at, channel);
+                    }
+                });
+                written = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                deleteQuietly(samples);
+            }
+            synchronized (this) {
+                if (written) {
+                    Long old = disk.put(hash, size);
+                    if (old != null) diskBytes -= old;
+                    diskBytes += size;
+                    evictFromDisk();
+                }
+            }
+        });
+    }
+
+    private ExecutorService writer() {
+        if (writer == null) writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "pcm-cache-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        return writer;
+    }
+
+    /**
+     * Reserves a chunk of direct memory for a recording.
+     *
+     * @return False if the recordings in progress already hold the recording budget.
+     */
+    private synchronized boolean reserveChunk() {
+        if (recordingBytes + CHUNK_BYTES > recordingBudget) return false;
+        recordingBytes += CHUNK_BYTES;
+        return true;
+    }
+
+    private synchronized void releaseChunks(int chunks) {
+        recordingBytes -= (long) chunks * CHUNK_BYTES;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void evictFromDisk() {
+        Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+        while (diskBytes > diskBudget && eldest.hasNext()) {
+            Map.Entry<String, Long> evicted = eldest.next();
+            eldest.remove();
+            diskBytes -= evicted.getValue();
+            diskEvictedBytes.addAndGet(evicted.getValue());
+            try {
+                Files.deleteIfExists(fileOf(evicted.getKey()));     // Readers keep their mapping of a deleted file.
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Lists the files left by previous runs, oldest first, so they are the first evicted, and deletes the samples
+     * of recordings a previous run did not finish. Called with the lock, before any recording spills.
+     */
+    private void load() {
+        loaded = true;
+        if (diskBudget <= 0 || !Files.isDirectory(directory)) return;
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SPILL_SUFFIX)) {
+            for (Path file : stream) deleteQuietly(file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) files.add(file);
+            files.sort(Comparator.comparingLong(file -> file.toFile().lastModified()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long size = file.toFile().length();
+            disk.put(name.substring(0, name.length() - SUFFIX.length()), size);
+            diskBytes += size;
+        }
+        evictFromDisk();
+    }
+
+    private Path fileOf(String hash) {
+        return directory.resolve(hash + SUFFIX);
+    }
+
+    /**
+     * Writes a song to a file: a header with the key, the channels and the offset of every frame, followed by the
+     * samples. The file is written under another name and renamed, so a crash never leaves a partial file.
+     */
+    private static void write(Entry entry, Path file) throws IOException {
+        write(entry.key, entry.channels, entry.frames, entry.offsets, file, channel -> {
+            long remaining = entry.getBytes();
+            for (ByteBuffer chunk : entry.chunks) {
+                ByteBuffer part = chunk.duplicate().clear().limit((int) Math.min(chunk.capacity(), remaining));
+                remaining -= part.remaining();
+                while (part.hasRemaining()) channel.write(part);
+            }
+        });
+    }
+
+    /**
+     * Writes the samples of a song after the file header.
+     */
+    private interface SampleWriter {
+        void writeTo(FileChannel channel) throws IOException;
+    }
+
+    private static void write(String key, int channels, int frames, long[] offsets, Path file, SampleWriter samples) throws IOException {
+        Files.createDirectories(file.getParent());
+        Path partial = file.resolveSibling(file.getFileName() + ".part");
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(headerBytes(key, frames)).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(keyBytes.length).put(keyBytes).putInt(channels).putInt(frames);
+        for (int frame = 0; frame <= frames; frame++) header.putLong(offsets[frame]);
+        header.flip();
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE)) {
+            while (header.hasRemaining()) channel.write(header);
+            samples.writeTo(channel);
+        }
+        Files.move(partial, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int headerBytes(String key, int frames) {
+        return 4 * 4 + key.getBytes(StandardCharsets.UTF_8).length + 8 * (frames + 1);
+    }
+
+    /**
+     * Maps a file of the disk tier.
+     *
+     * @param key key the file must have been written for.
+     */
+    private static Entry read(Path file, String key) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if (mapping.getInt() != MAGIC) throw new IOException("not a PCM cache file: " + file);
+            byte[] stored = new byte[mapping.getInt()];
+            mapping.get(stored);
+            if (!key.equals(new String(stored, StandardCharsets.UTF_8))) throw new IOException("other song in " + file);
+            int channels = mapping.getInt();
+            int frames = mapping.getInt();
+            long[] offsets = new long[frames + 1];
+            for (int frame = 0; frame <= frames; frame++) offsets[frame] = mapping.getLong();
+            if (mapping.remaining() != offsets[frames]) throw new IOException("truncated PCM cache file: " + file);
+            ByteBuffer samples = mapping.slice().order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer[] chunks = new ByteBuffer[(int) ((offsets[frames] + CHUNK_BYTES - 1) >>> CHUNK_SHIFT)];
+            for (int i = 0; i < chunks.length; i++) {
+                int from = i << CHUNK_SHIFT;
+                chunks[i] = samples.slice(from, Math.min(CHUNK_BYTES, samples.capacity() - from)).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new Entry(key, chunks, offsets, frames, channels);
+        }
+    }
+
+    /**
+     * Identifies the decoded audio of a song: the same file, with the same size and modification time.
+     */
+    private static String key(Song song) {
+        String location = song.getFilePath();
+        long modified = HttpRangeSource.isUrl(location) ? 0 : new File(location).lastModified();
+        return location + '|' + song.getFileSize() + '|' + modified;
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);     // Every JVM has SHA-256.
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return bytes of songs dropped from memory to make room, whether they were written to disk or not.
+     */
+    public long getMemoryEvictedBytes() {
+        return memoryEvictedBytes.get();
+    }
+
+    /**
+     * @return bytes of files deleted from the disk tier to make room.
+     */
+    public long getDiskEvictedBytes() {
+        return diskEvictedBytes.get();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public synchronized long getDiskBytes() {
+        return diskBytes;
+    }
+
+    /**
+     * @return bytes of direct memory held by the recordings in progress.
+     */
+    public synchronized long getRecordingBytes() {
+        return recordingBytes;
+    }
+
+    /**
+     * @return number of recordings dropped because the song did not fit, or memory for them ran out; not counting
+     * recordings stopped by a seek or by closing the song early.
+     */
+    public long getAbandonedRecordings() {
+        return abandonedRecordings.get();
+    }
+
+    @Override
+    public String toString() {
+        long hits = getMemoryHits() + getDiskHits();
+        long lookups = hits + getMisses();
+        return String.format("pcm cache: hits %d (memory %d, disk %d), misses %d, hit rate %d%% | memory %d/%d MB, evicted %d MB"
+                        + " | disk %d/%d MB, evicted %d MB", hits, getMemoryHits(), getDiskHits(), getMisses(),
+                lookups == 0 ? 0 : hits * 100 / lookups, getMemoryBytes() >> 20, memoryBudget >> 20,
+                getMemoryEvictedBytes() >> 20, getDiskBytes() >> 20, diskBudget >> 20, getDiskEvictedBytes() >> 20);
+    }
+
+    /**
+     * Decoded frames of one song, as interleaved 16-bit samples, untrimmed: exactly what the decoder produced for
+     * each frame when the song was played from the start. Immutable; any number of threads may read it.
+     */
+    public static final class Entry {
+        private final String key;
+        private final ByteBuffer[] chunks;
+        private final ShortBuffer[] views;
+        private final long[] offsets;       // Byte offset of every frame, and the end of the last one.
+        private final int frames;
+        private final int channels;
+
+        private Entry(String key, ByteBuffer[] chunks, long[] offsets, int frames, int channels) {
+            this.key = key;
+            this.chunks = chunks;
+            this.offsets = offsets;
+            this.frames = frames;
+            this.channels = channels;
+            this.views = new ShortBuffer[chunks.length];
+            for (int i = 0; i < chunks.length; i++) views[i] = chunks[i].duplicate().clear().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        public int getChannels() {
+            return channels;
+        }
+
+        /**
+         * @return bytes of samples.
+         */
+        public long getBytes() {
+            return offsets[frames];
+        }
+
+        private long getFileBytes() {
+            return headerBytes(key, frames) + getBytes();
+        }
+
+        /**
+         * Copies the samples of a frame.
+         *
+         * @param frame   frame number, below {@link #getFrames()}.
+         * @param samples array of at least {@link PcmRingBuffer#MAX_FRAME_SAMPLES} samples.
+         * @return number of samples copied, all channels together.
+         */
+        public int read(int frame, short[] samples) {
+            long from = offsets[frame];
+            int length = (int) (offsets[frame + 1] - from) / 2;
+            int chunk = (int) (from >>> CHUNK_SHIFT);
+            int at = (int) (from & (CHUNK_BYTES - 1)) / 2;
+            for (int copied = 0; copied < length; chunk++, at = 0) {     // A frame may straddle two chunks.
+                int part = Math.min(length - copied, views[chunk].capacity() - at);
+                views[chunk].get(at, samples, copied, part);
+                copied += part;
+            }
+            return length;
+        }
+    }
+
+    /**
+     * Collects the frames of a song as it is decoded, in order from the first, in off-heap chunks reserved from the
+     * recording budget. Past the memory budget the chunks are written to a file as they fill, and only the last one
+     * stays in memory. Used by one thread at a time.
+     */
+    public final class Recorder {
+        private final String key;
+        private final List<ByteBuffer> chunks = new ArrayList<>();     // Each one reserved from the recording budget.
+        private ShortBuffer current;
+        private long[] offsets = new long[1024];
+        private int frames;
+        private int channels;
+        private long bytes;
+        private boolean abandoned;
+        private Path spillFile;         // Samples of the full chunks once the recording outgrew memory, or null.
+        private FileChannel spill;
+
+        private Recorder(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return number of the frame the recorder expects next.
+         */
+        public int getNextFrame() {
+            return frames;
+        }
+
+        public boolean isAbandoned() {
+            return abandoned;
+        }
+
+        /**
+         * Appends the decoded samples of the next frame. Songs too long for both tiers are abandoned, and so are
+         * recordings that cannot get the memory for another chunk.
+         *
+         * @param samples  interleaved samples.
+         * @param length   number of samples, all channels together.
+         * @param channels number of channels.
+         */
+        public void add(short[] samples, int length, int channels) {
+            if (abandoned) return;
+            long after = bytes + length * 2L;
+            if (spill == null && after > memoryBudget && !startSpilling() || spill != null && after > diskBudget) {
+                giveUp();
+                return;
+            }
+            this.channels = channels;
+            if (frames + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            try {
+                for (int copied = 0; copied < length; ) {
+                    if ((current == null || !current.hasRemaining()) && !nextChunk()) {
+                        giveUp();
+                        return;
+                    }
+                    int part = Math.min(length - copied, current.remaining());
+                    current.put(samples, copied, part);
+                    copied += part;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                giveUp();
+                return;
+            }
+            bytes += length * 2L;
+            offsets[++frames] = bytes;
+        }
+
+        /**
+         * Makes room for more samples: allocates a new chunk, or when spilling writes the full chunk to the file and
+         * reuses it. A recording that cannot get another chunk from the recording budget starts spilling early.
+         *
+         * @return False if the recording budget or the direct memory ran out.
+         */
+        private boolean nextChunk() throws IOException {
+            if (spill == null) {
+                if (reserveChunk()) return allocateChunk();
+                if (current == null || !startSpilling()) return false;
+            }
+            if (current == null) return reserveChunk() && allocateChunk();
+            ByteBuffer full = chunks.get(0).duplicate().clear();
+            while (full.hasRemaining()) spill.write(full);
+            current.clear();
+            return true;
+        }
+
+        /**
+         * Allocates a chunk already reserved from the recording budget.
+         */
+        private boolean allocateChunk() {
+            ByteBuffer chunk;
+            try {
+                chunk = ByteBuffer.allocateDirect(CHUNK_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            } catch (OutOfMemoryError e) {      // Direct memory limit of the JVM: playback goes on without the cache.
+                releaseChunks(1);
+                return false;
+            }
+            chunks.add(chunk);
+            current = chunk.asShortBuffer();
+            return true;
+        }
+
+        /**
+         * Moves the full chunks to a file in the cache directory and keeps the last one for the samples to come.
+         *
+         * @return False if there is no disk tier, or the file cannot be written.
+         */
+        private boolean startSpilling() {
+            if (diskBudget <= 0) return false;
+            try {
+                synchronized (PcmCache.this) {
+                    if (!loaded) load();    // Which deletes unfinished recordings: must not run after this one starts.
+                }
+                Files.createDirectories(directory);
+                spillFile = Files.createTempFile(directory, hash(key), SPILL_SUFFIX);
+                spill = FileChannel.open(spillFile, StandardOpenOption.WRITE);
+                while (chunks.size() > 1) {
+                    ByteBuffer full = chunks.remove(0).duplicate().clear();
+                    while (full.hasRemaining()) spill.write(full);
+                    releaseChunks(1);
+                }
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                closeSpill();
+                return false;
+            }
+        }
+
+        private void closeSpill() {
+            if (spill != null) {
+                try {
+                    spill.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (spillFile != null) deleteQuietly(spillFile);
+            spill = null;
+            spillFile = null;
+        }
+
+        /**
+         * Drops what was recorded; the song is not cached.
+         */
+        public void abandon() {
+            abandoned = true;
+            release();
+            closeSpill();
+        }
+
+        /**
+         * Abandons a recording the cache has no room for.
+         */
+        private void giveUp() {
+            abandonedRecordings.incrementAndGet();
+            abandon();
+        }
+
+        /**
+         * Gives the chunks back to the recording budget; the memory itself is freed when they are collected.
+         */
+        private void release() {
+            releaseChunks(chunks.size());
+            chunks.clear();
+            current = null;
+        }
+
+        /**
+         * Stores the recording in the cache, after the last frame of the song was added. A recording that spilled
+         * to a file goes to the disk tier in the background.
+         *
+         * @return the recorded frames, or null if the recording was abandoned or spilled.
+         */
+        public Entry finish() {
+            if (abandoned || frames == 0) return null;
+            if (spill != null) {
+                try {
+                    ByteBuffer last = chunks.get(0).duplicate().clear().limit(current.position() * 2);
+                    while (last.hasRemaining()) spill.write(last);
+                    spill.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    abandon();
+                    return null;
+                }
+                storeSpilled(key, channels, frames, Arrays.copyOf(offsets, frames + 1), spillFile);
+                spill = null;
+                spillFile = null;
+                abandoned = true;
+                release();
+                return null;
+            }
+            Entry entry = new Entry(key, chunks.toArray(new ByteBuffer[0]), Arrays.copyOf(offsets, frames + 1), frames, channels);
+            abandoned = true;
+            release();
+            put(key, entry);
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package support;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single-producer/single-consumer ring of PCM blocks. Every block is a {@code short[]} allocated
+ * once in the constructor, so steady-state playback copies samples into the ring without allocating.
+ * Each block also carries the frame it was decoded from, the seek epoch it belongs to, so the
+ * consumer can drop blocks that were decoded before a seek, and the number of the track it belongs to,
+ * so the consumer can tell where one song ends and the next begins when they share the ring.
+ * <p>
+ * Exactly one thread may call {@link #offer(short[], int, int, int, int, int)} and exactly one (other) thread may
+ * call {@link #peek()} and {@link #release()}. No locks are taken on either side.
+ */
+public class PcmRingBuffer {
+    /**
+     * Largest number of samples a single MP3 frame can decode into (1152 samples * 2 channels).
+     */
+    public static final int MAX_FRAME_SAMPLES = 2 * 1152;
+
+    private final short[][] blocks;
+    private final int[] lengths;
+    private final int[] frames;
+    private final int[] epochs;
+    private final int[] tracks;
+    private final int capacity;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private volatile boolean ended;
+
+    /**
+     * @param capacity  number of blocks in the ring.
+     * @param blockSize number of samples each block can hold.
+     */
+    public PcmRingBuffer(int capacity, int blockSize) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+        this.capacity = capacity;
+        blocks = new short[capacity][blockSize];
+        lengths = new int[capacity];
+        frames = new int[capacity];
+        epochs = new int[capacity];
+        tracks = new int[capacity];
+    }
+
+    /**
+     * Creates a ring deep enough to hold the specified amount of audio.
+     *
+     * @param depthMs    desired depth of the ring in milliseconds.
+     * @param msPerFrame number of milliseconds per MP3 frame of the song being played.
+     * @return a ring holding at least two frames.
+     */
+    public static PcmRingBuffer forDuration(int depthMs, float msPerFrame) {
+        int capacity = msPerFrame > 0 ? (int) Math.ceil(depthMs / msPerFrame) : 1;
+        return new PcmRingBuffer(Math.max(2, capacity), MAX_FRAME_SAMPLES);
+    }
+
+    /**
+     * Copies the specified samples into the next free block, as part of track 0. Producer side only.
+     *
+     * @param samples samples to copy.
+     * @param length  number of samples to copy.
+     * @param frame   frame the samples were decoded from.
+     * @param epoch   seek epoch the samples belong to.
+     * @return false if the ring is full.
+     */
+    public boolean offer(short[] samples, int length, int frame, int epoch) {
+        return offer(samples, 0, length, frame, epoch, 0);
+    }
+
+    /**
+     * Copies the specified samples into the next free block. Producer side only.
+     *
+     * @param samples samples to copy.
+     * @param offset  position of the first sample to copy.
+     * @param length  number of samples to copy.
+     * @param frame   frame the samples were decoded from.
+     * @param epoch   seek epoch the samples belong to.
+     * @param track   number of the track the samples belong to.
+     * @return false if the ring is full.
+     */
+    public boolean offer(short[] samples, int offset, int length, int frame, int epoch, int track) {
+        long h = head.get();
+        if (h - tail.get() == capacity) return false;
+        int slot = (int) (h % capacity);
+        System.arraycopy(samples, offset, blocks[slot], 0, length);
+        lengths[slot] = length;
+        frames[slot] = frame;
+        epochs[slot] = epoch;
+        tracks[slot] = track;
+        head.lazySet(h + 1);
+        return true;
+    }
+
+    /**
+     * Returns the slot of the oldest block in the ring without removing it. Consumer side only.
+     *
+     * @return slot of the oldest block, or -1 if the ring is empty.
+     */
+    public int peek() {
+        long t = tail.get();
+        if (t == head.get()) return -1;
+        return (int) (t % capacity);
+    }
+
+    /**
+     * Frees the block returned by the last call to {@link #peek()}. Consumer side only.
+     */
+    public void release() {
+        tail.lazySet(tail.get() + 1);
+    }
+
+    public short[] samples(int slot) {
+        return blocks[slot];
+    }
+
+    public int length(int slot) {
+        return lengths[slot];
+    }
+
+    public int frame(int slot) {
+        return frames[slot];
+    }
+
+    public int epoch(int slot) {
+        return epochs[slot];
+    }
+
+    public int track(int slot) {
+        return tracks[slot];
+    }
+
+    /**
+     * @return True if the producer can add another block.
+     */
+    public boolean hasSpace() {
+        return head.get() - tail.get() < capacity;
+    }
+
+    /**
+     * @return the number of blocks waiting to be consumed.
+     */
+    public int size() {
+        return (int) (head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Signals that the producer reached the end of the stream (or clears that signal after a seek).
+     *
+     * @param ended True if no more blocks will be offered.
+     */
+    public void setEnded(boolean ended) {
+        this.ended = ended;
+    }
+
+    /**
+     * @return True if the producer reached the end of the stream.
+     */
+    public boolean isEnded() {
+        return ended;
+    }
+}
@@ -0,0 +1,362 @@
+package support;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Telemetry of the playback pipeline: the decoder, which turns MP3 frames into PCM, and the output, which writes
+ * PCM to the audio device. Comparing both sides shows which one is stalling. Also tracks the start latency (the
+ * time from the request to play a song to its first sample being written to the device), the seek latency and
+ * the time taken by the player commands, and the hits and evictions of the {@link PcmCache} and the hits of the {@link Prefetcher}.
+ * <p>
+ * Durations go to {@link LatencyHistogram}s, so recording is lock-free and allocates nothing. The metrics can be
+ * watched through JMX ({@link #register(String)}) or dumped as text at a fixed interval ({@link #dumpEvery}).
+ * Recording is only done when {@link #ENABLED}; callers check it first, so disabled metrics cost nothing.
+ * All methods are thread safe.
+ */
+public class PlaybackMetrics implements PlaybackMetricsMBean {
+    /**
+     * True if the metrics are recorded, set with {@code -Dtolafy.metrics=true}.
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("tolafy.metrics");
+
+    /**
+     * @return milliseconds since the JVM was started, or -1 if the platform does not tell.
+     */
+    public static long millisSinceProcessStart() {
+        return ProcessHandle.current().info().startInstant()
+                .map(start -> Duration.between(start, Instant.now()).toMillis()).orElse(-1L);
+    }
+
+    private final LatencyHistogram decode = new LatencyHistogram();
+    private final LatencyHistogram write = new LatencyHistogram();
+    private final LatencyHistogram seek = new LatencyHistogram();
+    private final LatencyHistogram start = new LatencyHistogram();
+    private final LatencyHistogram command = new LatencyHistogram();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong underruns = new AtomicLong();
+    private final AtomicLong lastStartNanos = new AtomicLong();
+    private volatile AudioOutput output;
+    private volatile PcmCache cache;
+    private volatile Prefetcher prefetcher;
+
+    /**
+     * @param nanos time spent reading and decoding one frame.
+     */
+    public void recordDecode(long nanos) {
+        decode.record(nanos);
+    }
+
+    /**
+     * @param nanos time spent writing one frame to the audio device.
+     */
+    public void recordWrite(long nanos) {
+        write.record(nanos);
+    }
+
+    /**
+     * Records a decoded frame that was dropped instead of played, because it was decoded before a seek.
+     */
+    public void recordSkipped() {
+        skippedFrames.incrementAndGet();
+    }
+
+    /**
+     * Records that the output found no decoded audio waiting while playing.
+     */
+    public void recordUnderrun() {
+        underruns.incrementAndGet();
+    }
+
+    /**
+     * @param nanos time from the request to play a song to its first sample written to the device.
+     */
+    public void recordStart(long nanos) {
+        start.record(nanos);
+        lastStartNanos.set(nanos);
+    }
+
+    /**
+     * @param nanos time from the end of a scrub to the decoder being repositioned.
+     */
+    public void recordSeek(long nanos) {
+        seek.record(nanos);
+    }
+
+    /**
+     * @param nanos time spent executing one player command.
+     */
+    public void recordCommand(long nanos) {
+        command.record(nanos);
+    }
+
+    /**
+     * Includes the underruns and the latency of an output in the metrics.
+     *
+     * @param output output the audio is written to.
+     */
+    public void watch(AudioOutput output) {
+        this.output = output;
+    }
+
+    /**
+     * Includes the hits, misses and evictions of a cache of decoded songs in the metrics.
+     *
+     * @param cache cache the songs are read from.
+     */
+    public void watch(PcmCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Includes the songs the prefetcher had ready, or not, when they were played.
+     *
+     * @param prefetcher prefetcher of the songs next to the current one.
+     */
+    public void watch(Prefetcher prefetcher) {
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Registers the metrics in the platform MBean server as {@code tolafy:type=PlaybackMetrics,name=<name>}.
+     *
+     * @param name name telling these metrics apart from others in the same JVM.
+     */
+    public void register(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("tolafy:type=PlaybackMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot register metrics " + name, e);
+        }
+    }
+
+    /**
+     * Removes the metrics registered with {@link #register(String)} from the platform MBean server.
+     *
+     * @param name name the metrics were registered with.
+     */
+    public void unregister(String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+                    new ObjectName("tolafy:type=PlaybackMetrics,name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            throw new IllegalStateException("cannot unregister metrics " + name, e);
+        }
+    }
+
+    /**
+     * Prints the report at a fixed interval from a daemon thread.
+     *
+     * @param interval time between reports.
+     * @param unit     unit of the interval.
+     * @param out      stream the reports are printed to.
+     * @return the scheduler, to stop the reports with {@code shutdown()}.
+     */
+    public ScheduledExecutorService dumpEvery(long interval, TimeUnit unit, PrintStream out) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "playback-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(() -> out.println(getReport()), interval, interval, unit);
+        return scheduler;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : new LatencyHistogram[]{decode, write, seek, start, command}) histogram.reset();
+        skippedFrames.set(0);
+        underruns.set(0);
+        lastStartNanos.set(0);
+    }
+
+    @Override
+    public long getDecodedFrames() {
+        return decode.getCount();
+    }
+
+    @Override
+    public long getWrittenFrames() {
+        return write.getCount();
+    }
+
+    @Override
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    @Override
+    public long getUnderruns() {
+        return underruns.get();
+    }
+
+    /**
+     * @return times the audio device ran out of audio, or 0 if no output is watched.
+     */
+    @Override
+    public long getDeviceUnderruns() {
+        AudioOutput watched = output;
+        return watched == null ? 0 : watched.getLatency().getUnderruns();
+    }
+
+    @Override
+    public int getOutputLatencyMs() {
+        AudioOutput watched = output;
+        return watched == null ? 0 : watched.getLatencyMs();
+    }
+
+    /**
+     * @return average time spent decoding one frame, in nanoseconds.
+     */
+    @Override
+    public long getAverageDecodeNanos() {
+        return decode.getMean();
+    }
+
+    @Override
+    public long getDecodeP99Nanos() {
+        return decode.getPercentile(99);
+    }
+
+    @Override
+    public long getMaxDecodeNanos() {
+        return decode.getMax();
+    }
+
+    /**
+     * @return average time spent writing one frame, in nanoseconds.
+     */
+    @Override
+    public long getAverageWriteNanos() {
+        return write.getMean();
+    }
+
+    @Override
+    public long getWriteP99Nanos() {
+        return write.getPercentile(99);
+    }
+
+    @Override
+    public long getMaxWriteNanos() {
+        return write.getMax();
+    }
+
+    @Override
+    public long getSeeks() {
+        return seek.getCount();
+    }
+
+    @Override
+    public long getSeekP50Nanos() {
+        return seek.getPercentile(50);
+    }
+
+    @Override
+    public long getMaxSeekNanos() {
+        return seek.getMax();
+    }
+
+    @Override
+    public long getStarts() {
+        return start.getCount();
+    }
+
+    public long getLastStartNanos() {
+        return lastStartNanos.get();
+    }
+
+    @Override
+    public long getStartP50Nanos() {
+        return start.getPercentile(50);
+    }
+
+    @Override
+    public long getMaxStartNanos() {
+        return start.getMax();
+    }
+
+    /**
+     * @return average start latency, in nanoseconds.
+     */
+    public long getAverageStartNanos() {
+        return start.getMean();
+    }
+
+    @Override
+    public long getCommandP99Nanos() {
+        return command.getPercentile(99);
+    }
+
+    /**
+     * @return songs found in the memory or disk tier of the cache, or 0 if no cache is watched.
+     */
+    @Override
+    public long getCacheHits() {
+        PcmCache watched = cache;
+        return watched == null ? 0 : watched.getMemoryHits() + watched.getDiskHits();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        PcmCache watched = cache;
+        return watched == null ? 0 : watched.getMisses();
+    }
+
+    @Override
+    public long getCacheMemoryEvictedBytes() {
+        PcmCache watched = cache;
+        return watched == null ? 0 : watched.getMemoryEvictedBytes();
+    }
+
+    @Override
+    public long getCacheDiskEvictedBytes() {
+        PcmCache watched = cache;
+        return watched == null ? 0 : watched.getDiskEvictedBytes();
+    }
+
+    /**
+     * @return songs played from a track the prefetcher had ready, or 0 if no prefetcher is watched.
+     */
+    @Override
+    public long getPrefetchHits() {
+        Prefetcher watched = prefetcher;
+        return watched == null ? 0 : watched.getHits();
+    }
+
+    @Override
+    public long getPrefetchMisses() {
+        Prefetcher watched = prefetcher;
+        return watched == null ? 0 : watched.getMisses();
+    }
+
+    @Override
+    public String getReport() {
+        return toString();
+    }
+
+    @Override
+    public String toString() {
+        PcmCache watched = cache;
+        Prefetcher prefetching = prefetcher;
+        String report = String.format("decode: %d frames, avg %d us, p99 %d us, max %d us | write: %d frames, avg %d us, p99 %d us, max %d us"
+                        + " | skipped: %d | underruns: %d, device %d | latency: %d ms"
+                        + " | seek: %d, p50 %d ms, max %d ms | start: %d, last %d ms, p50 %d ms, max %d ms | commands: %d, p99 %d ms",
+                getDecodedFrames(), getAverageDecodeNanos() / 1000, getDecodeP99Nanos() / 1000, getMaxDecodeNanos() / 1000,
+                getWrittenFrames(), getAverageWriteNanos() / 1000, getWriteP99Nanos() / 1000, getMaxWriteNanos() / 1000,
+                getSkippedFrames(), getUnderruns(), getDeviceUnderruns(), getOutputLatencyMs(),
+                getSeeks(), getSeekP50Nanos() / 1_000_000, getMaxSeekNanos() / 1_000_000,
+                getStarts(), getLastStartNanos() / 1_000_000, getStartP50Nanos() / 1_000_000, getMaxStartNanos() / 1_000_000,
+                command.getCount(), getCommandP99Nanos() / 1_000_000);
+        if (prefetching != null) report += " | " + prefetching;
+        return watched == null || !watched.isEnabled() ? report : report + " | " + watched;
+    }
+}
@@ -0,0 +1,67 @@
+package support;
+
+/**
+ * Management interface of {@link PlaybackMetrics}, shown by JMX consoles such as JConsole under
+ * {@code tolafy:type=PlaybackMetrics}. Durations are in nanoseconds.
+ */
+public interface PlaybackMetricsMBean {
+    long getDecodedFrames();
+
+    long getWrittenFrames();
+
+    long getSkippedFrames();
+
+    long getUnderruns();
+
+    long getDeviceUnderruns();
+
+    int getOutputLatencyMs();
+
+    long getAverageDecodeNanos();
+
+    long getDecodeP99Nanos();
+
+    long getMaxDecodeNanos();
+
+    long getAverageWriteNanos();
+
+    long getWriteP99Nanos();
+
+    long getMaxWriteNanos();
+
+    long getSeeks();
+
+    long getSeekP50Nanos();
+
+    long getMaxSeekNanos();
+
+    long getStarts();
+
+    long getStartP50Nanos();
+
+    long getMaxStartNanos();
+
+    long getCommandP99Nanos();
+
+    long getCacheHits();
+
+    long getCacheMisses();
+
+    long getCacheMemoryEvictedBytes();
+
+    long getCacheDiskEvictedBytes();
+
+    long getPrefetchHits();
+
+    long getPrefetchMisses();
+
+    /**
+     * @return every metric in one line of text.
+     */
+    String getReport();
+
+    /**
+     * Forgets every recorded value.
+     */
+    void reset();
+}
@@ -0,0 +1,129 @@
+package support;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads and caches shared by every playback session of the JVM, so dozens of sessions (rooms, streams) can
+ * play side by side without a set of threads each:
+ * <ul>
+ * <li>decoding runs in short steps on a fixed pool of {@code -Dtolafy.decodeThreads} threads, one per processor
+ * by default. A step decodes until the buffer of its session is full and gives the thread back, and a paused
+ * session holds no thread at all.</li>
+ * <li>the output loops, which block on their devices, run on a pool of reused threads that grows with the number
+ * of sessions playing at once.</li>
+ * <li>the player commands and the opening of the next songs run on a small pool of their own, so a burst of
+ * commands from many sessions queues up instead of starting a thread each.</li>
+ * <li>the {@link Prefetcher}s of all sessions take turns on one thread, which only decodes while a decoding
+ * thread is idle.</li>
+ * <li>decoded songs are shared through one {@link PcmCache}.</li>
+ * </ul>
+ * Frame indexes ({@link FrameIndex#of(Song)}) and parsed metadata ({@link MetadataCache#getDefault()}) are
+ * already kept per file for the whole JVM, so sessions playing the same songs share them as well.
+ * <p>
+ * All threads are daemons. All methods are thread safe.
+ */
+public class PlaybackRuntime {
+    private final ScheduledThreadPoolExecutor decoders;
+    private final ExecutorService workers;
+    private final ThreadPoolExecutor tasks;
+    private final ScheduledExecutorService prefetching = Prefetcher.newWorker();
+    private final PcmCache cache;
+    private final int decodeThreads;
+
+    /**
+     * @param decodeThreads number of threads decoding for all sessions. Commands get as many, at least 4.
+     * @param cache         cache of decoded songs shared by the sessions.
+     */
+    public PlaybackRuntime(int decodeThreads, PcmCache cache) {
+        this.decodeThreads = decodeThreads;
+        this.decoders = new ScheduledThreadPoolExecutor(decodeThreads, daemons("decoder"));
+        this.workers = Executors.newCachedThreadPool(daemons("playback-worker"));
+        int taskThreads = Math.max(4, decodeThreads);
+        this.tasks = new ThreadPoolExecutor(taskThreads, taskThreads, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), daemons("playback-task"));
+        tasks.allowCoreThreadTimeOut(true);
+        this.cache = cache;
+    }
+
+    private static final class DefaultHolder {
+        static final PlaybackRuntime INSTANCE = new PlaybackRuntime(
+                Integer.getInteger("tolafy.decodeThreads", Runtime.getRuntime().availableProcessors()), PcmCache.fromProperties());
+    }
+
+    /**
+     * @return the runtime shared by the whole application.
+     */
+    public static PlaybackRuntime getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * @return pool running the decoding steps; tasks on it must not block.
+     */
+    public ScheduledExecutorService getDecoders() {
+        return decoders;
+    }
+
+    /**
+     * @return pool running the output loops, which block for as long as their song plays.
+     */
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return bounded pool running the commands and other short tasks of the sessions, which may block briefly.
+     */
+    public ExecutorService getTasks() {
+        return tasks;
+    }
+
+    /**
+     * @return True if every decoding thread is running a step, so background work would slow playback down.
+     */
+    public boolean isDecoding() {
+        return decoders.getActiveCount() >= decodeThreads;
+    }
+
+    /**
+     * @return executor shared by the prefetchers of the sessions, and by their periodic metrics reports, on one
+     * low-priority thread; see {@link #isDecoding()}.
+     */
+    public ScheduledExecutorService getPrefetching() {
+        return prefetching;
+    }
+
+    public PcmCache getCache() {
+        return cache;
+    }
+
+    public int getDecodeThreads() {
+        return decodeThreads;
+    }
+
+    /**
+     * Stops the threads. Sessions using the runtime stop playing.
+     */
+    public void shutdown() {
+        decoders.shutdownNow();
+        workers.shutdownNow();
+        tasks.shutdownNow();
+        prefetching.shutdownNow();
+    }
+
+    private static ThreadFactory daemons(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
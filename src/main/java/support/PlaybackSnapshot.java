@@ -0,0 +1,17 @@
+package support;
+
+/**
+ * Immutable state of the mini player at one instant, built by the playback thread and painted on the Event
+ * Dispatch Thread by a {@link UiPublisher}. Two equal snapshots paint the same thing, so only changes are painted.
+ *
+ * @param currentTime     position in the song, in milliseconds.
+ * @param totalTime       length of the song, in milliseconds.
+ * @param paused          True if playback is paused (the button shows "play").
+ * @param nextEnabled     True if there is a song after the current one.
+ * @param previousEnabled True if there is a song before the current one.
+ * @param loopEnabled     True if the loop button can be used.
+ * @param shuffleEnabled  True if the shuffle button can be used.
+ */
+public record PlaybackSnapshot(int currentTime, int totalTime, boolean paused, boolean nextEnabled,
+                               boolean previousEnabled, boolean loopEnabled, boolean shuffleEnabled) {
+}
@@ -0,0 +1,25 @@
+package support;
+
+/**
+ * States of the playback engine.
+ *
+ * @see PlaybackStateMachine
+ */
+public enum PlaybackState {
+    /**
+     * Nothing is playing. Playback threads should finish.
+     */
+    STOPPED,
+    /**
+     * Audio is being decoded and written to the device.
+     */
+    PLAYING,
+    /**
+     * Playback threads are parked until the user resumes, stops or seeks.
+     */
+    PAUSED,
+    /**
+     * The bitstream is being repositioned. Playback threads are parked until the seek finishes.
+     */
+    SEEKING
+}
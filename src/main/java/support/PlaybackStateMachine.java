@@ -0,0 +1,159 @@
+package support;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the {@link PlaybackState} shared between the UI and the playback threads. Every transition is atomic,
+ * and threads that must not run while playback is paused or seeking can block in {@link #awaitRunnable()}
+ * instead of polling a flag. Waiting threads are woken up only when the state changes. Tasks on a shared pool,
+ * which must not hold a thread while waiting, register a continuation with {@link #whenRunnable(Runnable)} instead.
+ *
+ * @see PlaybackState
+ */
+public class PlaybackStateMachine {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Runnable> waiting = new ArrayList<>();     // Guarded by lock.
+    private volatile PlaybackState state = PlaybackState.STOPPED;
+
+    /**
+     * @return the current state.
+     */
+    public PlaybackState get() {
+        return state;
+    }
+
+    /**
+     * Unconditionally moves to the specified state and wakes up waiting threads.
+     *
+     * @param newState state to move to.
+     * @return the previous state.
+     */
+    public PlaybackState set(PlaybackState newState) {
+        PlaybackState previous;
+        lock.lock();
+        try {
+            previous = state;
+            state = newState;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        runWaiting();
+        return previous;
+    }
+
+    /**
+     * Moves to the specified state only if the current state is the expected one.
+     *
+     * @param expected state the machine must be in.
+     * @param newState state to move to.
+     * @return True if the transition happened.
+     */
+    public boolean compareAndSet(PlaybackState expected, PlaybackState newState) {
+        lock.lock();
+        try {
+            if (state != expected) return false;
+            state = newState;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        runWaiting();
+        return true;
+    }
+
+    /**
+     * Switches between {@link PlaybackState#PLAYING} and {@link PlaybackState#PAUSED}.
+     * Has no effect in any other state.
+     *
+     * @return the state after the call.
+     */
+    public PlaybackState togglePause() {
+        PlaybackState now;
+        lock.lock();
+        try {
+            if (state == PlaybackState.PLAYING) state = PlaybackState.PAUSED;
+            else if (state == PlaybackState.PAUSED) state = PlaybackState.PLAYING;
+            changed.signalAll();
+            now = state;
+        } finally {
+            lock.unlock();
+        }
+        runWaiting();
+        return now;
+    }
+
+    /**
+     * Moves to {@link PlaybackState#SEEKING} if currently playing or paused.
+     *
+     * @return the state to restore with {@link #compareAndSet(PlaybackState, PlaybackState)} once the seek is done,
+     * or null if there is nothing to seek.
+     */
+    public PlaybackState beginSeek() {
+        lock.lock();
+        try {
+            PlaybackState previous = state;
+            if (previous != PlaybackState.PLAYING && previous != PlaybackState.PAUSED) return null;
+            state = PlaybackState.SEEKING;
+            changed.signalAll();
+            return previous;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks the calling thread while the state is {@link PlaybackState#PAUSED} or {@link PlaybackState#SEEKING}.
+     * Returns immediately in any other state.
+     *
+     * @return the state that woke the thread up: {@link PlaybackState#PLAYING} or {@link PlaybackState#STOPPED}.
+     */
+    public PlaybackState awaitRunnable() {
+        PlaybackState current = state;
+        if (current == PlaybackState.PLAYING || current == PlaybackState.STOPPED) return current;
+        lock.lock();
+        try {
+            while (state == PlaybackState.PAUSED || state == PlaybackState.SEEKING) changed.awaitUninterruptibly();
+            return state;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Non-blocking form of {@link #awaitRunnable()}: runs an action as soon as the state is
+     * {@link PlaybackState#PLAYING} or {@link PlaybackState#STOPPED}, right away if it already is, and otherwise on
+     * the thread that changes the state. The action must be short, such as submitting a task to a pool.
+     *
+     * @param action action to run; it reads the state itself to tell playing from stopped.
+     */
+    public void whenRunnable(Runnable action) {
+        lock.lock();
+        try {
+            if (state == PlaybackState.PAUSED || state == PlaybackState.SEEKING) {
+                waiting.add(action);
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        action.run();
+    }
+
+    private void runWaiting() {
+        List<Runnable> ready;
+        lock.lock();
+        try {
+            if (waiting.isEmpty() || state == PlaybackState.PAUSED || state == PlaybackState.SEEKING) return;
+            ready = new ArrayList<>(waiting);
+            waiting.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (Runnable action : ready) action.run();
+    }
+}
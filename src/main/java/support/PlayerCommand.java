@@ -0,0 +1,74 @@
+package support;
+
+/**
+ * Request from the user (or from the end of a song) to change what the player is doing. Commands are executed
+ * one at a time, in order, by a {@link CommandQueue}, so track changes never race each other.
+ * <p>
+ * Bursts collapse with {@link #collapse(PlayerCommand, PlayerCommand)}: ten quick clicks on "next" become a single
+ * {@link Skip} of ten songs, so only the final song is opened.
+ */
+public sealed interface PlayerCommand {
+    /**
+     * Plays the song at an index of the playlist.
+     */
+    record PlayAt(int index) implements PlayerCommand {
+    }
+
+    /**
+     * Moves a number of songs forward (positive) or backward (negative) and plays the song reached.
+     */
+    record Skip(int steps) implements PlayerCommand {
+    }
+
+    /**
+     * Adds a song to the end of the playlist.
+     */
+    record Add(Song song) implements PlayerCommand {
+    }
+
+    /**
+     * Removes the song at an index of the playlist.
+     */
+    record Remove(int index) implements PlayerCommand {
+    }
+
+    /**
+     * Stops playback.
+     */
+    record Stop() implements PlayerCommand {
+    }
+
+    /**
+     * Sent when a song played to its end. Only advances if the song identified by {@code playback} is still
+     * playing, so it does nothing if the user changed songs in the meantime.
+     */
+    record SongEnded(Object playback) implements PlayerCommand {
+    }
+
+    static PlayerCommand next() {
+        return new Skip(1);
+    }
+
+    static PlayerCommand previous() {
+        return new Skip(-1);
+    }
+
+    /**
+     * Merges two consecutive commands into one with the same result, if possible.
+     * Consecutive skips in the same direction add up, a jump to an index supersedes any track change or stop
+     * before it, and consecutive stops are one stop. Adds, removes and the end of a song are never merged, so no
+     * update is lost.
+     *
+     * @param first  command submitted first.
+     * @param second command submitted right after it.
+     * @return the merged command, or null if both must be executed.
+     */
+    static PlayerCommand collapse(PlayerCommand first, PlayerCommand second) {
+        if (first instanceof Skip a && second instanceof Skip b && Integer.signum(a.steps()) == Integer.signum(b.steps()))
+            return new Skip(a.steps() + b.steps());
+        if (second instanceof PlayAt && (first instanceof Skip || first instanceof PlayAt || first instanceof Stop))
+            return second;
+        if (first instanceof Stop && second instanceof Stop) return second;
+        return null;
+    }
+}
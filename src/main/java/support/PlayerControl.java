@@ -0,0 +1,69 @@
+package support;
+
+import java.io.File;
+
+/**
+ * What a front end can ask the playback engine to do. Every method can be called from any thread and returns
+ * quickly; changes of song are queued and executed in order by the engine.
+ *
+ * @see PlayerView
+ */
+public interface PlayerControl {
+    /**
+     * @param index position in the queue of the song to play.
+     */
+    void play(int index);
+
+    void togglePause();
+
+    void stop();
+
+    void next();
+
+    void previous();
+
+    /**
+     * @param song song to add to the end of the queue.
+     */
+    void enqueue(Song song);
+
+    /**
+     * @param index position in the queue of the song to remove.
+     */
+    void remove(int index);
+
+    /**
+     * Adds every MP3 under a folder to the queue, in the background.
+     *
+     * @param folder folder to import.
+     */
+    void importFolder(File folder);
+
+    /**
+     * @return True if a folder import was running and is now cancelled.
+     */
+    boolean cancelImport();
+
+    void toggleShuffle();
+
+    void toggleLoop();
+
+    /**
+     * Shows a position while the user is choosing it, without moving playback yet.
+     *
+     * @param ms position in the current song, in milliseconds.
+     */
+    void scrub(int ms);
+
+    /**
+     * Moves playback of the current song to a position.
+     *
+     * @param ms position in the current song, in milliseconds.
+     */
+    void seek(int ms);
+
+    /**
+     * @return one line describing the state, the current song and the position.
+     */
+    String status();
+}
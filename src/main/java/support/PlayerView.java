@@ -0,0 +1,71 @@
+package support;
+
+import java.util.List;
+
+/**
+ * What the playback engine tells its front end. The engine calls these methods from its own threads (the playback
+ * threads included), so implementations must not block; a Swing front end hands the updates to the Event Dispatch
+ * Thread, a headless one keeps the latest state for status queries.
+ *
+ * @see PlayerControl
+ * @see SwingPlayerView
+ * @see HeadlessView
+ */
+public interface PlayerView {
+    /**
+     * Called very often (up to once per frame) with the state of the mini player.
+     *
+     * @param snapshot current state.
+     */
+    void showState(PlaybackSnapshot snapshot);
+
+    /**
+     * @return True if a state passed to {@link #showState(PlaybackSnapshot)} is still waiting to be shown, so the
+     *         engine can skip building a new one.
+     */
+    default boolean isStatePending() {
+        return false;
+    }
+
+    /**
+     * @param song song that started playing.
+     */
+    void showSong(Song song);
+
+    /**
+     * Called when the first sample of a song the user asked for was written to the device.
+     *
+     * @param song          song that is now heard.
+     * @param latencyNanos  time from the request to play it to its first sample.
+     */
+    default void audioStarted(Song song, long latencyNanos) {
+    }
+
+    void showStopped();
+
+    void showPaused(boolean paused);
+
+    /**
+     * @param songs songs added to the end of the queue.
+     */
+    void showAdded(List<Song> songs);
+
+    /**
+     * @param index position of the song removed from the queue.
+     */
+    void showRemoved(int index);
+
+    /**
+     * @param songs whole queue, after a change of every position (shuffle).
+     */
+    void showQueue(List<Song> songs);
+
+    /**
+     * @param enabled True if the queue has songs to loop and shuffle.
+     */
+    void showQueueControls(boolean enabled);
+
+    void showImporting(boolean importing);
+
+    void showImportProgress(String progress);
+}
@@ -1,35 +1,54 @@
 package support;
 
+import com.formdev.flatlaf.FlatLaf;
 import com.formdev.flatlaf.FlatLightLaf;
-import com.mpatric.mp3agic.*;
 
 import javax.swing.*;
 import javax.swing.event.MouseInputAdapter;
 import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.DefaultTableCellRenderer;
-import javax.swing.table.DefaultTableModel;
 import java.awt.*;
 import java.awt.event.ActionListener;
+import java.awt.image.FilteredImageSource;
+import java.awt.image.ImageFilter;
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.Duration;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 @SuppressWarnings("FieldCanBeLocal")
 public class PlayerWindow extends Component {
-    private final String[] COLUMN_TITLES = new String[]{"Title", "Album", "Artist", "Year", "Length", "Path"};
     public final int BUTTON_ICON_PLAY = 0;
     public final int BUTTON_ICON_PAUSE = 1;
 
+    private static final int ICON_SIZE = 24;
+    private static final String[] ICON_NAMES = {"next", "pause", "play", "previous", "loop", "shuffle", "stop"};
+    private static final String[] FONT_KEYS = {"Button.font", "ToggleButton.font", "RadioButton.font", "CheckBox.font",
+            "ColorChooser.font", "ComboBox.font", "Label.font", "List.font", "MenuBar.font", "MenuItem.font",
+            "RadioButtonMenuItem.font", "CheckBoxMenuItem.font", "Menu.font", "PopupMenu.font", "OptionPane.font",
+            "Panel.font", "ProgressBar.font", "ScrollPane.font", "Viewport.font", "TabbedPane.font", "Table.font",
+            "TableHeader.font", "TextField.font", "FormattedTextField.font", "PasswordField.font", "TextArea.font",
+            "TextPane.font", "EditorPane.font", "TitledBorder.font", "ToolBar.font", "ToolTip.font", "Tree.font"};
+    // On a single core the parts would only compete with each other, so they run in turn on the calling thread.
+    private static final Executor PREPARATION = Runtime.getRuntime().availableProcessors() > 1
+            ? PlayerWindow::startDaemon : Runnable::run;
+    private static CompletableFuture<Void> prepared;
+
     private final JFrame window = new JFrame();
     private final JPanel queuePanel;
     private final JTable queueList;
+    private final QueueTableModel queueModel = new QueueTableModel();
     private final JButton playNowButton;
     private final JButton removeSongButton;
     private final JButton addSongButton;
+    private final JButton addFolderButton;
+    private final JLabel importProgressLabel;
 
     private final JPanel miniPlayerPanel;
     private final JLabel miniPlayerSongInfo;
@@ -43,20 +62,22 @@ public class PlayerWindow extends Component {
     private final JButton miniPlayerNextButton;
     private final JToggleButton miniPlayerLoopButton;
 
-    private final ImageIcon iconNext;
-    private final ImageIcon iconPause;
-    private final ImageIcon iconPlay;
-    private final ImageIcon iconPrevious;
-    private final ImageIcon iconLoop;
-    private final ImageIcon iconShuffle;
-    private final ImageIcon iconStop;
+    private final Icon iconNext;
+    private final Icon iconPause;
+    private final Icon iconPlay;
+    private final Icon iconPrevious;
+    private final Icon iconLoop;
+    private final Icon iconShuffle;
+    private final Icon iconStop;
+    private Runnable firstPaintListener;
 
     /**
      * @param windowTitle               String to be used as the window title.
-     * @param queueArray                String[][] with the queue. The array should contain in each position one array
+     * @param queue                     Songs initially in the queue.
      * @param buttonListenerPlayNow     ActionListener for the "Play Now" button.
      * @param buttonListenerRemove      ActionListener for the "Remove" button.
      * @param buttonListenerAddSong     ActionListener for the "Add Song" button.
+     * @param buttonListenerAddFolder   ActionListener for the "Add folder" button.
      * @param buttonListenerShuffle     ActionListener for the "Shuffle" button.
      * @param buttonListenerPrevious    ActionListener for the "Previous" button.
      * @param buttonListenerPlayPause   ActionListener for the "Play/Pause" button.
@@ -67,10 +88,11 @@ public class PlayerWindow extends Component {
      */
     public PlayerWindow(
             String windowTitle,
-            String[][] queueArray,
+            List<Song> queue,
             ActionListener buttonListenerPlayNow,
             ActionListener buttonListenerRemove,
             ActionListener buttonListenerAddSong,
+            ActionListener buttonListenerAddFolder,
             ActionListener buttonListenerShuffle,
             ActionListener buttonListenerPrevious,
             ActionListener buttonListenerPlayPause,
@@ -79,51 +101,17 @@ public class PlayerWindow extends Component {
             ActionListener buttonListenerLoop,
             MouseInputAdapter scrubberMouseInputAdapter) {
 
-        // Setting theme and typeface.
-        try {
-            UIManager.setLookAndFeel(new FlatLightLaf());
-
-            Font baseFont = Fonts.getRoboto();
-            Font finalFont = baseFont.deriveFont(Font.PLAIN, 14);
-            GraphicsEnvironment.getLocalGraphicsEnvironment().registerFont(finalFont);
-
-            UIManager.put("Button.font", finalFont);
-            UIManager.put("ToggleButton.font", finalFont);
-            UIManager.put("RadioButton.font", finalFont);
-            UIManager.put("CheckBox.font", finalFont);
-            UIManager.put("ColorChooser.font", finalFont);
-            UIManager.put("ComboBox.font", finalFont);
-            UIManager.put("Label.font", finalFont);
-            UIManager.put("List.font", finalFont);
-            UIManager.put("MenuBar.font", finalFont);
-            UIManager.put("MenuItem.font", finalFont);
-            UIManager.put("RadioButtonMenuItem.font", finalFont);
-            UIManager.put("CheckBoxMenuItem.font", finalFont);
-            UIManager.put("Menu.font", finalFont);
-            UIManager.put("PopupMenu.font", finalFont);
-            UIManager.put("OptionPane.font", finalFont);
-            UIManager.put("Panel.font", finalFont);
-            UIManager.put("ProgressBar.font", finalFont);
-            UIManager.put("ScrollPane.font", finalFont);
-            UIManager.put("Viewport.font", finalFont);
-            UIManager.put("TabbedPane.font", finalFont);
-            UIManager.put("Table.font", finalFont);
-            UIManager.put("TableHeader.font", finalFont);
-            UIManager.put("TextField.font", finalFont);
-            UIManager.put("FormattedTextField.font", finalFont);
-            UIManager.put("PasswordField.font", finalFont);
-            UIManager.put("TextArea.font", finalFont);
-            UIManager.put("TextPane.font", finalFont);
-            UIManager.put("EditorPane.font", finalFont);
-            UIManager.put("TitledBorder.font", finalFont);
-            UIManager.put("ToolBar.font", finalFont);
-            UIManager.put("ToolTip.font", finalFont);
-            UIManager.put("Tree.font", finalFont);
-        } catch (UnsupportedLookAndFeelException e) {
-            e.printStackTrace();
-        }
+        prepare().join();
 
-        JPanel mainPanel = new JPanel();
+        JPanel mainPanel = new JPanel() {
+            @Override
+            public void paint(Graphics g) {
+                super.paint(g);
+                Runnable listener = firstPaintListener;
+                firstPaintListener = null;
+                if (listener != null) listener.run();
+            }
+        };
 
         //<editor-fold desc="Queue Panel">
         queuePanel = new JPanel();
@@ -135,16 +123,23 @@ public class PlayerWindow extends Component {
 
         queuePanel.setLayout(new BorderLayout());
         queueListPane.setViewportView(queueList);
-        setQueueList(queueArray);
+        setupQueueList();
+        queueModel.add(queue);
         queuePanelButtons.setLayout(new BoxLayout(queuePanelButtons, BoxLayout.X_AXIS));
         queuePanelButtons.setBorder(BorderFactory.createEmptyBorder(5, 0, 0, 0));
         playNowButton = new JButton("Play Now");
         removeSongButton = new JButton("Remove");
         addSongButton = new JButton("Add song...");
+        addFolderButton = new JButton("Add folder...");
+        importProgressLabel = new JLabel();
         queuePanelButtons.add(playNowButton);
         queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
         queuePanelButtons.add(removeSongButton);
         queuePanelButtons.add(Box.createHorizontalGlue());
+        queuePanelButtons.add(importProgressLabel);
+        queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
+        queuePanelButtons.add(addFolderButton);
+        queuePanelButtons.add(Box.createRigidArea(new Dimension(5, 0)));
         queuePanelButtons.add(addSongButton);
         playNowButton.setEnabled(false);
         removeSongButton.setEnabled(false);
@@ -154,6 +149,7 @@ public class PlayerWindow extends Component {
         playNowButton.addActionListener(buttonListenerPlayNow);
         removeSongButton.addActionListener(buttonListenerRemove);
         addSongButton.addActionListener(buttonListenerAddSong);
+        addFolderButton.addActionListener(buttonListenerAddFolder);
         //</editor-fold>
 
         //<editor-fold desc="Mini-player Panel">
@@ -166,14 +162,13 @@ public class PlayerWindow extends Component {
         miniPlayerCurrentTime = new JLabel("- - : - -");
         miniPlayerScrubber = new JSlider();
         miniPlayerTotalTime = new JLabel("- - : - -");
-        ImageIcon[] icons = Icons.getIcons24();
-        iconNext = icons[0];
-        iconPause = icons[1];
-        iconPlay = icons[2];
-        iconPrevious = icons[3];
-        iconLoop = icons[4];
-        iconShuffle = icons[5];
-        iconStop = icons[6];
+        iconNext = Icons.get("next", ICON_SIZE);
+        iconPause = Icons.get("pause", ICON_SIZE);
+        iconPlay = Icons.get("play", ICON_SIZE);
+        iconPrevious = Icons.get("previous", ICON_SIZE);
+        iconLoop = Icons.get("loop", ICON_SIZE);
+        iconShuffle = Icons.get("shuffle", ICON_SIZE);
+        iconStop = Icons.get("stop", ICON_SIZE);
         miniPlayerShuffleButton = new JToggleButton(iconShuffle);
         miniPlayerPreviousButton = new JButton(iconPrevious);
         miniPlayerPlayPauseButton = new JButton(iconPlay);
@@ -272,11 +267,65 @@ public class PlayerWindow extends Component {
     }
 
     /**
-     * Sets the information to be displayed in the queue list. Should be called whenever a song is added or removed.
+     * Starts loading what the window needs before its components can be built, each part on its own thread: the
+     * look and feel, the Roboto font and the button icons for the scale of the screen. Calling this early, before
+     * the rest of the application starts, lets the loading overlap with it; the constructor waits for whatever is
+     * not done yet. Only the first call starts the loading.
      *
-     * @param queueArray String[][] with the queue. The array should contain in each position one Song converted to array.
+     * @return completes when the look and feel and the font are installed.
      */
-    public void setQueueList(String[][] queueArray) {
+    public static synchronized CompletableFuture<Void> prepare() {
+        if (prepared == null) {
+            CompletableFuture<Void> lookAndFeel = CompletableFuture.runAsync(() -> {
+                try {
+                    UIManager.setLookAndFeel(new FlatLightLaf());
+                } catch (UnsupportedLookAndFeelException e) {
+                    e.printStackTrace();
+                }
+            }, PREPARATION);
+            CompletableFuture<Font> font = CompletableFuture.supplyAsync(() -> {
+                Font finalFont = Fonts.getRoboto().deriveFont(Font.PLAIN, 14);
+                GraphicsEnvironment.getLocalGraphicsEnvironment().registerFont(finalFont);
+                return finalFont;
+            }, PREPARATION);
+            CompletableFuture.runAsync(() -> Icons.prefetch(ICON_SIZE, screenScale(), ICON_NAMES), PREPARATION);
+            // The fonts are set after the look and feel, which would otherwise be installing its defaults meanwhile.
+            prepared = lookAndFeel.thenAcceptBoth(font, (ignored, finalFont) -> {
+                for (String key : FONT_KEYS) UIManager.put(key, finalFont);
+            });
+        }
+        return prepared;
+    }
+
+    private static void startDaemon(Runnable task) {
+        Thread thread = new Thread(task, "window-preparation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return pixels per unit of the default screen, 2 on a 200% HiDPI screen.
+     */
+    private static double screenScale() {
+        if (GraphicsEnvironment.isHeadless()) return 1;
+        return GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration()
+                .getDefaultTransform().getScaleX();
+    }
+
+    /**
+     * Sets the code run once, on the EDT, when the window has been painted for the first time. Must be called on
+     * the EDT right after the constructor.
+     *
+     * @param listener code to run after the first paint.
+     */
+    public void setFirstPaintListener(Runnable listener) {
+        firstPaintListener = listener;
+    }
+
+    /**
+     * Configures the queue table once: model, selection listener and column sizes.
+     */
+    private void setupQueueList() {
         queueList.setShowHorizontalLines(true);
         queueList.setDragEnabled(false);
         queueList.setColumnSelectionAllowed(false);
@@ -284,12 +333,7 @@ public class PlayerWindow extends Component {
         queueList.getTableHeader().setResizingAllowed(false);
         queueList.setAutoResizeMode(JTable.AUTO_RESIZE_OFF);
         queueList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
-        queueList.setModel(new DefaultTableModel(queueArray, COLUMN_TITLES) {
-            @Override
-            public boolean isCellEditable(int row, int column) {
-                return false;
-            }
-        });
+        queueList.setModel(queueModel);
         queueList.getSelectionModel().addListSelectionListener(e -> {
             if (queueList.getSelectionModel().isSelectionEmpty()) {
                 playNowButton.setEnabled(false);
@@ -315,6 +359,38 @@ public class PlayerWindow extends Component {
         queueList.getColumnModel().getColumn(5).setPreferredWidth(0);
     }
 
+    /**
+     * Appends songs to the end of the queue list. Should be called whenever songs are added to the playlist,
+     * in the same order as the playlist changes. Safe to call from any thread.
+     *
+     * @param songs Songs appended to the playlist.
+     */
+    public void addToQueue(List<Song> songs) {
+        List<Song> copy = List.copyOf(songs);
+        SwingUtilities.invokeLater(() -> queueModel.add(copy));
+    }
+
+    /**
+     * Removes a song from the queue list. Should be called whenever a song is removed from the playlist,
+     * in the same order as the playlist changes. Safe to call from any thread.
+     *
+     * @param index Index of the removed song.
+     */
+    public void removeFromQueue(int index) {
+        SwingUtilities.invokeLater(() -> queueModel.remove(index));
+    }
+
+    /**
+     * Replaces the whole queue list. Should be called when the order of the playlist changes (shuffle).
+     * Safe to call from any thread.
+     *
+     * @param songs Songs of the playlist, in order.
+     */
+    public void setQueue(List<Song> songs) {
+        List<Song> copy = List.copyOf(songs);
+        SwingUtilities.invokeLater(() -> queueModel.setAll(copy));
+    }
+
     /**
      * Sets the information displayed on the mini-player about the current song. Should be called whenever the
      * currently playing song changes.
@@ -433,6 +509,26 @@ public class PlayerWindow extends Component {
         setEnabledScrubber(false);
     }
 
+    /**
+     * Switches the "Add folder" button between starting and cancelling a folder import.
+     * Should be called whenever an import starts or finishes.
+     *
+     * @param importing True while a folder import is running.
+     */
+    public void setImporting(boolean importing) {
+        addFolderButton.setText(importing ? "Cancel import" : "Add folder...");
+        if (!importing) importProgressLabel.setText("");
+    }
+
+    /**
+     * Sets the text displayed next to the "Add folder" button while a folder import is running.
+     *
+     * @param progress Description of the progress of the import.
+     */
+    public void setImportProgress(String progress) {
+        importProgressLabel.setText(progress);
+    }
+
     /**
      * @return the ID of the selected song in the queue. Should be called whenever the 'Play Now' and 'Remove'
      * buttons are pressed.
@@ -476,6 +572,24 @@ public class PlayerWindow extends Component {
         }
     }
 
+    /**
+     * Opens a folder chooser, so a whole folder tree of MP3 files can be imported.
+     *
+     * @return chosen folder or Null if cancelled.
+     */
+    public File openFolderChooser() {
+        CustomFileChooser fileChooser = new CustomFileChooser();
+        fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        fileChooser.resetChoosableFileFilters();
+        int fileChooserReturnValue = fileChooser.showOpenDialog(this.window);
+
+        if (fileChooserReturnValue == JFileChooser.APPROVE_OPTION) {
+            return fileChooser.getSelectedFile();
+        } else {
+            return null;
+        }
+    }
+
     /**
      * Opens a file chooser and returns an array of multiple copies of a {@link Song} object
      * with information parsed from the file. Each object has its own {@link UUID}.
@@ -502,61 +616,7 @@ public class PlayerWindow extends Component {
     }
 
     private Song parseInfo(File file) {
-        String title = "";
-        String album = "";
-        String artist = "";
-        String year = "";
-        float msLength;
-        String strLength;
-        String filePath = file.getPath();
-        int fileSize = 0;
-        try {
-            fileSize = (int) Files.size(Path.of(filePath));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-        int numFrames;
-        float msPerFrame;
-
-        // Try to get ID3 info
-        Mp3File mp3File = null;
-        try {
-            mp3File = new Mp3File(file);
-        } catch (IOException | UnsupportedTagException | InvalidDataException e) {
-            e.printStackTrace();
-        }
-        if (mp3File == null) return null;
-        if (mp3File.hasId3v1Tag()) {
-            ID3v1 id3 = mp3File.getId3v1Tag();
-            title = id3.getTitle();
-            album = id3.getAlbum();
-            artist = id3.getArtist();
-            year = id3.getYear();
-        } else if (mp3File.hasId3v2Tag()) {
-            ID3v2 id3 = mp3File.getId3v2Tag();
-            title = id3.getTitle();
-            album = id3.getAlbum();
-            artist = id3.getArtist();
-            year = id3.getYear();
-        }
-
-        numFrames = mp3File.getFrameCount();
-        msLength = mp3File.getLengthInMilliseconds();
-        msPerFrame = msLength / numFrames;
-
-        Duration duration = Duration.ofMillis((long) msLength);
-        long HH = duration.toHours();
-        long MM = duration.toMinutesPart();
-        long SS = duration.toSecondsPart();
-        strLength = String.format("%d:%02d:%02d", HH, MM, SS);
-
-        if (title == null || title.isBlank()) title = "Untitled";
-        if (album == null || album.isBlank()) album = "Untitled";
-        if (artist == null || artist.isBlank()) artist = "Unknown";
-        if (year == null || year.isBlank()) year = "Unknown";
-
-        String uuid = UUID.randomUUID().toString();
-        return new Song(uuid, title, album, artist, year, strLength, msLength, filePath, fileSize, numFrames, msPerFrame);
+        return SongParser.parse(file);
     }
 
     static final class CustomFileChooser extends JFileChooser {
@@ -570,50 +630,117 @@ public class PlayerWindow extends Component {
         }
     }
 
+    /**
+     * Button icons, drawn in 24, 48 and 96 pixel sets. {@link #get} returns an icon that reads no image until it is
+     * painted; it then draws the image of the size matching the scale of the screen, so a HiDPI screen gets sharp
+     * icons and the sets it does not need are never read. Images are cached per size, and a size with no set is
+     * scaled from the next larger one.
+     */
     static final class Icons {
-        public static ImageIcon[] getIcons24(){
-            ImageIcon next = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/next-24.png")));
-            ImageIcon pause = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/pause-24.png")));
-            ImageIcon play = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/play-24.png")));
-            ImageIcon previous = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/previous-24.png")));
-            ImageIcon loop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/loop-24.png")));
-            ImageIcon shuffle = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/shuffle-24.png")));
-            ImageIcon stop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/stop-24.png")));
-            return new ImageIcon[]{next, pause, play, previous, loop, shuffle, stop};
+        private static final int[] SIZES = {24, 48, 96};
+        private static final Map<String, ImageIcon> CACHE = new ConcurrentHashMap<>();
+
+        /**
+         * @param name name of the icon, such as {@code "play"}.
+         * @param size width and height of the icon, in screen units.
+         * @return the icon, loaded when first painted.
+         */
+        static Icon get(String name, int size) {
+            return new LazyIcon(name, size, false);
+        }
+
+        /**
+         * Loads icons into the cache before they are first painted.
+         *
+         * @param size  width and height of the icons, in screen units.
+         * @param scale pixels per screen unit of the screen they will be painted on.
+         * @param names names of the icons.
+         */
+        static void prefetch(int size, double scale, String... names) {
+            for (String name : names) image(name, pixels(size, scale), false);
         }
 
-        public static ImageIcon[] getIcons48(){
-            ImageIcon next = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/next-48.png")));
-            ImageIcon pause = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/pause-48.png")));
-            ImageIcon play = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/play-48.png")));
-            ImageIcon previous = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/previous-48.png")));
-            ImageIcon loop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/loop-48.png")));
-            ImageIcon shuffle = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/shuffle-48.png")));
-            ImageIcon stop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/stop-48.png")));
-            return new ImageIcon[]{next, pause, play, previous, loop, shuffle, stop};
+        private static int pixels(int size, double scale) {
+            return Math.max(1, (int) Math.round(size * scale));
         }
 
-        public static ImageIcon[] getIcons96(){
-            ImageIcon next = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/next-96.png")));
-            ImageIcon pause = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/pause-96.png")));
-            ImageIcon play = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/play-96.png")));
-            ImageIcon previous = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/previous-96.png")));
-            ImageIcon loop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/loop-96.png")));
-            ImageIcon shuffle = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/shuffle-96.png")));
-            ImageIcon stop = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/stop-96.png")));
-            return new ImageIcon[]{next, pause, play, previous, loop, shuffle, stop};
+        /**
+         * @return the image of an icon, {@code pixels} wide, from the cache or loaded into it.
+         */
+        private static ImageIcon image(String name, int pixels, boolean disabled) {
+            String key = name + '-' + pixels + (disabled ? "-disabled" : "");
+            ImageIcon image = CACHE.get(key);
+            if (image != null) return image;
+            if (disabled) {
+                // The gray filter of the look and feel, as FlatLaf uses for the disabled variant of an ImageIcon.
+                ImageFilter filter = UIManager.get("Component.grayFilter") instanceof ImageFilter grayFilter
+                        ? grayFilter : new GrayFilter(true, 50);
+                image = new ImageIcon(Toolkit.getDefaultToolkit().createImage(
+                        new FilteredImageSource(image(name, pixels, false).getImage().getSource(), filter)));
+            } else {
+                int source = SIZES[SIZES.length - 1];
+                for (int size : SIZES) {
+                    if (size >= pixels) {
+                        source = size;
+                        break;
+                    }
+                }
+                if (source == pixels) {
+                    image = new ImageIcon(Objects.requireNonNull(Icons.class.getResource("/icons/" + name + "-" + source + ".png")));
+                } else {
+                    image = new ImageIcon(image(name, source, false).getImage().getScaledInstance(pixels, pixels, Image.SCALE_SMOOTH));
+                }
+            }
+            ImageIcon raced = CACHE.putIfAbsent(key, image);
+            return raced == null ? image : raced;
+        }
+
+        private static final class LazyIcon implements Icon, FlatLaf.DisabledIconProvider {
+            private final String name;
+            private final int size;
+            private final boolean disabled;
+
+            LazyIcon(String name, int size, boolean disabled) {
+                this.name = name;
+                this.size = size;
+                this.disabled = disabled;
+            }
+
+            @Override
+            public void paintIcon(Component c, Graphics g, int x, int y) {
+                double scale = g instanceof Graphics2D graphics ? graphics.getTransform().getScaleX() : 1;
+                g.drawImage(image(name, pixels(size, scale), disabled).getImage(), x, y, size, size, c);
+            }
+
+            @Override
+            public int getIconWidth() {
+                return size;
+            }
+
+            @Override
+            public int getIconHeight() {
+                return size;
+            }
+
+            @Override
+            public Icon getDisabledIcon() {
+                return new LazyIcon(name, size, true);
+            }
         }
     }
 
     static final class Fonts {
-        public static Font getRoboto() {
-            Font roboto;
-            try {
-                roboto = Font.createFont(
-                        Font.TRUETYPE_FONT,
-                        (Objects.requireNonNull(Fonts.class.getResourceAsStream("/fonts/roboto_condensed/RobotoCondensed-Regular.ttf"))));
-            } catch (FontFormatException | IOException e) {
-                throw new RuntimeException(e);
+        private static Font roboto;
+
+        public static synchronized Font getRoboto() {
+            if (roboto == null) {
+                try {
+                    roboto = Font.createFont(
+                            Font.TRUETYPE_FONT,
+                            (Objects.requireNonNull(Fonts.class.getResourceAsStream("/fonts/roboto_condensed/RobotoCondensed-Regular.ttf"))));
+                } catch (FontFormatException | IOException e) {
+                    throw new RuntimeException(e);
+                }
             }
             return roboto;
         }
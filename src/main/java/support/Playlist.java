@@ -1,27 +1,48 @@
 package support;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.stream.Collectors;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
- * Abstraction of a playlist. The data structure used to store the song is an {@link ArrayList}.
+ * Abstraction of a playlist. Songs are stored in an append-only array of slots, in playlist order.
+ * Removing a song only empties its slot, and a {@link FenwickTree} over the occupied slots converts between
+ * slots and positions in O(log n), so no song after it has to be moved or renumbered. A hash index from
+ * {@link java.util.UUID} to slot makes {@link #findIndex(String)} O(1) plus one tree lookup.
+ * Empty slots are compacted away when they outnumber the songs.
+ * <p>
+ * The slots always keep the order the songs were added in. Shuffling does not copy or move any song: it draws a
+ * permutation of the slots, kept as an {@code int[]} of slots in shuffled order plus its inverse, with a second
+ * tree over it, so positions, lookups, adds and removes stay O(log n) while shuffled. Turning shuffle on is O(n);
+ * turning it off drops the permutation and leaves the original order, O(log n).
+ * <p>
  * It has an index to point at a specified position, representing the song that is currently playing,
  * flags for loop and shuffle, methods to toggle shuffle modes, return previous and next song in the
- * playlist and more.
+ * playlist and more. UUIDs of the songs are expected to be unique.
  *
- * @see ArrayList
+ * @see FenwickTree
  */
 public class Playlist {
 
     public final int SONG_NOT_FOUND = 0;
     public final int SONG_REMOVED = 1;
     public final int CURRENT_SONG_REMOVED = 2;
+    private static final int INITIAL_CAPACITY = 16;
     private int currentIndex;
     private boolean looping;
-    private boolean shuffled;
-    private ArrayList<Song> list = new ArrayList<>();
-    private ArrayList<Song> copy = new ArrayList<>();
+    private Song[] slots = new Song[INITIAL_CAPACITY];
+    private int usedSlots;
+    private int size;
+    private final FenwickTree occupied = new FenwickTree(INITIAL_CAPACITY);
+    private final HashMap<String, Integer> slotByUuid = new HashMap<>();
+    // Shuffled order, null when not shuffled: the slot at each shuffle key (-1 once removed) and the key of each slot.
+    private int[] order;
+    private int[] keyOfSlot;
+    private int usedKeys;
+    private final FenwickTree shuffledKeys = new FenwickTree(INITIAL_CAPACITY);
 
     /**
      * Appends the specified song to the end of the list.
@@ -29,8 +50,20 @@ public class Playlist {
      * @param song song to be appended to this list.
      */
     public void add(Song song) {
-        if (shuffled) copy.add(song);
-        list.add(song);
+        Objects.requireNonNull(song, "song");      // Before any slot is taken, so a null leaves the list intact.
+        if (usedSlots == slots.length) compact(Math.max(INITIAL_CAPACITY, size * 2));
+        int slot = usedSlots++;
+        slots[slot] = song;
+        occupied.add(slot, 1);
+        slotByUuid.put(song.getUuid(), slot);
+        size++;
+        if (order != null) {            // Shuffled: the song goes to the end of the shuffled order.
+            if (usedKeys == order.length) compactKeys(Math.max(INITIAL_CAPACITY, size * 2));
+            int key = usedKeys++;
+            order[key] = slot;
+            keyOfSlot[slot] = key;
+            shuffledKeys.add(key, 1);
+        }
     }
 
     /**
@@ -43,14 +76,19 @@ public class Playlist {
      *         2 - if song is removed and its index equals currentIndex.
      */
     public int remove(int index) {
-        if (shuffled) {
-            String uuid = list.get(index).getUuid();
-            copy = copy.stream()
-                    .filter(song -> !song.getUuid().equals(uuid))
-                    .collect(Collectors.toCollection(ArrayList::new));
-        }
-        if (index >= 0 && index < list.size()) {
-            list.remove(index);
+        if (index >= 0 && index < size) {
+            int slot = slotAt(index);
+            if (order != null) {
+                int key = keyOfSlot[slot];
+                order[key] = -1;
+                shuffledKeys.add(key, -1);
+            }
+            slotByUuid.remove(slots[slot].getUuid());
+            slots[slot] = null;
+            occupied.add(slot, -1);
+            size--;
+            if (usedSlots - size > Math.max(INITIAL_CAPACITY, size)) compact(slots.length);
+            if (order != null && usedKeys - size > Math.max(INITIAL_CAPACITY, size)) compactKeys(order.length);
             if (index == currentIndex) return CURRENT_SONG_REMOVED;
             return SONG_REMOVED;
         }
@@ -64,7 +102,7 @@ public class Playlist {
      * @return the element at the specified position in this list, or null if index is out of bounds.
      */
     public Song get(int index) {
-        if (index >= 0 && index < list.size()) return new Song(list.get(index));
+        if (index >= 0 && index < size) return slots[slotAt(index)];
         return null;
     }
 
@@ -75,10 +113,8 @@ public class Playlist {
      * @return index of the song with the specified UUID, or -1 if there is no song with the specified UUID.
      */
     public int findIndex(String uuid) {
-        Song temp = list.stream()
-                .filter(song -> song.getUuid().equals(uuid))
-                .collect(Collectors.toCollection(ArrayList::new)).get(0);
-        return list.indexOf(temp);
+        Integer slot = slotByUuid.get(uuid);
+        return slot == null ? -1 : indexOf(slot);
     }
 
     /**
@@ -87,27 +123,23 @@ public class Playlist {
      * @return the number of songs in this playlist.
      */
     public int size() {
-        return list.size();
-    }
-
-    /**
-     * Returns an array containing information about each song in this playlist in proper sequence
-     * (from first to last element).<br>
-     * Each line represents a song and the columns are organized as follows:<br>
-     * [0] - Title<br>
-     * [1] - Album<br>
-     * [2] - Artist<br>
-     * [3] - Year<br>
-     * [4] - Time (formatted as 00:00)<br>
-     * [5] - UUID<br>
-     * The returned array will be "safe" in that no references to it
-     * are maintained by this list. (In other words, this method must allocate a new array).
-     * The caller is thus free to modify the returned array.
+        return size;
+    }
+
+    /**
+     * Returns the songs in this playlist in proper sequence (from first to last element).
+     * The returned list will be "safe" in that no references to it are maintained by this playlist.
      *
-     * @return an array containing information about each song in this playlist in proper sequence.
+     * @return a list containing the songs in this playlist in proper sequence.
      */
-    public String[][] getDisplayInfo() {
-        return list.stream().map(Song::getDisplayInfo).toArray(String[][]::new);
+    public List<Song> getSongs() {
+        ArrayList<Song> songs = new ArrayList<>(size);
+        if (order != null) {
+            for (int key = 0; key < usedKeys; key++) if (order[key] >= 0) songs.add(slots[order[key]]);
+        } else {
+            for (int slot = 0; slot < usedSlots; slot++) if (slots[slot] != null) songs.add(slots[slot]);
+        }
+        return songs;
     }
 
     /**
@@ -127,7 +159,7 @@ public class Playlist {
      * @param newIndex new value of the integer defined as the current index of the playlist.
      */
     public void setCurrentIndex(int newIndex) {
-        if (newIndex >= 0 && newIndex < list.size()) currentIndex = newIndex;
+        if (newIndex >= 0 && newIndex < size) currentIndex = newIndex;
     }
 
     /**
@@ -139,7 +171,7 @@ public class Playlist {
      */
     public int getPreviousIndex() {
         if (currentIndex > 0) return currentIndex - 1;
-        else return looping ? list.size() - 1 : 0;
+        else return looping ? size - 1 : 0;
     }
 
     /**
@@ -150,8 +182,21 @@ public class Playlist {
      * @return the integer defined as the index after the current index of the playlist.
      */
     public int getNextIndex() {
-        if (currentIndex < list.size() - 1) return currentIndex + 1;
-        else return looping ? 0 : list.size() - 1;
+        if (currentIndex < size - 1) return currentIndex + 1;
+        else return looping ? 0 : size - 1;
+    }
+
+    /**
+     * Returns the index of the song that comes after the specified one, taking into account if the playlist
+     * is set to loop or not. Used to open the next song ahead of time, before it becomes the current one.
+     *
+     * @param index index of a song in the playlist.
+     * @return the index after the specified one, or -1 if there is none.
+     */
+    public int getNextIndex(int index) {
+        if (index < 0 || index >= size) return -1;
+        if (index < size - 1) return index + 1;
+        else return looping ? 0 : -1;
     }
 
     /**
@@ -173,7 +218,7 @@ public class Playlist {
      * @return True if playlist was set to shuffle.
      */
     public boolean isShuffled() {
-        return shuffled;
+        return order != null;
     }
 
     /**
@@ -182,30 +227,43 @@ public class Playlist {
      *                    Has no effect when undoing shuffle.
      */
     public void toggleShuffle(boolean keepCurrent) {
-        if (shuffled) {
-            currentIndex = copy.indexOf(list.get(currentIndex));
-            list.clear();
-            list.addAll(copy);
+        int current = currentIndex < size ? slotAt(currentIndex) : -1;
+        if (order != null) {
+            order = null;
+            keyOfSlot = null;
+            usedKeys = 0;
+            currentIndex = current < 0 ? 0 : indexOf(current);
         } else {
-            copy.clear();
-            copy.addAll(list);
-            if (keepCurrent) {
-                list.remove(currentIndex);
-                Collections.shuffle(list);
-                list.add(0, copy.get(currentIndex));
-            } else {
-                Collections.shuffle(list);
+            int[] shuffled = new int[Math.max(INITIAL_CAPACITY, size * 2)];
+            int count = 0;
+            for (int slot = 0; slot < usedSlots; slot++) if (slots[slot] != null) shuffled[count++] = slot;
+            int first = 0;
+            if (keepCurrent && current >= 0) {
+                shuffled[currentIndex] = shuffled[0];
+                shuffled[0] = current;
+                first = 1;
             }
+            Random random = ThreadLocalRandom.current();
+            for (int i = count - 1; i > first; i--) {       // Fisher-Yates over the keys after the first
+                int j = first + random.nextInt(i - first + 1);
+                int swapped = shuffled[i];
+                shuffled[i] = shuffled[j];
+                shuffled[j] = swapped;
+            }
+            keyOfSlot = new int[slots.length];
+            for (int key = 0; key < count; key++) keyOfSlot[shuffled[key]] = key;
+            order = shuffled;
+            usedKeys = count;
+            shuffledKeys.fill(count, shuffled.length);
             currentIndex = 0;
         }
-        shuffled = !shuffled;
     }
 
     /**
      * @return True if playlist is empty.
      */
     public boolean isEmpty() {
-        return list.isEmpty();
+        return size == 0;
     }
 
     /**
@@ -221,4 +279,68 @@ public class Playlist {
     public boolean hasPrevious() {
         return !isEmpty() && (looping || currentIndex > 0);
     }
+
+    /**
+     * @return slot of the song at the specified position.
+     */
+    private int slotAt(int index) {
+        if (order != null) return order[shuffledKeys.findKth(index + 1)];
+        return occupied.findKth(index + 1);
+    }
+
+    /**
+     * @return position of the song in the specified slot.
+     */
+    private int indexOf(int slot) {
+        if (order != null) return shuffledKeys.prefixSum(keyOfSlot[slot]) - 1;
+        return occupied.prefixSum(slot) - 1;
+    }
+
+    /**
+     * Moves the songs to the first slots, dropping empty ones, and resets the tree and the hash index.
+     *
+     * @param capacity number of slots after compacting, at least size.
+     */
+    private void compact(int capacity) {
+        Song[] compacted = new Song[capacity];
+        int[] keys = order == null ? null : new int[capacity];
+        int used = 0;
+        for (int slot = 0; slot < usedSlots; slot++) {
+            if (slots[slot] == null) continue;
+            if (keys != null) {         // The song keeps its shuffle key, which now points at its new slot.
+                keys[used] = keyOfSlot[slot];
+                order[keyOfSlot[slot]] = used;
+            }
+            compacted[used++] = slots[slot];
+        }
+        slots = compacted;
+        keyOfSlot = keys;
+        usedSlots = used;
+        reindex();
+    }
+
+    /**
+     * Drops the keys of removed songs from the shuffled order and resets its tree.
+     *
+     * @param capacity number of keys after compacting, at least size.
+     */
+    private void compactKeys(int capacity) {
+        int[] compacted = new int[capacity];
+        int used = 0;
+        for (int key = 0; key < usedKeys; key++) {
+            if (order[key] < 0) continue;
+            compacted[used] = order[key];
+            keyOfSlot[order[key]] = used++;
+        }
+        order = compacted;
+        usedKeys = used;
+        shuffledKeys.fill(used, capacity);
+    }
+
+    private void reindex() {
+        size = usedSlots;
+        occupied.fill(usedSlots, slots.length);
+        slotByUuid.clear();
+        for (int slot = 0; slot < usedSlots; slot++) slotByUuid.put(slots[slot].getUuid(), slot);
+    }
 }
@@ -0,0 +1,294 @@
+package support;
+
+import javazoom.jl.decoder.JavaLayerException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Opens the songs the user is likely to jump to next (the next and the previous song of the queue) in the
+ * background, and decodes their first seconds with {@link TrackDecoder#prime(int)}. Opening a song reads its first
+ * frame, and priming reads the frames after it, so the file is paged in and a cold disk or network mount is woken
+ * up before the user clicks. {@link #take(Song)} then hands the primed track over, and playback starts
+ * without touching the file.
+ * <p>
+ * The songs are replaced with {@link #update(Song...)} whenever the queue changes: songs no longer wanted are
+ * cancelled, or closed if they were already open. The primed audio of all songs stays within a budget in bytes,
+ * shared in priority order; with {@code -Dtolafy.prefetch.budgetKB=0} nothing is prefetched. Work starts
+ * {@code -Dtolafy.prefetch.delayMs} after an update, so a burst of skips cancels it before it costs anything, and
+ * the song that just started has the disk and the CPU to itself. The worker is one low-priority thread that exits
+ * when there is nothing to do, so an idle prefetcher holds at most the budget plus one decoder per song. Thread
+ * priorities mean little to most schedulers, so a prefetcher can also be told when playback is using all the CPU,
+ * and then waits between frames; a song being taken stops waiting, since playback is now waiting for it.
+ * <p>
+ * All methods are thread safe.
+ */
+public class Prefetcher {
+    /**
+     * Opens a song at its first frame, the way the player would.
+     */
+    public interface Opener {
+        TrackDecoder open(Song song) throws IOException;
+    }
+
+    private static final long FRAME_BYTES = PcmRingBuffer.MAX_FRAME_SAMPLES * 2L;    // Primed frames are full blocks.
+    private static final int MIN_FRAMES = 8;
+    private static final long BUSY_WAIT_NANOS = 1_000_000;
+
+    private final Opener opener;
+    private final long budget;
+    private final int seconds;
+    private final long delayMs;
+    private final ScheduledExecutorService worker;
+    private final BooleanSupplier busy;
+    private final List<Target> targets = new ArrayList<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * A song being prefetched, or ready. Its fields are guarded by the lock of the prefetcher.
+     */
+    private static final class Target {
+        final Song song;
+        final int frames;
+        ScheduledFuture<?> task;
+        TrackDecoder track;
+        boolean running;
+        boolean done;
+        boolean cancelled;
+        volatile boolean taken;     // Read without the lock between primed frames.
+
+        Target(Song song, int frames) {
+            this.song = song;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * @param opener  opens the songs.
+     * @param budget  bytes of primed audio held for all songs together, or 0 to prefetch nothing.
+     * @param seconds seconds of audio primed per song.
+     * @param delayMs delay between an update and the start of the work.
+     */
+    public Prefetcher(Opener opener, long budget, int seconds, long delayMs) {
+        this(opener, budget, seconds, delayMs, newWorker(), () -> false);
+    }
+
+    /**
+     * @param opener  opens the songs.
+     * @param budget  bytes of primed audio held for all songs together, or 0 to prefetch nothing.
+     * @param seconds seconds of audio primed per song.
+     * @param delayMs delay between an update and the start of the work.
+     * @param worker  executor of the prefetching, which may be shared by many prefetchers; see {@link #newWorker()}.
+     * @param busy    true while playback needs all the CPU; prefetching waits until it is false again.
+     */
+    public Prefetcher(Opener opener, long budget, int seconds, long delayMs, ScheduledExecutorService worker, BooleanSupplier busy) {
+        this.opener = opener;
+        this.budget = budget;
+        this.seconds = seconds;
+        this.delayMs = delayMs;
+        this.worker = worker;
+        this.busy = busy;
+    }
+
+    /**
+     * @param opener opens the songs.
+     * @param worker executor of the prefetching.
+     * @param busy   true while playback needs all the CPU.
+     * @return a prefetcher configured by the {@code tolafy.prefetch.*} properties: 1 MB, 3 seconds per song,
+     * 200 ms of delay by default.
+     */
+    public static Prefetcher fromProperties(Opener opener, ScheduledExecutorService worker, BooleanSupplier busy) {
+        return new Prefetcher(opener, Long.getLong("tolafy.prefetch.budgetKB", 1024) << 10,
+                Integer.getInteger("tolafy.prefetch.seconds", 3), Long.getLong("tolafy.prefetch.delayMs", 200), worker, busy);
+    }
+
+    /**
+     * @return an executor for prefetchers: one low-priority daemon thread, which exits after a second without work.
+     */
+    public static ScheduledExecutorService newWorker() {
+        ScheduledThreadPoolExecutor worker = new ScheduledThreadPoolExecutor(1, task -> {
+            Thread thread = new Thread(task, "prefetcher");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+        worker.setKeepAliveTime(1, TimeUnit.SECONDS);
+        worker.allowCoreThreadTimeOut(true);
+        worker.setRemoveOnCancelPolicy(true);
+        return worker;
+    }
+
+    /**
+     * Sets the songs to prefetch, most wanted first. Songs already prefetched are kept, the others are cancelled.
+     * A song only gets what is left of the budget after the songs before it, and none if that is less than a few
+     * frames.
+     *
+     * @param songs songs to prefetch; nulls are ignored. No songs cancels everything.
+     */
+    public synchronized void update(Song... songs) {
+        for (Iterator<Target> it = targets.iterator(); it.hasNext(); ) {
+            Target target = it.next();
+            if (!wanted(target.song, songs)) {
+                cancel(target);
+                it.remove();
+            }
+        }
+        long used = 0;
+        for (Target target : targets) used += target.frames * FRAME_BYTES;
+        for (Song song : songs) {
+            if (song == null || find(song) != null) continue;
+            int frames = (int) Math.min(Math.ceil(seconds * 1000.0 / song.getMsPerFrame()), (budget - used) / FRAME_BYTES);
+            if (frames < MIN_FRAMES) continue;
+            Target target = new Target(song, frames);
+            used += frames * FRAME_BYTES;
+            targets.add(target);
+            target.task = worker.schedule(() -> fetch(target), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Hands over the prefetched track of a song. Waits if it is being prefetched right now, which then goes on at
+     * full speed even if playback is busy; a song whose turn has not come yet is cancelled instead, since opening
+     * it directly is faster than waiting for the songs before it.
+     *
+     * @param song song about to be played.
+     * @return the track, open at its first frame with its first seconds primed, or null if there is none.
+     * The caller must close it.
+     */
+    public TrackDecoder take(Song song) {
+        Target target;
+        synchronized (this) {
+            target = find(song);
+            if (target == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            targets.remove(target);
+            if (!target.running && !target.done) {
+                cancel(target);
+                misses.incrementAndGet();
+                return null;
+            }
+            target.taken = true;        // Stops waiting for playback to be idle
+            boolean interrupted = false;
+            while (target.running) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        if (target.track == null) {     // Failed to open.
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return target.track;
+    }
+
+    private void fetch(Target target) {
+        synchronized (this) {
+            if (target.cancelled) return;
+            target.running = true;
+        }
+        TrackDecoder track = null;
+        try {
+            track = opener.open(target.song);
+            track.prime(target.frames, () -> awaitIdle(target));
+        } catch (IOException | JavaLayerException | RuntimeException e) {
+            if (track != null) track.close();
+            track = null;
+        }
+        synchronized (this) {
+            target.running = false;
+            target.done = true;
+            if (target.cancelled && track != null) track.close();
+            else target.track = track;
+            notifyAll();
+        }
+    }
+
+    private void awaitIdle(Target target) {
+        while (!target.taken && busy.getAsBoolean()) LockSupport.parkNanos(BUSY_WAIT_NANOS);
+    }
+
+    /**
+     * Cancels a target, closing its track if it is ready. A running target closes its own track when done.
+     * Called with the lock.
+     */
+    private void cancel(Target target) {
+        target.cancelled = true;
+        if (target.task != null) target.task.cancel(false);
+        if (target.track != null) target.track.close();
+        target.track = null;
+        cancelled.incrementAndGet();
+    }
+
+    private Target find(Song song) {
+        for (Target target : targets) if (target.song == song) return target;
+        return null;
+    }
+
+    private static boolean wanted(Song song, Song[] songs) {
+        for (Song wanted : songs) if (wanted == song) return true;
+        return false;
+    }
+
+    /**
+     * @return bytes of primed audio reserved by the songs being prefetched or ready.
+     */
+    public synchronized long getReservedBytes() {
+        long used = 0;
+        for (Target target : targets) used += target.frames * FRAME_BYTES;
+        return used;
+    }
+
+    /**
+     * @return number of songs prefetched and ready to be taken.
+     */
+    public synchronized int getReady() {
+        int ready = 0;
+        for (Target target : targets) if (target.track != null) ready++;
+        return ready;
+    }
+
+    /**
+     * @return number of songs taken already prefetched.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of songs played that had not been prefetched.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of prefetches dropped unused, because the queue changed or their turn had not come.
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("prefetch: hits %d, misses %d, cancelled %d, ready %d, reserved %d KB of %d KB",
+                getHits(), getMisses(), getCancelled(), getReady(), getReservedBytes() >> 10, budget >> 10);
+    }
+}
@@ -0,0 +1,79 @@
+package support;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Table model of the queue. Rows are the {@link Song} objects of the playlist themselves: cell values are read
+ * from the song only when the table asks for them, which happens for visible rows only, so no per-row arrays
+ * are built and adding or removing a song costs O(1) UI work regardless of the size of the queue.
+ * <p>
+ * The model is confined to the Event Dispatch Thread. It keeps its own list of references, updated with the
+ * same changes as the {@link Playlist}, so painting never reads the playlist while another thread modifies it.
+ */
+public class QueueTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+    static final String[] COLUMN_TITLES = new String[]{"Title", "Album", "Artist", "Year", "Length", "Path"};
+
+    private final ArrayList<Song> rows = new ArrayList<>();
+
+    @Override
+    public int getRowCount() {
+        return rows.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMN_TITLES.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMN_TITLES[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return rows.get(row).getDisplayValue(column);
+    }
+
+    @Override
+    public boolean isCellEditable(int row, int column) {
+        return false;
+    }
+
+    /**
+     * Appends songs to the end of the queue.
+     *
+     * @param songs songs to append.
+     */
+    public void add(List<Song> songs) {
+        if (songs.isEmpty()) return;
+        int first = rows.size();
+        rows.addAll(songs);
+        fireTableRowsInserted(first, rows.size() - 1);
+    }
+
+    /**
+     * Removes the song at the specified row.
+     *
+     * @param row row to remove.
+     */
+    public void remove(int row) {
+        if (row < 0 || row >= rows.size()) return;
+        rows.remove(row);
+        fireTableRowsDeleted(row, row);
+    }
+
+    /**
+     * Replaces every row, for changes that move all the songs (such as shuffling).
+     *
+     * @param songs new content of the queue, in order.
+     */
+    public void setAll(List<Song> songs) {
+        rows.clear();
+        rows.addAll(songs);
+        fireTableDataChanged();
+    }
+}
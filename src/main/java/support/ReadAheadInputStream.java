@@ -0,0 +1,148 @@
+package support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Input stream that reads another one ahead of time on a background thread, into a circular buffer of a fixed
+ * size. Reads are answered from the buffer as soon as any byte is in it, so a slow or high-latency source (a
+ * network connection) is read while the caller is busy decoding, and the caller only waits when the source falls
+ * behind. The reader thread stops when the buffer is full and resumes as it is read, so at most the buffer size
+ * is read past the caller.
+ * <p>
+ * Errors of the source are thrown by the read that reaches them. Closing the stream stops the reader thread and
+ * closes the source. A stream is read by one thread at a time.
+ */
+public class ReadAheadInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition filled = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private final Thread reader;
+    private final byte[] single = new byte[1];
+    private int head;       // Next byte to be read by the caller.
+    private int count;      // Bytes read ahead and not read by the caller yet.
+    private boolean ended;
+    private boolean closed;
+    private IOException failure;
+
+    /**
+     * Starts reading the source.
+     *
+     * @param in     source stream; closed with this stream.
+     * @param ahead  size of the buffer, the most bytes read ahead of the caller.
+     * @param name   name of the reader thread.
+     */
+    public ReadAheadInputStream(InputStream in, int ahead, String name) {
+        this.in = in;
+        this.buffer = new byte[ahead];
+        this.reader = new Thread(this::readAhead, name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                int tail;
+                int room;
+                lock.lock();
+                try {
+                    while (count == buffer.length && !closed) drained.await();
+                    if (closed) return;
+                    tail = (head + count) % buffer.length;
+                    room = Math.min(buffer.length - count, buffer.length - tail);
+                } finally {
+                    lock.unlock();
+                }
+                // Only this thread writes the free part of the buffer, so the source is read without the lock.
+                int n = in.read(buffer, tail, room);
+                lock.lock();
+                try {
+                    if (n < 0) ended = true;
+                    else count += n;
+                    filled.signal();
+                } finally {
+                    lock.unlock();
+                }
+                if (n < 0) return;
+            }
+        } catch (IOException e) {
+            fail(e);
+        } catch (InterruptedException e) {
+            fail(new InterruptedIOException("read ahead interrupted"));
+        }
+    }
+
+    private void fail(IOException e) {
+        lock.lock();
+        try {
+            if (!closed) failure = e;
+            filled.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        lock.lock();
+        try {
+            while (count == 0 && !ended && failure == null && !closed) filled.await();
+            if (closed) throw new IOException("stream closed");
+            if (count == 0) {
+                if (failure != null) throw failure;
+                return -1;
+            }
+            int n = Math.min(len, Math.min(count, buffer.length - head));
+            System.arraycopy(buffer, head, b, off, n);
+            head = (head + n) % buffer.length;
+            count -= n;
+            drained.signal();
+            return n;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("read interrupted");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of bytes already read ahead, which can be read without waiting.
+     */
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            filled.signalAll();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        reader.interrupt();
+        in.close();
+    }
+}
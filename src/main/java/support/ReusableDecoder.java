@@ -0,0 +1,110 @@
+package support;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Decoder;
+import javazoom.jl.decoder.DecoderException;
+import javazoom.jl.decoder.FrameDecoder;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.Obuffer;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * {@link Decoder} that can be used for any number of streams. JLayer binds its layer decoder to the first
+ * {@link Bitstream} it decodes, so a plain decoder breaks as soon as the file is reopened for a seek or for the
+ * next song. This decoder drops the layer decoder whenever it is handed another bitstream, so JLayer binds a
+ * new one, and {@link #reset()} clears the synthesis filters in place.
+ * The synthesis filters and the output buffer are kept, and only reallocated when the sample rate or the number
+ * of channels changes.
+ * <p>
+ * JLayer keeps all of that state in private fields of package-private classes, so it is reached by reflection.
+ *
+ * @see AudioOutput
+ */
+public class ReusableDecoder extends Decoder {
+    private static final Field[] LAYER_DECODERS;
+    private static final Field[] FILTERS;
+    private static final Field OUTPUT;
+    private static final Field INITIALIZED;
+    private static final Method FILTER_RESET;
+
+    static {
+        try {
+            LAYER_DECODERS = new Field[]{field("l1decoder"), field("l2decoder"), field("l3decoder")};
+            FILTERS = new Field[]{field("filter1"), field("filter2")};
+            OUTPUT = field("output");
+            INITIALIZED = field("initialized");
+            FILTER_RESET = FILTERS[0].getType().getDeclaredMethod("reset");
+            FILTER_RESET.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private Bitstream bound;        // Bitstream the layer decoder reads from.
+    private int frequency;
+    private int channels;
+
+    /**
+     * Clears the state left by the previous frames (synthesis filter history, overlap and bit reservoir), so the
+     * next frame decodes as the first frame of a stream. Call after seeking or before decoding another song.
+     */
+    public void reset() {
+        try {
+            for (Field filter : FILTERS) {
+                Object value = filter.get(this);
+                if (value != null) FILTER_RESET.invoke(value);
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        unbind();
+    }
+
+    @Override
+    public Obuffer decodeFrame(Header header, Bitstream stream) throws DecoderException {
+        int headerChannels = header.mode() == Header.SINGLE_CHANNEL ? 1 : 2;
+        if (header.frequency() != frequency || headerChannels != channels) {
+            if (frequency != 0) {       // Another format: let JLayer allocate filters and output again.
+                set(INITIALIZED, false);
+                set(OUTPUT, null);
+                unbind();
+            }
+            frequency = header.frequency();
+            channels = headerChannels;
+        }
+        return super.decodeFrame(header, stream);
+    }
+
+    @Override
+    protected FrameDecoder retrieveDecoder(Header header, Bitstream stream, int layer) throws DecoderException {
+        if (stream != bound) {
+            unbind();
+            bound = stream;
+        }
+        return super.retrieveDecoder(header, stream, layer);
+    }
+
+    /**
+     * Drops the layer decoders, so the next frame creates one bound to the bitstream it comes from.
+     */
+    private void unbind() {
+        for (Field decoder : LAYER_DECODERS) set(decoder, null);
+        bound = null;
+    }
+
+    private void set(Field field, Object value) {
+        try {
+            field.set(this, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Field field(String name) throws NoSuchFieldException {
+        Field field = Decoder.class.getDeclaredField(name);
+        field.setAccessible(true);
+        return field;
+    }
+}
@@ -1,8 +1,8 @@
 package support;
 
 import java.io.BufferedInputStream;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
 import java.util.UUID;
 
 /**
@@ -10,10 +10,17 @@ import java.util.UUID;
  * such as title, album, artist, and information to assist playing the file
  * such as length, number of frames, and other. Also contains a method that returns a
  * {@link java.io.BufferedInputStream} of the file.
+ * <p>
+ * The file path is a location: a local path, or an {@code http://} or {@code https://} URL that is streamed with
+ * range requests. The bytes are read through the {@link SongSource} of the location.
+ * <p>
+ * Songs are immutable, so a single instance is safely shared by the playlist, the queue table and the
+ * playback threads. Album, artist, year and length strings repeat across a library and are interned,
+ * so every song of an album points to the same strings.
  *
  * @see BufferedInputStream
  */
-public class Song {
+public final class Song {
     private final String uuid;
     private final String title;
     private final String album;
@@ -26,26 +33,6 @@ public class Song {
     private final int numFrames;
     private final float msPerFrame;
 
-    /**
-     * Creates a deep copy of the specified {@link Song}.
-     * This method is NOT THREAD SAFE!
-     *
-     * @param song {@link Song} to copy.
-     */
-    public Song(Song song) {
-        this.uuid = song.getUuid();
-        this.title = song.getTitle();
-        this.album = song.getAlbum();
-        this.artist = song.getArtist();
-        this.year = song.getYear();
-        this.strLength = song.getStrLength();
-        this.msLength = song.getMsLength();
-        filePath = song.getFilePath();
-        fileSize = song.getFileSize();
-        numFrames = song.getNumFrames();
-        msPerFrame = song.getMsPerFrame();
-    }
-
     /**
      * Constructs a newly allocated {@link Song} object.
      *
@@ -66,10 +53,10 @@ public class Song {
     public Song(String uuid, String title, String album, String artist, String year, String strLength, float msLength, String filePath, int fileSize, int numFrames, float msPerFrame) {
         this.uuid = uuid;
         this.title = title;
-        this.album = album;
-        this.artist = artist;
-        this.year = year;
-        this.strLength = strLength;
+        this.album = intern(album);
+        this.artist = intern(artist);
+        this.year = intern(year);
+        this.strLength = intern(strLength);
         this.msLength = msLength;
         this.filePath = filePath;
         this.fileSize = fileSize;
@@ -78,28 +65,29 @@ public class Song {
     }
 
     /**
-     * Returns an array with important information to be displayed about a song.
-     * The information is organized in the array as:<br>
+     * Returns one piece of the information displayed about a song, so a table row can be drawn straight
+     * from the song without building an array for it. The columns are organized as:<br>
      * [0] - Title<br>
      * [1] - Album<br>
      * [2] - Artist<br>
      * [3] - Year<br>
      * [4] - Time (formatted as 00:00)<br>
      * [5] - {@link UUID}<br>
-     * This method is NOT THREAD SAFE!
      *
-     * @return Returns an array with important information to be displayed about a song.
+     * @param column index of the information.
+     * @return the information in the specified column, or null if there is no such column.
      * @see UUID
      */
-    public String[] getDisplayInfo() {
-        String[] copy = new String[6];
-        copy[0] = this.getTitle();
-        copy[1] = this.getAlbum();
-        copy[2] = this.getArtist();
-        copy[3] = this.getYear();
-        copy[4] = this.getStrLength();
-        copy[5] = this.getUuid();
-        return copy;
+    public String getDisplayValue(int column) {
+        return switch (column) {
+            case 0 -> title;
+            case 1 -> album;
+            case 2 -> artist;
+            case 3 -> year;
+            case 4 -> strLength;
+            case 5 -> uuid;
+            default -> null;
+        };
     }
 
     public String getUuid() {
@@ -146,14 +134,49 @@ public class Song {
         return msPerFrame;
     }
 
+    /**
+     * @return the source the bytes of the song are read from, a local file or a URL.
+     */
+    public SongSource getSource() {
+        return SongSource.of(filePath);
+    }
+
     /**
      * Returns a {@link java.io.BufferedInputStream} of the MP3 file, so it can be easily played.
      *
      * @see java.io.BufferedInputStream
-     * @see java.io.FileInputStream
+     * @see SongSource
      * @return Returns a {@link java.io.BufferedInputStream} of the MP3 file.
      */
-    public BufferedInputStream getBufferedInputStream() throws FileNotFoundException {
-        return new BufferedInputStream(new FileInputStream(this.getFilePath()));
+    public BufferedInputStream getBufferedInputStream() throws IOException {
+        return getBufferedInputStream(0);
+    }
+
+    /**
+     * Returns a {@link java.io.BufferedInputStream} of the MP3 file starting at the specified byte,
+     * so playback can start in the middle of the file without reading what comes before.
+     *
+     * @param offset position of the first byte to read, usually taken from a {@link FrameIndex}.
+     * @return Returns a {@link java.io.BufferedInputStream} of the MP3 file starting at offset.
+     * @see FrameIndex
+     */
+    public BufferedInputStream getBufferedInputStream(long offset) throws IOException {
+        return new BufferedInputStream(getSource().open(offset));
+    }
+
+    /**
+     * Maps the MP3 file into memory, so it can be read with {@link MappedInputStream}s from any position without
+     * reopening it.
+     *
+     * @return read-only mapping of the whole file.
+     * @throws IOException if the file cannot be mapped, as a streamed song; {@link #getBufferedInputStream(long)}
+     *                     still works then.
+     */
+    public MappedByteBuffer map() throws IOException {
+        return getSource().map();
+    }
+
+    private static String intern(String value) {
+        return value == null ? null : value.intern();
     }
 }
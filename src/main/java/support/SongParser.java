@@ -0,0 +1,194 @@
+package support;
+
+import com.mpatric.mp3agic.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Builds {@link Song} objects from MP3 files. Reading the ID3 tags and counting the frames of a file requires
+ * scanning all of it, so results are kept in a {@link MetadataCache} and files that did not change since they
+ * were last parsed are answered from the cache without being opened.
+ *
+ * @see MetadataCache
+ */
+public final class SongParser {
+
+    private static final int MAX_STREAMED_TAG = 1024 * 1024;
+
+    private SongParser() {
+    }
+
+    /**
+     * Parses an MP3 file using the default {@link MetadataCache}.
+     *
+     * @param file MP3 file.
+     * @return a {@link Song} with a new {@link UUID}, or null if the file could not be parsed.
+     */
+    public static Song parse(File file) {
+        return parse(file, MetadataCache.getDefault());
+    }
+
+    /**
+     * Parses an MP3 file, skipping the scan when the cache has an entry for it.
+     *
+     * @param file  MP3 file.
+     * @param cache cache to look up and store the metadata in, or null to always scan.
+     * @return a {@link Song} with a new {@link UUID}, or null if the file could not be parsed.
+     */
+    public static Song parse(File file, MetadataCache cache) {
+        String filePath = file.getPath();
+        long fileSize = 0;
+        long lastModified = 0;
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+            fileSize = attributes.size();
+            lastModified = attributes.lastModifiedTime().toMillis();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        MetadataCache.Entry entry = cache == null ? null : cache.lookup(filePath, fileSize, lastModified);
+        if (entry == null) {
+            entry = scan(file, fileSize, lastModified);
+            if (entry == null) return null;
+            if (cache != null) cache.store(filePath, entry);
+        }
+
+        String uuid = UUID.randomUUID().toString();
+        return new Song(uuid, entry.title(), entry.album(), entry.artist(), entry.year(),
+                lengthToString(entry.msLength()), entry.msLength(), filePath, (int) fileSize,
+                entry.numFrames(), entry.msPerFrame());
+    }
+
+    /**
+     * Builds a {@link Song} streamed from a URL, reading only the start of it: the ID3v2 tag for the title,
+     * album, artist and year, and the first frame for the length, which {@link FrameIndex#estimate} derives from
+     * the Xing header or the bitrate. Nothing is downloaded past the first frame, and streamed songs are not cached.
+     *
+     * @param uri {@code http} or {@code https} address of an MP3 file, which must answer range requests to be seekable.
+     * @return a {@link Song} with a new {@link UUID}, or null if the start of the file could not be read.
+     * @see HttpRangeSource
+     */
+    public static Song parse(URI uri) {
+        HttpRangeSource source = new HttpRangeSource(uri);
+        String title = "";
+        String album = "";
+        String artist = "";
+        String year = "";
+        ByteBuffer head;
+        long audioStart;
+        long size;
+        try (InputStream in = source.open(0)) {
+            byte[] start = in.readNBytes(10);
+            audioStart = FrameIndex.id3v2Size(ByteBuffer.wrap(start));
+            if (audioStart > 0 && audioStart <= MAX_STREAMED_TAG) {
+                byte[] tag = Arrays.copyOf(start, (int) audioStart);
+                in.readNBytes(tag, start.length, tag.length - start.length);
+                try {
+                    ID3v2 id3 = ID3v2TagFactory.createTag(tag);
+                    title = id3.getTitle();
+                    album = id3.getAlbum();
+                    artist = id3.getArtist();
+                    year = id3.getYear();
+                } catch (UnsupportedTagException | InvalidDataException | NoSuchTagException e) {
+                    e.printStackTrace();
+                }
+            } else if (audioStart > 0) {
+                in.skipNBytes(audioStart - start.length);       // Tag too large to be worth downloading (cover art)
+            }
+            head = ByteBuffer.allocate(16 * 1024);
+            if (audioStart == 0) head.put(start);
+            head.put(in.readNBytes(head.remaining())).flip();
+            size = source.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        int first = FrameIndex.firstFrame(head);
+        if (first < 0) return null;
+        float[] estimate = FrameIndex.estimate(head, first, size - audioStart - first);
+        int numFrames = (int) estimate[0];
+        float msPerFrame = estimate[1];
+        float msLength = numFrames * msPerFrame;
+
+        if (title == null || title.isBlank()) title = fileName(uri);
+        if (album == null || album.isBlank()) album = "Untitled";
+        if (artist == null || artist.isBlank()) artist = "Unknown";
+        if (year == null || year.isBlank()) year = "Unknown";
+
+        return new Song(UUID.randomUUID().toString(), title, album, artist, year, lengthToString(msLength), msLength,
+                uri.toString(), (int) size, numFrames, msPerFrame);
+    }
+
+    /**
+     * @return the last part of the path of the URL without its extension, or "Untitled".
+     */
+    private static String fileName(URI uri) {
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) name = name.substring(0, dot);
+        return name.isBlank() ? "Untitled" : name;
+    }
+
+    /**
+     * Reads the tags and counts the frames of the file with mp3agic.
+     */
+    private static MetadataCache.Entry scan(File file, long fileSize, long lastModified) {
+        String title = "";
+        String album = "";
+        String artist = "";
+        String year = "";
+
+        // Try to get ID3 info
+        Mp3File mp3File = null;
+        try {
+            mp3File = new Mp3File(file);
+        } catch (IOException | UnsupportedTagException | InvalidDataException | IllegalArgumentException e) {
+            // mp3agic throws IllegalArgumentException for files shorter than an ID3v1 tag
+            e.printStackTrace();
+        }
+        if (mp3File == null) return null;
+        if (mp3File.hasId3v1Tag()) {
+            ID3v1 id3 = mp3File.getId3v1Tag();
+            title = id3.getTitle();
+            album = id3.getAlbum();
+            artist = id3.getArtist();
+            year = id3.getYear();
+        } else if (mp3File.hasId3v2Tag()) {
+            ID3v2 id3 = mp3File.getId3v2Tag();
+            title = id3.getTitle();
+            album = id3.getAlbum();
+            artist = id3.getArtist();
+            year = id3.getYear();
+        }
+
+        int numFrames = mp3File.getFrameCount();
+        float msLength = mp3File.getLengthInMilliseconds();
+        float msPerFrame = msLength / numFrames;
+
+        if (title == null || title.isBlank()) title = "Untitled";
+        if (album == null || album.isBlank()) album = "Untitled";
+        if (artist == null || artist.isBlank()) artist = "Unknown";
+        if (year == null || year.isBlank()) year = "Unknown";
+
+        return new MetadataCache.Entry(fileSize, lastModified, title, album, artist, year, numFrames, msPerFrame, msLength);
+    }
+
+    private static String lengthToString(float msLength) {
+        Duration duration = Duration.ofMillis((long) msLength);
+        long HH = duration.toHours();
+        long MM = duration.toMinutesPart();
+        long SS = duration.toSecondsPart();
+        return String.format("%d:%02d:%02d", HH, MM, SS);
+    }
+}
@@ -0,0 +1,49 @@
+package support;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Where the bytes of a {@link Song} are read from. Decoding, indexing and seeking only need to read the song
+ * forward from a byte offset, so a source is either a local file ({@link FileSource}) or anything that can serve
+ * byte ranges, such as an HTTP server or an object store ({@link HttpRangeSource}).
+ *
+ * @see Song#getSource()
+ */
+public interface SongSource {
+    /**
+     * Opens the song at the specified byte, so playback can start or resume in the middle without reading what
+     * comes before.
+     *
+     * @param offset position of the first byte to read.
+     * @return stream of the bytes from offset to the end; empty if offset is at or past the end.
+     */
+    InputStream open(long offset) throws IOException;
+
+    /**
+     * @return size of the song in bytes.
+     */
+    long size() throws IOException;
+
+    /**
+     * Maps the song into memory, so it can be read with {@link MappedInputStream}s from any position.
+     *
+     * @return read-only mapping of the whole song.
+     * @throws IOException if the source cannot be mapped; {@link #open(long)} still works then.
+     */
+    default MappedByteBuffer map() throws IOException {
+        throw new IOException(this + " cannot be mapped");
+    }
+
+    /**
+     * @param location path of a local file, or an {@code http://} or {@code https://} URL.
+     * @return the source reading the specified location.
+     */
+    static SongSource of(String location) {
+        if (HttpRangeSource.isUrl(location)) return new HttpRangeSource(URI.create(location));
+        return new FileSource(Path.of(location));
+    }
+}
@@ -0,0 +1,166 @@
+package support;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.MouseInputAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
+import java.util.List;
+
+/**
+ * Swing front end of the player: builds the {@link PlayerWindow} on the Event Dispatch Thread, turns its buttons
+ * and scrubber into calls to a {@link PlayerControl}, and shows what the engine reports. Every update is handed to
+ * the EDT, and the frequent state updates go through a {@link UiPublisher}, so the playback threads never wait on
+ * Swing.
+ * <p>
+ * With {@code -Dtolafy.startupTrace=true} the time from the start of the process to the first paint of the window
+ * is printed to stderr; {@code -Dtolafy.exitAfterPaint=true} also exits right after it, to measure startup or to
+ * record a class data sharing archive.
+ */
+public class SwingPlayerView implements PlayerView {
+    private static final boolean EXIT_AFTER_PAINT = Boolean.getBoolean("tolafy.exitAfterPaint");
+    private static final boolean STARTUP_TRACE = EXIT_AFTER_PAINT || Boolean.getBoolean("tolafy.startupTrace");
+
+    private final PlayerControl control;
+    private final UiPublisher<PlaybackSnapshot> ui = new UiPublisher<>(UiPublisher.DEFAULT_HZ, this::render);
+    private volatile PlayerWindow window;
+
+    /**
+     * Opens the window. Can be called from any thread.
+     *
+     * @param title   title of the window.
+     * @param control engine the buttons control.
+     */
+    public SwingPlayerView(String title, PlayerControl control) {
+        this.control = control;
+        PlayerWindow.prepare();
+        SwingUtilities.invokeLater(() -> {
+            long building = System.nanoTime();
+            window = new PlayerWindow(
+                    title,
+                    List.of(),
+                    e -> {                                          // Play now
+                        int index = window.getSelectedSongIndex();
+                        if (index >= 0) control.play(index);        // -1 if no song is selected
+                    },
+                    e -> control.remove(window.getSelectedSongIndex()),
+                    e -> {                                          // Add song
+                        Song file = window.openFileChooser();
+                        if (file != null) control.enqueue(file);    // Null if the user cancelled
+                    },
+                    e -> {                                          // Add folder, or cancel the running import
+                        if (control.cancelImport()) return;
+                        File folder = window.openFolderChooser();
+                        if (folder != null) control.importFolder(folder);
+                    },
+                    e -> control.toggleShuffle(),
+                    e -> control.previous(),
+                    e -> control.togglePause(),
+                    e -> control.stop(),
+                    e -> control.next(),
+                    e -> control.toggleLoop(),
+                    new MouseInputAdapter() {
+                        @Override
+                        public void mousePressed(MouseEvent e) {
+                            control.scrub(window.getScrubberValue());
+                        }
+
+                        @Override
+                        public void mouseDragged(MouseEvent e) {
+                            control.scrub(window.getScrubberValue());
+                        }
+
+                        @Override
+                        public void mouseReleased(MouseEvent e) {
+                            control.seek(window.getScrubberValue());
+                        }
+                    });
+            if (STARTUP_TRACE) window.setFirstPaintListener(() -> firstPaint(building));
+            ui.start();
+        });
+    }
+
+    private static void firstPaint(long building) {
+        System.err.printf("first-paint %d ms after process start (window built and painted in %d ms)%n",
+                PlaybackMetrics.millisSinceProcessStart(), (System.nanoTime() - building) / 1_000_000);
+        if (EXIT_AFTER_PAINT) System.exit(0);
+    }
+
+
+    @Override
+    public void showState(PlaybackSnapshot snapshot) {
+        ui.publish(snapshot);
+    }
+
+    @Override
+    public boolean isStatePending() {
+        return ui.isPending();
+    }
+
+    @Override
+    public void showSong(Song song) {
+        SwingUtilities.invokeLater(() -> {
+            window.setEnabledPlayPauseButton(true);
+            window.setEnabledStopButton(true);
+            window.setEnabledScrubber(true);
+            window.setPlayingSongInfo(song.getTitle(), song.getAlbum(), song.getArtist());
+        });
+    }
+
+    @Override
+    public void showStopped() {
+        SwingUtilities.invokeLater(() -> {
+            ui.reset();                 // Drops the pending state of the song that stopped
+            window.resetMiniPlayer();
+        });
+    }
+
+    @Override
+    public void showPaused(boolean paused) {
+        SwingUtilities.invokeLater(() -> window.setPlayPauseButtonIcon(paused ? window.BUTTON_ICON_PLAY : window.BUTTON_ICON_PAUSE));
+    }
+
+    @Override
+    public void showAdded(List<Song> songs) {
+        window.addToQueue(songs);
+    }
+
+    @Override
+    public void showRemoved(int index) {
+        window.removeFromQueue(index);
+    }
+
+    @Override
+    public void showQueue(List<Song> songs) {
+        window.setQueue(songs);
+    }
+
+    @Override
+    public void showQueueControls(boolean enabled) {
+        SwingUtilities.invokeLater(() -> {
+            window.setEnabledLoopButton(enabled);
+            window.setEnabledShuffleButton(enabled);
+        });
+    }
+
+    @Override
+    public void showImporting(boolean importing) {
+        SwingUtilities.invokeLater(() -> window.setImporting(importing));
+    }
+
+    @Override
+    public void showImportProgress(String progress) {
+        SwingUtilities.invokeLater(() -> window.setImportProgress(progress));
+    }
+
+    /**
+     * Paints a state published by the engine. Called by the {@link UiPublisher} on the EDT, only when something changed.
+     */
+    private void render(PlaybackSnapshot snapshot) {
+        window.setTime(snapshot.currentTime(), snapshot.totalTime());
+        window.setPlayPauseButtonIcon(snapshot.paused() ? window.BUTTON_ICON_PLAY : window.BUTTON_ICON_PAUSE);
+        window.setEnabledNextButton(snapshot.nextEnabled());
+        window.setEnabledPreviousButton(snapshot.previousEnabled());
+        window.setEnabledLoopButton(snapshot.loopEnabled());
+        window.setEnabledShuffleButton(snapshot.shuffleEnabled());
+    }
+}
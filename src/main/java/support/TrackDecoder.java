@@ -0,0 +1,430 @@
+package support;
+
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.BitstreamException;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.decoder.JavaLayerException;
+import javazoom.jl.decoder.SampleBuffer;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Decodes one song frame by frame into a {@link PcmRingBuffer}. Each track has its own {@link Bitstream} and
+ * borrows a {@link ReusableDecoder} from an {@link AudioOutput} until it is closed, so the next song can be opened,
+ * and its first frames decoded with {@link #prime(int)}, while the current one is still playing.
+ * <p>
+ * In gapless mode the samples that are not part of the song are trimmed: the Xing/Info frame, the encoder delay
+ * plus the {@value #DECODER_DELAY} samples of delay of the decoder at the start, and the encoder padding at the end.
+ * Both come from the {@link FrameIndex} of the song, or until it is ready from the first frame, read with
+ * {@link FrameIndex#readGapless} when the track is opened; a streamed song is trimmed long before it is indexed.
+ * The file is read only up to the end of its last frame, because JLayer drops the last frame when it is followed
+ * by a tag.
+ * <p>
+ * The file is mapped into memory when the track is opened and read with {@link MappedInputStream}s, so seeking
+ * only creates a view of the mapping at another position. Files that cannot be mapped, or every file when
+ * {@code -Dtolafy.mmap=false}, are read with a {@link java.io.BufferedInputStream} instead.
+ * <p>
+ * With a {@link PcmCache}, a song decoded from its first frame to its last is recorded into the cache, and a song
+ * found in the cache is read from it: no file is opened, no decoder is borrowed and seeking only moves the frame
+ * number. Seeks backwards while recording keep the recording going once decoding is back where it stopped, as long
+ * as the decoder had {@value #SETTLE_FRAMES} frames to refill its state; other seeks abandon it.
+ * <p>
+ * A track decoder is not thread-safe. It is used by one thread at a time, and handed over between threads
+ * through a {@link CompletableFuture} or a lock.
+ */
+public class TrackDecoder {
+    /**
+     * Number of samples (per channel) every MP3 decoder outputs before the first encoded sample.
+     */
+    public static final int DECODER_DELAY = 529;
+    private static final boolean MMAP = Boolean.parseBoolean(System.getProperty("tolafy.mmap", "true"));
+    /**
+     * Frames decoded after a seek before the output matches decoding from the start: the bit reservoir reaches
+     * back up to 511 bytes, and the overlap and the synthesis filters hold one frame.
+     */
+    public static final int SETTLE_FRAMES = 8;
+
+    private final Song song;
+    private final CompletableFuture<FrameIndex> index;
+    private final AudioOutput output;
+    private final ReusableDecoder decoder;
+    private final boolean gapless;
+    private final ByteBuffer mapping;       // Null when the file is read through streams or from the cache.
+    private final FrameIndex.Gapless start; // Read from the first frame when the index was not ready, or null.
+    private boolean closed;
+    private Bitstream bitstream;            // Null when the song is read from the cache.
+    private PcmCache.Entry cached;          // Decoded frames of the song, or null if they have to be decoded.
+    private short[] cachedSamples;
+    private PcmCache.Recorder recorder;     // Records the decoded frames for the cache, or null.
+    private int decodedLength;              // Number of samples of the last frame returned by next().
+    private int frame;      // Next frame to be read from the bitstream.
+    private int keepOffset; // Part of the last decoded frame that belongs to the song, set by keep().
+    private int keepLength;
+
+    // Frames decoded ahead of time by prime(), already trimmed.
+    private short[][] primed = new short[0][];
+    private int[] primedLengths = new int[0];
+    private int primedCount;
+    private int primedNext;
+
+    /**
+     * Opens the song at its first frame.
+     *
+     * @param song    song to decode.
+     * @param index   frame index of the song, used for trimming and seeking once it is done.
+     * @param output  pool the decoder is borrowed from until {@link #close()}.
+     * @param gapless True to trim the samples that are not part of the song.
+     */
+    public TrackDecoder(Song song, CompletableFuture<FrameIndex> index, AudioOutput output, boolean gapless) throws IOException {
+        this(song, index, output, gapless, null);
+    }
+
+    /**
+     * Opens the song at its first frame, reading it from the cache if it is there, and recording it otherwise.
+     *
+     * @param song    song to decode.
+     * @param index   frame index of the song, used for trimming and seeking once it is done.
+     * @param output  pool the decoder is borrowed from until {@link #close()}.
+     * @param gapless True to trim the samples that are not part of the song.
+     * @param cache   cache of decoded songs, or null.
+     */
+    public TrackDecoder(Song song, CompletableFuture<FrameIndex> index, AudioOutput output, boolean gapless, PcmCache cache) throws IOException {
+        this.song = song;
+        this.index = index;
+        this.output = output;
+        this.gapless = gapless;
+        this.start = gapless && getIndex() == null ? readGapless(song) : null;
+        this.cached = cache == null ? null : cache.get(song);
+        if (cached != null) {
+            this.mapping = null;
+            this.decoder = null;
+            this.cachedSamples = new short[PcmRingBuffer.MAX_FRAME_SAMPLES];
+            return;
+        }
+        this.mapping = MMAP ? map(song) : null;
+        this.bitstream = open(0);
+        this.decoder = output.acquireDecoder();
+        this.recorder = cache == null ? null : cache.record(song);
+    }
+
+    public Song getSong() {
+        return song;
+    }
+
+    /**
+     * @return the decoder borrowed from the output, or null if the song is read from the cache.
+     */
+    public ReusableDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * @return True if the frames are read from the {@link PcmCache} instead of decoded.
+     */
+    public boolean isCached() {
+        return cached != null;
+    }
+
+    /**
+     * @return the frame index of the song, or null if it is still being built or failed.
+     */
+    public FrameIndex getIndex() {
+        if (!index.isDone() || index.isCompletedExceptionally()) return null;
+        return index.join();
+    }
+
+    /**
+     * @return what trimming and gapless chaining need: from the index when it is ready, or else from the first
+     * frame; null if neither could be read, or if the track is not gapless and the index is not ready.
+     */
+    public FrameIndex.Gapless getGapless() {
+        FrameIndex ready = getIndex();
+        return ready != null ? ready.getGapless() : start;
+    }
+
+    /**
+     * @return number of the next frame to be decoded (frames handed out by {@link #prime(int)} included).
+     */
+    public int getFrame() {
+        return frame - (primedCount - primedNext);
+    }
+
+    /**
+     * Decodes up to the specified number of frames ahead of time, so the first call to
+     * {@link #decodeFrame(PcmRingBuffer, int, int)} after the track is handed over does no decoding work.
+     *
+     * @param frames number of frames to decode.
+     */
+    public void prime(int frames) throws JavaLayerException {
+        prime(frames, null);
+    }
+
+    /**
+     * Like {@link #prime(int)}, for background work that must give way to playback.
+     *
+     * @param frames      number of frames to decode.
+     * @param beforeFrame called before each frame is decoded, and may block until the CPU is free; null for none.
+     */
+    public void prime(int frames, Runnable beforeFrame) throws JavaLayerException {
+        primed = new short[frames][PcmRingBuffer.MAX_FRAME_SAMPLES];
+        primedLengths = new int[frames];
+        primedCount = 0;
+        primedNext = 0;
+        while (primedCount < frames) {
+            if (beforeFrame != null) beforeFrame.run();
+            int number = frame;
+            short[] samples = next();
+            if (samples == null) break;
+            keep(number, decodedLength);
+            System.arraycopy(samples, keepOffset, primed[primedCount], 0, keepLength);
+            primedLengths[primedCount++] = keepLength;
+        }
+    }
+
+    /**
+     * Decodes the next frame and offers its samples to the ring, which must have space for one block.
+     * Frames that are trimmed away entirely are read but not offered.
+     *
+     * @param ring  ring to offer the samples to.
+     * @param epoch seek epoch of the samples.
+     * @param track track number of the samples.
+     * @return False if there are no more frames to decode.
+     */
+    public boolean decodeFrame(PcmRingBuffer ring, int epoch, int track) throws JavaLayerException {
+        if (primedNext < primedCount) {
+            int number = getFrame();
+            int length = primedLengths[primedNext];
+            if (length > 0) ring.offer(primed[primedNext], 0, length, number, epoch, track);
+            primedNext++;
+            return true;
+        }
+        int number = frame;
+        short[] samples = next();
+        if (samples == null) return false;
+        keep(number, decodedLength);
+        if (keepLength > 0) ring.offer(samples, keepOffset, keepLength, number, epoch, track);
+        return true;
+    }
+
+    /**
+     * Decodes the next frame, or reads it from the cache, recording it if it is the one the recorder expects.
+     *
+     * @return the samples of the frame, valid until the next call, with their number in {@code decodedLength};
+     * null at the end of the song.
+     */
+    private short[] next() throws JavaLayerException {
+        int number = frame;
+        if (cached != null) {
+            if (number >= cached.getFrames()) return null;
+            decodedLength = cached.read(number, cachedSamples);
+            frame++;
+            return cachedSamples;
+        }
+        Header h = bitstream.readFrame();
+        if (h == null) {
+            finishRecording();
+            return null;
+        }
+        SampleBuffer output = (SampleBuffer) decoder.decodeFrame(h, bitstream);
+        bitstream.closeFrame();
+        frame++;
+        decodedLength = output.getBufferLength();
+        if (recorder != null && number == recorder.getNextFrame()) recorder.add(output.getBuffer(), decodedLength, channels());
+        return output.getBuffer();
+    }
+
+    /**
+     * Hands the recording over to the cache at the end of the song. From then on, seeks read from the recording.
+     */
+    private void finishRecording() {
+        if (recorder == null) return;
+        cached = recorder.finish();
+        recorder = null;
+        if (cached != null) cachedSamples = new short[PcmRingBuffer.MAX_FRAME_SAMPLES];
+    }
+
+    /**
+     * @return False if there are no more frames to skip.
+     */
+    public boolean skipFrame() throws BitstreamException {
+        if (cached != null) {
+            if (frame >= cached.getFrames()) return false;
+            frame++;
+            return true;
+        }
+        if (recorder != null && frame == recorder.getNextFrame()) recorder.abandon();
+        Header h = bitstream.readFrame();
+        if (h == null) return false;
+        bitstream.closeFrame();
+        frame++;
+        return true;
+    }
+
+    /**
+     * Moves the bitstream to the target frame in either direction. When the frame index of the song is ready,
+     * the file is reopened at the last checkpoint before the target, so at most one checkpoint interval of
+     * frames is parsed. Otherwise the file is reopened from the start (backwards seeks only) and skipped frame by frame.
+     * A song read from the cache only changes the number of the next frame.
+     *
+     * @param newFrame frame to seek to.
+     */
+    public void seek(int newFrame) throws IOException, BitstreamException {
+        primedCount = primedNext = 0;       // Frames decoded ahead are only valid at the old position.
+        if (cached != null) {
+            frame = Math.max(0, Math.min(newFrame, cached.getFrames()));
+            return;
+        }
+        if (recorder != null && newFrame != 0 && newFrame + SETTLE_FRAMES > recorder.getNextFrame()) {
+            recorder.abandon();     // The decoder would not be back to what decoding from the start gives.
+            recorder = null;
+        }
+        FrameIndex ready = getIndex();
+        if (ready != null) {
+            int checkpoint = ready.checkpointBefore(newFrame);
+            if (newFrame < frame || ready.frameOf(checkpoint) > frame) {
+                bitstream.close();
+                bitstream = open(ready.offsetOf(checkpoint));
+                frame = ready.frameOf(checkpoint);
+            }
+        } else if (newFrame < frame) {
+            bitstream.close();
+            bitstream = open(0);
+            frame = 0;
+        }
+        boolean more = true;
+        while (frame < newFrame && more) more = skipFrame();
+        decoder.reset();        // The reservoir and filters hold audio from the old position.
+    }
+
+    /**
+     * Closes the file and gives the decoder back to the pool. Closing more than once has no effect.
+     */
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (recorder != null) recorder.abandon();
+        if (bitstream != null) {
+            try {
+                bitstream.close();
+            } catch (BitstreamException ignored) {
+            }
+        }
+        if (decoder != null) output.releaseDecoder(decoder);
+    }
+
+    /**
+     * Computes which part of a decoded frame belongs to the song into {@code keepOffset} and {@code keepLength}.
+     *
+     * @param number frame number.
+     * @param length number of samples (all channels) the frame decoded into.
+     */
+    private void keep(int number, int length) {
+        keepOffset = 0;
+        keepLength = length;
+        FrameIndex.Gapless ready = gapless ? getGapless() : null;
+        if (ready == null || !ready.infoFrame()) return;
+        keepLength = 0;
+        if (number == 0) return;        // Xing/Info frame.
+        int channels = channels();
+        long perFrame = ready.samplesPerFrame();
+        long total = (ready.numFrames() - 1) * perFrame;
+        long first = ready.encoderDelay() + DECODER_DELAY;
+        long end = ready.numFrames() < 0 ? Long.MAX_VALUE       // Length unknown until the index is ready.
+                : Math.min(total, total - ready.encoderPadding() + DECODER_DELAY);
+        long start = (number - 1) * perFrame;
+        long from = Math.max(start, first);
+        long to = Math.min(start + length / channels, end);
+        if (to <= from) return;
+        keepOffset = (int) (from - start) * channels;
+        keepLength = (int) (to - from) * channels;
+    }
+
+    private int channels() {
+        return cached != null ? cached.getChannels() : Math.max(1, decoder.getOutputChannels());
+    }
+
+    /**
+     * @return True if the file is read from a memory mapping, false if it is read through a stream or from the cache.
+     */
+    public boolean isMapped() {
+        return mapping != null;
+    }
+
+    /**
+     * Opens the file at the specified byte, stopping at the end of the last frame when the index is ready.
+     */
+    private Bitstream open(long offset) throws IOException {
+        FrameIndex ready = getIndex();
+        boolean bounded = ready != null && ready.getDataEnd() > offset;
+        if (mapping != null) return new Bitstream(new MappedInputStream(mapping, offset, bounded ? ready.getDataEnd() : Long.MAX_VALUE));
+        InputStream stream = song.getBufferedInputStream(offset);
+        if (bounded) stream = new BoundedInputStream(stream, ready.getDataEnd() - offset);
+        return new Bitstream(stream);
+    }
+
+    /**
+     * @return what trimming needs, read from the first frame, or null if it cannot be read.
+     */
+    private static FrameIndex.Gapless readGapless(Song song) {
+        try {
+            return FrameIndex.readGapless(song.getSource());
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the mapping of the file, or null if it cannot be mapped.
+     */
+    private static ByteBuffer map(Song song) {
+        try {
+            return song.map();
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Input stream that ends after a fixed number of bytes.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(Math.min(n, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+}
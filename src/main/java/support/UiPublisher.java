@@ -0,0 +1,115 @@
+package support;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Hands immutable snapshots from background threads to the Event Dispatch Thread at a fixed rate.
+ * {@link #publish(Object)} only replaces the pending snapshot, so it never blocks and never touches Swing;
+ * a Swing {@link Timer} then paints the latest one {@code hz} times per second at most, and skips it if it is
+ * equal to the last one painted. However fast snapshots are published, the EDT does the same amount of work.
+ * <p>
+ * Counters tell how many snapshots were published, how many were painted and how many were skipped, either
+ * because a newer one replaced them before the next tick or because nothing changed.
+ *
+ * @param <T> type of the snapshots; must be immutable and implement {@code equals}.
+ */
+public class UiPublisher<T> {
+    /**
+     * Default refresh rate, configurable with {@code -Dtolafy.uiHz}.
+     */
+    public static final int DEFAULT_HZ = Integer.getInteger("tolafy.uiHz", 20);
+
+    private final Consumer<T> renderer;
+    private final Timer timer;
+    private final AtomicReference<T> pending = new AtomicReference<>();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private T lastRendered;     // Only touched on the EDT.
+
+    /**
+     * @param hz       maximum number of snapshots painted per second.
+     * @param renderer paints a snapshot; always called on the EDT.
+     */
+    public UiPublisher(int hz, Consumer<T> renderer) {
+        this.renderer = renderer;
+        this.timer = new Timer(Math.max(1, 1000 / hz), e -> flush());
+        this.timer.setCoalesce(true);
+    }
+
+    /**
+     * Starts painting. Can be called from any thread.
+     */
+    public void start() {
+        timer.start();
+    }
+
+    public void stop() {
+        timer.stop();
+    }
+
+    /**
+     * Makes the snapshot the next one to be painted, replacing any snapshot not painted yet.
+     * Can be called from any thread.
+     *
+     * @param snapshot new state.
+     */
+    public void publish(T snapshot) {
+        published.incrementAndGet();
+        pending.set(snapshot);
+    }
+
+    /**
+     * Lets a producer that publishes very often skip building snapshots nobody would see: while this returns
+     * true, a new snapshot would only replace one that has not been painted yet.
+     *
+     * @return True if a published snapshot is waiting for the next tick.
+     */
+    public boolean isPending() {
+        return pending.get() != null;
+    }
+
+    /**
+     * Paints the pending snapshot now if it differs from the last one painted. Called by the timer; must be
+     * called on the EDT.
+     */
+    public void flush() {
+        T snapshot = pending.getAndSet(null);
+        if (snapshot == null || snapshot.equals(lastRendered)) return;
+        lastRendered = snapshot;
+        sent.incrementAndGet();
+        renderer.accept(snapshot);
+    }
+
+    /**
+     * Drops the pending snapshot and forgets the last one painted, so the next snapshot is painted even if it
+     * equals it. Used when the window was repainted by other means (such as being reset on stop).
+     * Must be called on the EDT.
+     */
+    public void reset() {
+        if (!SwingUtilities.isEventDispatchThread()) throw new IllegalStateException("not on the EDT");
+        pending.set(null);
+        lastRendered = null;
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * @return number of snapshots painted.
+     */
+    public long getSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return number of snapshots published but not painted, because they were replaced or unchanged.
+     */
+    public long getSkipped() {
+        return published.get() - sent.get();
+    }
+}
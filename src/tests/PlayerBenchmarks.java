@@ -0,0 +1,466 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.player.AudioDevice;
+import javazoom.jl.player.NullAudioDevice;
+import support.AudioOutput;
+import support.FrameIndex;
+import support.LatencyHistogram;
+import support.MappedInputStream;
+import support.HeadlessView;
+import support.MetadataCache;
+import support.OfflineRenderer;
+import support.PcmCache;
+import support.PcmRingBuffer;
+import support.PlaybackRuntime;
+import support.Playlist;
+import support.Song;
+import support.SongParser;
+import support.TrackDecoder;
+
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.SourceDataLine;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro benchmarks for the player. Run the main method with the test classpath; results are printed as
+ * the average time per operation after a warm-up round. Everything runs headless: audio goes to a
+ * {@link NullAudioDevice}, so the numbers can be compared between machines and builds to catch regressions.
+ */
+class PlayerBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        decodeLoop();
+        seeking();
+        metricsRecording();
+        metadataParsing();
+        playlistOperations();
+        songHeap();
+        startLatency();
+        frameReading();
+        pcmCache();
+        sessions();
+        offlineRender();
+    }
+
+    /**
+     * The playback loop without the sound card: decode a frame into the ring, write the block to a null device,
+     * release it. Reports throughput, time per frame, bytes allocated per frame by the loop thread and the
+     * garbage collections that happened while it ran.
+     */
+    static void decodeLoop() throws Exception {
+        Song[] songs = indexedSongs();
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        AudioDevice device = output.open(FrameIndex.readFormat(Path.of(songs[0].getFilePath())));
+        PcmRingBuffer ring = new PcmRingBuffer(8, PcmRingBuffer.MAX_FRAME_SAMPLES);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        for (int round = 0; round < 2; round++) {
+            long frames = 0;
+            long collections = gcCount();
+            long gcMillis = gcMillis();
+            long allocated = threads.getThreadAllocatedBytes(id);
+            long start = System.nanoTime();
+            for (int pass = 0; pass < 3; pass++) {
+                for (Song song : songs) {
+                    TrackDecoder track = new TrackDecoder(song, FrameIndex.of(song), output, true);
+                    while (track.decodeFrame(ring, 0, 0)) {
+                        int slot = ring.peek();
+                        if (slot < 0) continue;         // Trimmed frame.
+                        device.write(ring.samples(slot), 0, ring.length(slot));
+                        ring.release();
+                        frames++;
+                    }
+                    track.close();
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated = threads.getThreadAllocatedBytes(id) - allocated;
+            if (round == 0) continue;
+            report("decode loop", frames, elapsed, round);
+            System.out.printf("%-40s %12d ns/frame%n", "decode loop", elapsed / frames);
+            System.out.printf("%-40s %12d bytes/frame%n", "decode loop allocation", allocated / frames);
+            System.out.printf("%-40s %12d collections, %d ms%n", "decode loop gc", gcCount() - collections, gcMillis() - gcMillis);
+        }
+        output.close();
+    }
+
+    /**
+     * Seeking with {@link TrackDecoder#seek(int)} to random frames, forwards and backwards, once the frame index
+     * is ready: reopen at the checkpoint before the target and skip the frames after it.
+     */
+    static void seeking() throws Exception {
+        Song[] songs = indexedSongs();
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        TrackDecoder[] tracks = new TrackDecoder[songs.length];
+        for (int i = 0; i < songs.length; i++) tracks[i] = new TrackDecoder(songs[i], FrameIndex.of(songs[i]), output, true);
+        Random random = new Random(7);
+        measure("seek (random frame)", 2_000, i -> {
+            TrackDecoder track = tracks[i % tracks.length];
+            track.seek(random.nextInt(track.getIndex().getNumFrames()));
+            return track;
+        });
+        for (TrackDecoder track : tracks) track.close();
+    }
+
+    /**
+     * Cost of recording one duration. The player records about three per frame, and a frame lasts 26 ms at
+     * 44.1 kHz, so the overhead of enabled metrics is this cost times three over 26 ms.
+     */
+    static void metricsRecording() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        measure("metrics record (x1000)", 10_000, i -> {
+            for (int j = 0; j < 1000; j++) histogram.record(System.nanoTime() & 0xfffff);
+            return histogram;
+        });
+    }
+
+    /**
+     * Compares parsing songs with mp3agic against answering them from the {@link MetadataCache}.
+     */
+    static void metadataParsing() throws Exception {
+        File[] songs = testSongs();
+        File cacheFile = Files.createTempFile("tolafy-bench", ".cache").toFile();
+        cacheFile.deleteOnExit();
+        MetadataCache cache = new MetadataCache(cacheFile);
+        for (File song : songs) SongParser.parse(song, cache);
+
+        measure("parse (mp3agic scan)", 20, i -> SongParser.parse(songs[i % songs.length], null));
+        measure("parse (metadata cache hit)", 20_000, i -> SongParser.parse(songs[i % songs.length], cache));
+    }
+
+    /**
+     * Lookup by UUID and removal by index should stay flat from 1k to 1M songs, in original and shuffled order.
+     * Turning shuffle on is linear in the number of songs, turning it off should not be.
+     */
+    static void playlistOperations() throws Exception {
+        for (int size : new int[]{1_000, 10_000, 100_000, 1_000_000}) {
+            Playlist playlist = new Playlist();
+            for (int i = 0; i < size; i++) playlist.add(song(i));
+            Random random = new Random(size);
+            measure("playlist findIndex (" + size + ")", 100_000, i -> playlist.findIndex("uuid-" + random.nextInt(size)));
+            measure("playlist remove + add (" + size + ")", 10_000, i -> {
+                playlist.remove(random.nextInt(playlist.size()));
+                playlist.add(song(size + i));
+                return playlist;
+            });
+            measure("playlist shuffle on + off (" + size + ")", 10, i -> {
+                playlist.toggleShuffle(true);
+                playlist.toggleShuffle(true);
+                return playlist;
+            });
+            playlist.toggleShuffle(true);
+            measure("playlist shuffled findIndex (" + size + ")", 100_000, i -> playlist.findIndex("uuid-" + random.nextInt(size)));
+            measure("playlist shuffled remove + add (" + size + ")", 10_000, i -> {
+                playlist.remove(random.nextInt(playlist.size()));
+                playlist.add(song(2 * size + i));
+                return playlist;
+            });
+            long start = System.nanoTime();
+            playlist.toggleShuffle(true);
+            System.out.printf("%-40s %12.1f us/op%n", "playlist shuffle off (" + size + ")", (System.nanoTime() - start) / 1000.0);
+        }
+    }
+
+    /**
+     * Retained heap per song of a 100k-track library whose strings come fresh from a parser, and bytes
+     * allocated by {@link Playlist#get(int)}, the call made on every next/previous and auto-advance.
+     */
+    static void songHeap() {
+        int tracks = 100_000;
+        long before = usedHeap();
+        Playlist library = new Playlist();
+        for (int i = 0; i < tracks; i++) {
+            // new String(...) mimics tags read from files: equal text, distinct objects.
+            library.add(new Song(java.util.UUID.randomUUID().toString(), "Title " + i, new String("Album " + i / 12),
+                    new String("Artist " + i / 50), new String(String.valueOf(1960 + i % 60)),
+                    String.format("0:%02d:%02d", 2 + i % 4, i % 60), 180_000, "/music/artist/album/song" + i + ".mp3",
+                    4_000_000, 6891, 26.12f));
+        }
+        long retained = usedHeap() - before;
+        System.out.printf("%-40s %12d bytes/song%n", "song heap (" + tracks + " tracks)", retained / tracks);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        Object sink = null;
+        for (int i = 0; i < tracks; i++) sink = library.get(i);
+        long allocated = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < tracks; i++) sink = library.get(i);
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        System.out.printf("%-40s %12d bytes/call%s%n", "playlist get", allocated / tracks, sink == null ? " (null)" : "");
+        if (library.size() != tracks) throw new AssertionError();
+    }
+
+    /**
+     * Time from asking for a song to its first sample written to the device, opening a new device and decoder for
+     * every song (what playNow used to do) against reusing the ones kept by {@link AudioOutput}. The Java Sound
+     * line is used when one can be opened, so the cost of opening it is part of the numbers.
+     */
+    static void startLatency() throws Exception {
+        Song[] songs = indexedSongs();
+        AudioOutput.DeviceFactory factory = lineAvailable() ? AudioOutput.JAVA_SOUND : format -> new NullAudioDevice();
+        String device = lineAvailable() ? "sound line" : "null device";
+
+        measure("start, new device + decoder (" + device + ")", 20, i -> {
+            AudioOutput cold = new AudioOutput(factory);
+            Object sink = firstSample(cold, songs[i % songs.length]);
+            cold.close();
+            return sink;
+        });
+        AudioOutput pooled = new AudioOutput(factory);
+        measure("start, pooled device + decoder (" + device + ")", 20, i -> firstSample(pooled, songs[i % songs.length]));
+        pooled.close();
+    }
+
+    /**
+     * Frames read per second by {@link Bitstream} (headers and frame data, no decoding) from a
+     * {@link BufferedInputStream} over a {@link FileInputStream}, against a {@link MappedInputStream}. Every pass
+     * reopens the file the way a play or backwards seek does; the mapping is made once per song, as
+     * {@link TrackDecoder} does.
+     */
+    static void frameReading() throws Exception {
+        File[] files = testSongs();
+        ByteBuffer[] mappings = new ByteBuffer[files.length];
+        for (int i = 0; i < files.length; i++) mappings[i] = MappedInputStream.map(files[i].toPath());
+
+        for (int round = 0; round < 2; round++) {
+            long frames = 0;
+            long start = System.nanoTime();
+            for (int pass = 0; pass < 20; pass++) {
+                for (File file : files) frames += readFrames(new BufferedInputStream(new FileInputStream(file)));
+            }
+            report("read frames (buffered stream)", frames, System.nanoTime() - start, round);
+            frames = 0;
+            start = System.nanoTime();
+            for (int pass = 0; pass < 20; pass++) {
+                for (ByteBuffer mapping : mappings) frames += readFrames(new MappedInputStream(mapping, 0, Long.MAX_VALUE));
+            }
+            report("read frames (mapped)", frames, System.nanoTime() - start, round);
+        }
+    }
+
+    /**
+     * Replaying the test songs: decoded from the MP3 frames, against read from the memory and the disk tier of a
+     * {@link PcmCache} filled by a first playback. Also seeking inside a cached song.
+     */
+    static void pcmCache() throws Exception {
+        Song[] songs = indexedSongs();
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        Path dir = Files.createTempDirectory("pcm-cache");
+        PcmCache memory = new PcmCache(1L << 30, 0, dir);
+        PcmCache disk = new PcmCache(0, 1L << 30, dir);
+        for (Song song : songs) {
+            replay(new TrackDecoder(song, FrameIndex.of(song), output, true, memory));
+            replay(new TrackDecoder(song, FrameIndex.of(song), output, true, disk));
+        }
+        disk.flush();
+        for (int round = 0; round < 2; round++) {
+            for (PcmCache cache : new PcmCache[]{null, memory, disk}) {
+                long frames = 0;
+                long start = System.nanoTime();
+                for (Song song : songs) frames += replay(new TrackDecoder(song, FrameIndex.of(song), output, true, cache));
+                report(cache == null ? "replay (decoded)" : cache == memory ? "replay (pcm cache, memory)" : "replay (pcm cache, disk)",
+                        frames, System.nanoTime() - start, round);
+            }
+        }
+        TrackDecoder[] tracks = new TrackDecoder[songs.length];
+        for (int i = 0; i < songs.length; i++) tracks[i] = new TrackDecoder(songs[i], FrameIndex.of(songs[i]), output, true, memory);
+        Random random = new Random(7);
+        measure("seek (random frame, pcm cache)", 2_000, i -> {
+            TrackDecoder track = tracks[i % tracks.length];
+            track.seek(random.nextInt(track.getIndex().getNumFrames()));
+            return track;
+        });
+        for (TrackDecoder track : tracks) track.close();
+        System.out.println(memory);
+        System.out.println(disk);
+    }
+
+    static long replay(TrackDecoder track) throws Exception {
+        PcmRingBuffer ring = new PcmRingBuffer(1, PcmRingBuffer.MAX_FRAME_SAMPLES);
+        long frames = 0;
+        while (track.decodeFrame(ring, 0, 0)) {
+            if (ring.peek() >= 0) ring.release();
+            frames++;
+        }
+        track.close();
+        return frames;
+    }
+
+    static int readFrames(InputStream in) throws Exception {
+        Bitstream bitstream = new Bitstream(in);
+        int frames = 0;
+        while (bitstream.readFrame() != null) {
+            bitstream.closeFrame();
+            frames++;
+        }
+        bitstream.close();
+        return frames;
+    }
+
+    /**
+     * Playback sessions sharing one {@link PlaybackRuntime}, each playing to a device that consumes audio in real
+     * time ({@link PlayerTests.PacedDevice}): time until every session plays, then the CPU used per session and the
+     * underruns once they all play and their neighbours are prefetched. The first round warms up.
+     */
+    static void sessions() throws Exception {
+        Song[] songs = indexedSongs();
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        int[] rounds = {16, 16, 32, 64};
+        for (int round = 0; round < rounds.length; round++) {
+            int count = rounds[round];
+            PlaybackRuntime runtime = new PlaybackRuntime(Runtime.getRuntime().availableProcessors(), new PcmCache(0, 0, null));
+            PlaybackSession[] sessions = new PlaybackSession[count];
+            PlayerTests.PacedDevice[] devices = new PlayerTests.PacedDevice[count];
+            CountDownLatch started = new CountDownLatch(count);
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                PlayerTests.PacedDevice device = devices[i] = new PlayerTests.PacedDevice();
+                sessions[i] = new PlaybackSession("session-" + i, new HeadlessView(null) {
+                    @Override
+                    public void audioStarted(Song song, long latencyNanos) {
+                        started.countDown();
+                    }
+                }, format -> device, runtime);
+                for (Song song : songs) sessions[i].enqueue(song);
+                sessions[i].play(i % songs.length);
+            }
+            started.await(60, TimeUnit.SECONDS);
+            long allStarted = System.nanoTime() - start;
+            Thread.sleep(5000);
+
+            int underruns = 0;
+            for (PlayerTests.PacedDevice device : devices) underruns -= device.underruns;
+            long cpu = os.getProcessCpuTime();
+            long wall = System.nanoTime();
+            Thread.sleep(5000);
+            cpu = os.getProcessCpuTime() - cpu;
+            wall = System.nanoTime() - wall;
+            for (PlayerTests.PacedDevice device : devices) underruns += device.underruns;
+            for (PlaybackSession session : sessions) session.shutdown();
+            runtime.shutdown();
+            if (round == 0) continue;
+            System.out.printf("%-40s %8d ms to start all, %5.2f%% of a core per session, %d underruns%n",
+                    count + " sessions", allStarted / 1_000_000, 100.0 * cpu / wall / count, underruns);
+        }
+    }
+
+    /**
+     * Offline rendering of the test songs to WAV files, as an x-realtime factor (seconds of audio per second of
+     * wall time), on one thread and on one thread per core. The first round warms up.
+     */
+    static void offlineRender() throws Exception {
+        List<Song> songs = List.of(indexedSongs());
+        Path dir = Files.createTempDirectory("render");
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] rounds = cores > 1 ? new int[]{cores, 1, cores} : new int[]{1, 1};
+        for (int round = 0; round < rounds.length; round++) {
+            OfflineRenderer.Report report = new OfflineRenderer(rounds[round], OfflineRenderer.Format.WAV).render(songs, dir);
+            if (round == 0) continue;
+            System.out.printf("%-40s %12.1f x realtime (%.0f s of audio in %.2f s)%n", "offline render, " + rounds[round] + " threads",
+                    report.realtimeFactor(), report.audioSeconds(), report.nanos() / 1e9);
+        }
+        try (var files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).toList()) Files.delete(file);
+        }
+    }
+
+    /**
+     * Prints a throughput in frames per second, skipping the warm-up round.
+     */
+    static void report(String name, long frames, long nanos, int round) {
+        if (round == 0) return;
+        System.out.printf("%-40s %12.0f frames/s%n", name, frames * 1e9 / nanos);
+    }
+
+    static Object firstSample(AudioOutput output, Song song) throws Exception {
+        AudioDevice device = output.open(FrameIndex.readFormat(Path.of(song.getFilePath())));
+        TrackDecoder track = new TrackDecoder(song, FrameIndex.of(song), output, true);
+        PcmRingBuffer ring = new PcmRingBuffer(1, PcmRingBuffer.MAX_FRAME_SAMPLES);
+        int slot;
+        while ((slot = ring.peek()) < 0) track.decodeFrame(ring, 0, 0);
+        device.write(ring.samples(slot), 0, ring.length(slot));
+        output.drop();
+        track.close();
+        return device;
+    }
+
+    static Song[] indexedSongs() throws Exception {
+        File[] files = testSongs();
+        Song[] songs = new Song[files.length];
+        for (int i = 0; i < files.length; i++) {
+            songs[i] = SongParser.parse(files[i], null);
+            FrameIndex.of(songs[i]).join();
+        }
+        return songs;
+    }
+
+    static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) millis += Math.max(0, gc.getCollectionTime());
+        return millis;
+    }
+
+    static boolean lineAvailable() {
+        try {
+            SourceDataLine line = AudioSystem.getSourceDataLine(new javax.sound.sampled.AudioFormat(44100, 16, 2, true, false));
+            line.open();
+            line.close();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static Song song(int i) {
+        return new Song("uuid-" + i, "Title " + i, "Album", "Artist", "2010", "0:03:00", 180_000, "song" + i + ".mp3", 1000, 6891, 26.12f);
+    }
+
+    static File[] testSongs() throws Exception {
+        File dir = new File(Objects.requireNonNull(PlayerBenchmarks.class.getResource("/Músicas Para Teste")).toURI());
+        return Objects.requireNonNull(dir.listFiles((d, name) -> name.endsWith(".mp3")));
+    }
+
+    interface Operation {
+        Object run(int i) throws Exception;
+    }
+
+    /**
+     * Runs the operation once for warm-up and once measured, printing the average time per call.
+     */
+    static void measure(String name, int iterations, Operation operation) throws Exception {
+        Object sink = null;
+        for (int i = 0; i < iterations; i++) sink = operation.run(i);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) sink = operation.run(i);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-40s %12.1f us/op%s%n", name, elapsed / 1000.0 / iterations, sink == null ? " (null)" : "");
+    }
+}
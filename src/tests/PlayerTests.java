@@ -1,3 +1,1580 @@
+import javazoom.jl.decoder.Bitstream;
+import javazoom.jl.decoder.Header;
+import javazoom.jl.player.AudioDevice;
+import javazoom.jl.player.NullAudioDevice;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import support.AudioOutput;
+import support.CommandQueue;
+import support.ControlServer;
+import support.FrameIndex;
+import support.HeadlessView;
+import support.LatencyController;
+import support.LatencyHistogram;
+import support.LatencyProfile;
+import support.LibraryScanner;
+import support.LineAudioDevice;
+import support.MappedInputStream;
+import support.MetadataCache;
+import support.OfflineRenderer;
+import support.PcmCache;
+import support.PcmRingBuffer;
+import support.PlaybackMetrics;
+import support.PlaybackRuntime;
+import support.PlaybackSnapshot;
+import support.PlaybackState;
+import support.PlaybackStateMachine;
+import support.PlayerCommand;
+import support.Playlist;
+import support.Prefetcher;
+import support.QueueTableModel;
+import support.Song;
+import support.SongParser;
+import support.TrackDecoder;
+import support.UiPublisher;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.TableModelEvent;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 class PlayerTests {
+    static final String TEST_SONG = "/Músicas Para Teste/Bruno Mars - Treasure.mp3";
+
+    static Path testSong(String resource) throws Exception {
+        return Path.of(PlayerTests.class.getResource(resource).toURI());
+    }
+
+    static Song song(int i) {
+        return new Song("uuid-" + i, "Title " + i, "Album", "Artist", "2010", "0:03:00", 180_000, "song" + i + ".mp3", 1000, 6891, 26.12f);
+    }
+
+    @Test
+    void ringBufferDeliversBlocksInOrderAcrossThreads() throws InterruptedException {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 8);
+        int blocks = 10_000;
+        Thread producer = new Thread(() -> {
+            short[] samples = new short[8];
+            for (int i = 0; i < blocks; i++) {
+                samples[0] = (short) i;
+                while (!ring.offer(samples, 1 + i % 8, i, 0)) Thread.yield();     // Gives the CPU to the consumer, which may share it
+            }
+            ring.setEnded(true);
+        });
+        producer.start();
+
+        int expected = 0;
+        while (expected < blocks) {
+            int slot = ring.peek();
+            if (slot < 0) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected, ring.frame(slot));
+            assertEquals((short) expected, ring.samples(slot)[0]);
+            assertEquals(1 + expected % 8, ring.length(slot));
+            ring.release();
+            expected++;
+        }
+        producer.join();
+        assertTrue(ring.isEnded());
+        assertEquals(-1, ring.peek());
+    }
+
+    @Test
+    void ringBufferRejectsOfferWhenFull() {
+        PcmRingBuffer ring = PcmRingBuffer.forDuration(50, 26.12f);
+        short[] samples = new short[PcmRingBuffer.MAX_FRAME_SAMPLES];
+        for (int i = 0; i < ring.capacity(); i++) assertTrue(ring.offer(samples, samples.length, i, 0));
+        assertFalse(ring.hasSpace());
+        assertFalse(ring.offer(samples, samples.length, ring.capacity(), 0));
+        ring.peek();
+        ring.release();
+        assertTrue(ring.offer(samples, samples.length, ring.capacity(), 0));
+    }
+
+    @Test
+    void pausedPlaybackThreadIsParkedUntilResumed() throws InterruptedException {
+        PlaybackStateMachine state = new PlaybackStateMachine();
+        state.set(PlaybackState.PLAYING);
+        assertEquals(PlaybackState.PAUSED, state.togglePause());
+
+        AtomicReference<PlaybackState> wokeWith = new AtomicReference<>();
+        Thread playback = new Thread(() -> wokeWith.set(state.awaitRunnable()));
+        playback.start();
+        while (playback.getState() != Thread.State.WAITING) Thread.onSpinWait();
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getThreadCpuTime(playback.getId());
+        LockSupport.parkNanos(200_000_000);
+        long cpuWhilePaused = threads.getThreadCpuTime(playback.getId()) - cpuBefore;
+
+        assertEquals(Thread.State.WAITING, playback.getState());
+        assertNotNull(LockSupport.getBlocker(playback));
+        assertTrue(cpuWhilePaused < 5_000_000, "paused thread used " + cpuWhilePaused + " ns of CPU");
+        assertNull(wokeWith.get());
+
+        assertEquals(PlaybackState.PLAYING, state.togglePause());
+        playback.join(1000);
+        assertFalse(playback.isAlive());
+        assertEquals(PlaybackState.PLAYING, wokeWith.get());
+    }
+
+    @Test
+    void seekingHoldsPlaybackAndRestoresPreviousState() throws InterruptedException {
+        PlaybackStateMachine state = new PlaybackStateMachine();
+        assertNull(state.beginSeek());
+        state.set(PlaybackState.PAUSED);
+        assertEquals(PlaybackState.PAUSED, state.beginSeek());
+
+        Thread playback = new Thread(state::awaitRunnable);
+        playback.start();
+        while (playback.getState() != Thread.State.WAITING) Thread.onSpinWait();
+        assertTrue(state.compareAndSet(PlaybackState.SEEKING, PlaybackState.PAUSED));
+        playback.join(100);
+        assertTrue(playback.isAlive());
+
+        state.set(PlaybackState.STOPPED);
+        playback.join(1000);
+        assertFalse(playback.isAlive());
+        assertFalse(state.compareAndSet(PlaybackState.SEEKING, PlaybackState.PLAYING));
+    }
+
+    @Test
+    void frameIndexCheckpointsPointAtTheSameFramesJLayerReads() throws Exception {
+        Path file = testSong(TEST_SONG);
+        FrameIndex index = FrameIndex.build(file, 64);
+
+        Bitstream sequential = new Bitstream(new BufferedInputStream(new FileInputStream(file.toFile())));
+        int[] headers = new int[index.getNumFrames()];
+        int read = 0;
+        Header h;
+        while ((h = sequential.readFrame()) != null) {
+            headers[read++] = h.getSyncHeader();
+            sequential.closeFrame();
+        }
+        sequential.close();
+        // JLayer gives up on the very last frame of some files, so the index may know one frame more.
+        assertTrue(index.getNumFrames() - read <= 1, index.getNumFrames() + " indexed, " + read + " read");
+
+        for (int checkpoint = 0; index.frameOf(checkpoint) < read; checkpoint += 7) {
+            FileInputStream stream = new FileInputStream(file.toFile());
+            stream.getChannel().position(index.offsetOf(checkpoint));
+            Bitstream seeked = new Bitstream(new BufferedInputStream(stream));
+            assertEquals(headers[index.frameOf(checkpoint)], seeked.readFrame().getSyncHeader());
+            seeked.close();
+        }
+    }
+
+    @Test
+    void mappedInputReadsTheSameFramesAsTheBufferedStream() throws Exception {
+        Path file = testSong(TEST_SONG);
+        FrameIndex index = FrameIndex.build(file, 64);
+        ByteBuffer mapping = MappedInputStream.map(file);
+        assertEquals(Files.size(file), mapping.capacity());
+
+        List<Integer> buffered = new ArrayList<>();
+        List<Integer> mapped = new ArrayList<>();
+        Bitstream stream = new Bitstream(new BufferedInputStream(new FileInputStream(file.toFile())));
+        for (Header h; (h = stream.readFrame()) != null; stream.closeFrame()) buffered.add(h.getSyncHeader());
+        stream = new Bitstream(new MappedInputStream(mapping, 0, Long.MAX_VALUE));
+        for (Header h; (h = stream.readFrame()) != null; stream.closeFrame()) mapped.add(h.getSyncHeader());
+        assertEquals(buffered, mapped);
+
+        // A view at a checkpoint reads the frame the index says is there, in either direction
+        for (int checkpoint = index.checkpointBefore(buffered.size() - 1); checkpoint >= 0; checkpoint -= 5) {
+            Bitstream seeked = new Bitstream(new MappedInputStream(mapping, index.offsetOf(checkpoint), index.getDataEnd()));
+            assertEquals(buffered.get(index.frameOf(checkpoint)), seeked.readFrame().getSyncHeader());
+        }
+
+        byte[] bytes = Files.readAllBytes(file);
+        MappedInputStream view = new MappedInputStream(mapping, 100, 110);
+        byte[] read = new byte[64];
+        assertEquals(10, view.read(read, 0, read.length));
+        assertArrayEquals(Arrays.copyOfRange(bytes, 100, 110), Arrays.copyOf(read, 10));
+        assertEquals(-1, view.read());
+        view.position(104);
+        assertEquals(3, view.skip(3));
+        assertEquals(bytes[107] & 0xff, view.read());
+        assertEquals(2, view.available());
+    }
+
+    @Test
+    void frameIndexConvertsBetweenTimeAndFrames() throws Exception {
+        FrameIndex index = FrameIndex.build(testSong(TEST_SONG), 64);
+        float msPerFrame = 1152 * 1000f / 44100;
+        assertEquals(index.getNumFrames() * msPerFrame, index.getMsLength(), 1);
+        for (int frame = 0; frame < index.getNumFrames(); frame += 997) {
+            assertEquals(frame, index.frameAt((long) Math.ceil(index.timeAt(frame))), 1);
+            assertEquals(frame * msPerFrame, index.timeAt(frame), 1);
+            assertTrue(index.frameOf(index.checkpointBefore(frame)) <= frame);
+            assertTrue(frame - index.frameOf(index.checkpointBefore(frame)) < index.getInterval());
+        }
+        assertEquals(0, index.frameAt(-5));
+        assertEquals(index.getNumFrames(), index.frameAt(Long.MAX_VALUE / 2000));
+    }
+
+    @Test
+    void frameIndexCacheRetriesFailuresAndReindexesEditedFiles(@TempDir Path dir) throws Exception {
+        Song broken = new Song("uuid", "Folder", "", "", "", "0:01", 1000, dir.toString(), 0, 0, 26.12f);
+        CompletableFuture<FrameIndex> failed = FrameIndex.of(broken);
+        assertThrows(java.util.concurrent.CompletionException.class, failed::join);
+        assertNotSame(failed, FrameIndex.of(broken));       // Not cached: the next request tries again
+
+        Path file = dir.resolve("song.mp3");
+        byte[] bytes = Files.readAllBytes(testSong(TEST_SONG));
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+        Song song = SongParser.parse(file.toFile(), null);
+        FrameIndex half = FrameIndex.of(song).join();
+        assertSame(half, FrameIndex.of(song).join());
+        Files.write(file, bytes);
+        Files.setLastModifiedTime(file, java.nio.file.attribute.FileTime.fromMillis(System.currentTimeMillis() + 5000));
+        FrameIndex whole = FrameIndex.of(song).join();
+        assertTrue(whole.getNumFrames() > half.getNumFrames() * 19 / 10, half.getNumFrames() + " -> " + whole.getNumFrames());
+    }
+
+    @Test
+    void metadataCacheHitSkipsScanningAndSurvivesReload(@TempDir Path dir) throws Exception {
+        // Not an MP3 at all: the only way to get a Song out of it is a cache hit.
+        File fake = Files.write(dir.resolve("fake.mp3"), new byte[1234]).toFile();
+        File cacheFile = dir.resolve("metadata.cache").toFile();
+        MetadataCache.Entry entry = new MetadataCache.Entry(1234, fake.lastModified(),
+                "Title", "Album", "Artist", "2010", 100, 26.12f, 2612f);
+        new MetadataCache(cacheFile).store(fake.getPath(), entry);
+
+        MetadataCache reloaded = new MetadataCache(cacheFile);
+        Song song = SongParser.parse(fake, reloaded);
+        assertNotNull(song);
+        assertEquals("Title", song.getTitle());
+        assertEquals("Artist", song.getArtist());
+        assertEquals(100, song.getNumFrames());
+        assertEquals("0:00:02", song.getStrLength());
+
+        assertNull(reloaded.lookup(fake.getPath(), 1234, fake.lastModified() + 1));
+        assertNull(reloaded.lookup(fake.getPath(), 1235, fake.lastModified()));
+    }
+
+    @Test
+    void metadataCacheStoresParsedSongs(@TempDir Path dir) throws Exception {
+        File file = testSong(TEST_SONG).toFile();
+        MetadataCache cache = new MetadataCache(dir.resolve("metadata.cache").toFile());
+        Song scanned = SongParser.parse(file, cache);
+        Song cached = SongParser.parse(file, new MetadataCache(dir.resolve("metadata.cache").toFile()));
+        assertEquals(scanned.getTitle(), cached.getTitle());
+        assertEquals(scanned.getNumFrames(), cached.getNumFrames());
+        assertEquals(scanned.getMsLength(), cached.getMsLength());
+        assertNotEquals(scanned.getUuid(), cached.getUuid());
+    }
+
+    @Test
+    void metadataCacheDropsATornRecordAndCompactsSupersededOnes(@TempDir Path dir) throws Exception {
+        Path cacheFile = dir.resolve("metadata.cache");
+        MetadataCache.Entry entry = new MetadataCache.Entry(1, 2, "Title", "Album", "Artist", "2010", 100, 26.12f, 2612f);
+        MetadataCache cache = new MetadataCache(cacheFile.toFile());
+        cache.store("/a.mp3", entry);
+        cache.store("/b.mp3", entry);
+        // A crash in the middle of the last record
+        byte[] bytes = Files.readAllBytes(cacheFile);
+        Files.write(cacheFile, Arrays.copyOf(bytes, bytes.length - 5));
+
+        MetadataCache reopened = new MetadataCache(cacheFile.toFile());
+        assertNotNull(reopened.lookup("/a.mp3", 1, 2));
+        assertNull(reopened.lookup("/b.mp3", 1, 2));
+        reopened.store("/c.mp3", entry);
+        MetadataCache reloaded = new MetadataCache(cacheFile.toFile());
+        assertNotNull(reloaded.lookup("/a.mp3", 1, 2));
+        assertNotNull(reloaded.lookup("/c.mp3", 1, 2));
+
+        long size = reloaded.fileSize();
+        for (int i = 0; i < 5000; i++) reloaded.store("/a.mp3", entry);
+        assertTrue(reloaded.fileSize() < size * 1000, size + " -> " + reloaded.fileSize());
+        assertEquals("Title", new MetadataCache(cacheFile.toFile()).lookup("/c.mp3", 1, 2).title());
+    }
+
+    @Test
+    void libraryScannerImportsEveryMp3InTheTree(@TempDir Path dir) throws Exception {
+        Path song = testSong(TEST_SONG);
+        for (int i = 0; i < 6; i++) {
+            Path folder = Files.createDirectories(dir.resolve("artist" + i % 3).resolve("album" + i));
+            Files.copy(song, folder.resolve("track" + i + ".mp3"));
+            Files.writeString(folder.resolve("cover" + i + ".txt"), "not a song");
+        }
+
+        List<Song> found = new CopyOnWriteArrayList<>();
+        AtomicReference<LibraryScanner.Progress> last = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        new LibraryScanner(dir, new LibraryScanner.Listener() {
+            public void songsFound(List<Song> batch) {
+                found.addAll(batch);
+            }
+
+            public void progress(LibraryScanner.Progress progress) {
+            }
+
+            public void finished(LibraryScanner.Progress progress, boolean cancelled) {
+                assertFalse(cancelled);
+                last.set(progress);
+                done.countDown();
+            }
+        }, new MetadataCache(dir.resolve("metadata.cache").toFile())).start();
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(6, found.size());
+        assertEquals(6, found.stream().map(Song::getUuid).distinct().count());
+        assertEquals(6, last.get().filesDone());
+        assertEquals(6, last.get().filesTotal());
+        assertFalse(last.get().walking());
+        assertEquals(6 * Files.size(song), last.get().bytesDone());
+    }
+
+    @Test
+    void queueTableModelFiresRowEventsForSingleChanges() {
+        QueueTableModel model = new QueueTableModel();
+        List<TableModelEvent> events = new ArrayList<>();
+        model.addTableModelListener(events::add);
+
+        List<Song> songs = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) songs.add(song(i));
+        model.add(songs);
+        model.add(List.of(song(100_000)));
+        model.remove(5);
+
+        assertEquals(100_000, model.getRowCount());
+        assertEquals("Title 6", model.getValueAt(5, 0));
+        assertEquals("uuid-100000", model.getValueAt(99_999, 5));
+        assertEquals(3, events.size());
+        assertEquals(TableModelEvent.INSERT, events.get(1).getType());
+        assertEquals(100_000, events.get(1).getFirstRow());
+        assertEquals(100_000, events.get(1).getLastRow());
+        assertEquals(TableModelEvent.DELETE, events.get(2).getType());
+        assertEquals(5, events.get(2).getFirstRow());
+        assertEquals(5, events.get(2).getLastRow());
+    }
+
+    @Test
+    void playlistIndexMatchesAPlainListUnderRandomChanges() {
+        Playlist playlist = new Playlist();
+        List<Song> expected = new ArrayList<>();
+        Random random = new Random(42);
+        int next = 0;
+        for (int step = 0; step < 20_000; step++) {
+            if (expected.isEmpty() || random.nextInt(3) > 0) {
+                Song song = song(next++);
+                playlist.add(song);
+                expected.add(song);
+            } else {
+                int index = random.nextInt(expected.size());
+                playlist.setCurrentIndex(random.nextInt(expected.size()));
+                int current = playlist.getCurrentIndex();
+                assertEquals(index == current ? playlist.CURRENT_SONG_REMOVED : playlist.SONG_REMOVED, playlist.remove(index));
+                expected.remove(index);
+            }
+            if (step % 97 == 0) {
+                assertEquals(expected.size(), playlist.size());
+                for (int i = 0; i < expected.size(); i += 1 + expected.size() / 50) {
+                    assertEquals(expected.get(i).getUuid(), playlist.get(i).getUuid());
+                    assertEquals(i, playlist.findIndex(expected.get(i).getUuid()));
+                }
+            }
+        }
+        assertEquals(expected, playlist.getSongs());
+        assertEquals(-1, playlist.findIndex("missing"));
+        assertEquals(playlist.SONG_NOT_FOUND, playlist.remove(expected.size()));
+    }
+
+    @Test
+    void playlistShuffleRestoresOriginalOrderWithoutRemovedSongs() {
+        Playlist playlist = new Playlist();
+        List<Song> original = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            original.add(song(i));
+            playlist.add(original.get(i));
+        }
+        playlist.setCurrentIndex(10);
+        playlist.toggleShuffle(true);
+        assertEquals("uuid-10", playlist.get(0).getUuid());
+        assertEquals(0, playlist.getCurrentIndex());
+
+        int removedAt = playlist.findIndex("uuid-50");
+        playlist.remove(removedAt);
+        original.remove(50);
+        Song added = song(100);
+        playlist.add(added);
+        original.add(added);
+
+        playlist.toggleShuffle(true);
+        assertFalse(playlist.isShuffled());
+        assertEquals(original, playlist.getSongs());
+        assertEquals(10, playlist.getCurrentIndex());
+    }
+
+    @Test
+    void shuffledPlaylistMatchesAPlainListUnderRandomChanges() {
+        Playlist playlist = new Playlist();
+        List<Song> original = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            original.add(song(i));
+            playlist.add(original.get(i));
+        }
+        playlist.setCurrentIndex(500);
+        playlist.toggleShuffle(true);
+        List<Song> expected = new ArrayList<>(playlist.getSongs());
+        assertEquals("uuid-500", expected.get(0).getUuid());
+        assertEquals(new HashSet<>(original), new HashSet<>(expected));
+        assertNotEquals(original, expected);
+
+        Random random = new Random(7);
+        int next = 1_000;
+        for (int step = 0; step < 20_000; step++) {
+            if (expected.isEmpty() || random.nextInt(2) > 0) {
+                Song song = song(next++);
+                playlist.add(song);
+                expected.add(song);
+                original.add(song);
+            } else {
+                int index = random.nextInt(expected.size());
+                playlist.remove(index);
+                original.remove(expected.remove(index));
+            }
+            if (step % 97 == 0) {
+                for (int i = 0; i < expected.size(); i += 1 + expected.size() / 50) {
+                    assertEquals(expected.get(i).getUuid(), playlist.get(i).getUuid());
+                    assertEquals(i, playlist.findIndex(expected.get(i).getUuid()));
+                }
+            }
+        }
+        assertEquals(expected, playlist.getSongs());
+
+        Song current = expected.get(expected.size() / 2);
+        playlist.setCurrentIndex(expected.size() / 2);
+        playlist.toggleShuffle(true);
+        assertEquals(original, playlist.getSongs());
+        assertEquals(original.indexOf(current), playlist.getCurrentIndex());
+    }
+
+    @Test
+    void songsAreSharedAndRepeatedTagsDeduplicated() {
+        Song first = new Song("a", "One", new String("Album"), new String("Artist"), new String("2010"), "0:03:00", 180_000, "a.mp3", 1, 1, 1);
+        Song second = new Song("b", "Two", new String("Album"), new String("Artist"), new String("2010"), "0:03:00", 180_000, "b.mp3", 1, 1, 1);
+        assertSame(first.getAlbum(), second.getAlbum());
+        assertSame(first.getArtist(), second.getArtist());
+        assertSame(first.getYear(), second.getYear());
+        assertEquals("Two", second.getDisplayValue(0));
+        assertEquals("b", second.getDisplayValue(5));
+
+        Playlist playlist = new Playlist();
+        playlist.add(first);
+        assertSame(first, playlist.get(0));
+    }
+
+    /**
+     * Decodes up to maxFrames frames of the track and returns every sample it offered.
+     */
+    static short[] decode(TrackDecoder track, int maxFrames) throws Exception {
+        PcmRingBuffer ring = new PcmRingBuffer(1, PcmRingBuffer.MAX_FRAME_SAMPLES);
+        short[] out = new short[maxFrames * PcmRingBuffer.MAX_FRAME_SAMPLES];
+        int length = 0;
+        for (int i = 0; i < maxFrames && track.decodeFrame(ring, 0, 0); i++) {
+            int slot = ring.peek();
+            if (slot < 0) continue;     // frame trimmed away entirely
+            System.arraycopy(ring.samples(slot), 0, out, length, ring.length(slot));
+            length += ring.length(slot);
+            ring.release();
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Plays the last frames of a and the first frames of b back to back and counts the samples (per channel)
+     * at the boundary that are not music: what is left of a after its last music sample plus what comes
+     * before the first music sample of b.
+     */
+    static long silenceBetween(Song a, Song b, boolean gapless, int frames) throws Exception {
+        CompletableFuture<FrameIndex> indexA = FrameIndex.of(a);
+        CompletableFuture<FrameIndex> indexB = FrameIndex.of(b);
+        FrameIndex ia = indexA.join();
+        FrameIndex ib = indexB.join();
+        int perFrame = ia.getSamplesPerFrame();
+        int channels = ia.getChannels();
+
+        TrackDecoder first = new TrackDecoder(a, indexA, new AudioOutput(format -> new NullAudioDevice()), gapless);
+        int from = ia.getNumFrames() - frames;
+        first.seek(from - 1);
+        decode(first, 1);       // the first frame after a seek has no bit reservoir to decode from
+        long endOfA = decode(first, frames + 1).length / channels;
+        first.close();
+        // Music of a ends 'padding' samples before the end of the decoded stream, shifted by the decoder delay.
+        long decodedA = (long) (ia.getNumFrames() - 1) * perFrame;
+        long musicEndA = Math.min(decodedA, decodedA - ia.getEncoderPadding() + TrackDecoder.DECODER_DELAY);
+        long musicLeftA = musicEndA - (long) (from - 1) * perFrame;
+
+        TrackDecoder second = new TrackDecoder(b, indexB, new AudioOutput(format -> new NullAudioDevice()), gapless);
+        long startOfB = decode(second, frames).length / channels;
+        second.close();
+        long musicStartB = ib.getEncoderDelay() + TrackDecoder.DECODER_DELAY;
+        long musicOfB = (long) (frames - 1) * perFrame - musicStartB;   // frame 0 is the Info frame
+
+        return (endOfA - musicLeftA) + (startOfB - musicOfB);
+    }
+
+    @Test
+    void gaplessPlaybackLeavesNoSilenceBetweenTracks() throws Exception {
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        Song b = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null);
+        FrameIndex ib = FrameIndex.of(b).join();
+        assertTrue(ib.hasInfoFrame());
+
+        long untrimmed = silenceBetween(a, b, false, 100);
+        assertTrue(untrimmed >= ib.getSamplesPerFrame() + ib.getEncoderDelay() + TrackDecoder.DECODER_DELAY, untrimmed + " samples");
+        assertEquals(0, silenceBetween(a, b, true, 100));
+
+        // What is kept is exactly the raw stream without the Info frame and the delay.
+        short[] raw = decode(new TrackDecoder(b, FrameIndex.of(b), new AudioOutput(format -> new NullAudioDevice()), false), 50);
+        short[] trimmed = decode(new TrackDecoder(b, FrameIndex.of(b), new AudioOutput(format -> new NullAudioDevice()), true), 50);
+        int skipped = (ib.getSamplesPerFrame() + ib.getEncoderDelay() + TrackDecoder.DECODER_DELAY) * ib.getChannels();
+        assertArrayEquals(Arrays.copyOfRange(raw, skipped, raw.length), trimmed);
+    }
+
+    @Test
+    void reusedDecoderSeeksInBothDirectionsWithoutReopening() throws Exception {
+        Song song = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        FrameIndex.of(song).join();
+        short[] sequential = decode(new TrackDecoder(song, FrameIndex.of(song), new AudioOutput(format -> new NullAudioDevice()), false), 1200);
+        int block = PcmRingBuffer.MAX_FRAME_SAMPLES;
+
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        TrackDecoder track = new TrackDecoder(song, FrameIndex.of(song), output, false);
+        decode(track, 10);
+        for (int target : new int[]{1000, 300, 301, 1100}) {
+            track.seek(target);
+            decode(track, 3);       // the bit reservoir and the overlap refill during the first frames
+            short[] after = decode(track, 17);
+            assertArrayEquals(Arrays.copyOfRange(sequential, (target + 3) * block, (target + 20) * block), after, "seek to " + target);
+        }
+        track.close();
+        track.close();
+        assertEquals(1, output.getDecodersCreated());
+    }
+
+    @Test
+    void pcmCacheServesReplaysAndSeeksFromMemoryAndDisk(@TempDir Path dir) throws Exception {
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        Song b = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null);
+        int framesA = FrameIndex.of(a).join().getNumFrames();
+        int framesB = FrameIndex.of(b).join().getNumFrames();
+        int block = PcmRingBuffer.MAX_FRAME_SAMPLES;
+        long bytesA = (long) framesA * block * 2;
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        short[] reference = decode(new TrackDecoder(a, FrameIndex.of(a), output, false), framesA + 10);
+
+        // Room in memory for one song only
+        PcmCache cache = new PcmCache(Math.max(bytesA, (long) framesB * block * 2) + (1 << 20), 4 * bytesA, dir);
+        TrackDecoder first = new TrackDecoder(a, FrameIndex.of(a), output, false, cache);
+        assertFalse(first.isCached());
+        decode(first, 200);
+        first.seek(100);        // back before the recorded frames: the recording goes on once decoding is past them
+        decode(first, framesA + 10);
+        first.close();
+        assertEquals(1, cache.getMisses());
+
+        int created = output.getDecodersCreated();
+        TrackDecoder replay = new TrackDecoder(a, FrameIndex.of(a), output, false, cache);
+        assertTrue(replay.isCached());
+        assertNull(replay.getDecoder());
+        assertArrayEquals(reference, decode(replay, framesA + 10));
+        for (int target : new int[]{1000, 300, framesA - 5}) {
+            replay.seek(target);
+            assertArrayEquals(Arrays.copyOfRange(reference, target * block, Math.min(target + 5, framesA) * block),
+                    decode(replay, 5), "seek to " + target);
+        }
+        replay.close();
+        assertEquals(1, cache.getMemoryHits());
+        assertEquals(created, output.getDecodersCreated());
+
+        // Recording b evicts a from memory, which goes to disk
+        TrackDecoder other = new TrackDecoder(b, FrameIndex.of(b), output, false, cache);
+        decode(other, framesB + 10);
+        other.close();
+        cache.flush();
+        assertEquals(bytesA, cache.getMemoryEvictedBytes());
+        assertTrue(cache.getDiskBytes() > bytesA);
+
+        PcmCache reopened = new PcmCache(0, 4 * bytesA, dir);
+        TrackDecoder fromDisk = new TrackDecoder(a, FrameIndex.of(a), output, false, reopened);
+        assertTrue(fromDisk.isCached());
+        assertArrayEquals(reference, decode(fromDisk, framesA + 10));
+        fromDisk.close();
+        assertEquals(1, reopened.getDiskHits());
+
+        PcmCache smaller = new PcmCache(0, bytesA / 2, dir);
+        assertNull(smaller.get(a));
+        assertEquals(cache.getDiskBytes(), smaller.getDiskEvictedBytes());
+        assertEquals(0, smaller.getDiskBytes());
+    }
+
+    @Test
+    void pcmCacheSpillsLongRecordingsAndCapsTheMemoryOfRecordings(@TempDir Path dir) throws Exception {
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        int framesA = FrameIndex.of(a).join().getNumFrames();
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        short[] reference = decode(new TrackDecoder(a, FrameIndex.of(a), output, false), framesA + 10);
+
+        // 3 MB for recordings: the song spills to disk and the recording keeps one chunk in memory
+        PcmCache cache = new PcmCache(4 << 20, 64L << 20, 3 << 20, dir);
+        TrackDecoder first = new TrackDecoder(a, FrameIndex.of(a), output, false, cache);
+        decode(first, 2000);
+        assertEquals(1 << 20, cache.getRecordingBytes());
+        decode(first, framesA);
+        first.close();
+        cache.flush();
+        assertEquals(0, cache.getRecordingBytes());
+        assertEquals(0, cache.getMemoryBytes());
+        assertTrue(cache.getDiskBytes() > (long) framesA * 4000, cache.toString());
+        TrackDecoder replay = new TrackDecoder(a, FrameIndex.of(a), output, false, cache);
+        assertTrue(replay.isCached());
+        assertArrayEquals(reference, decode(replay, framesA + 10));
+        replay.close();
+        try (var files = Files.list(dir)) {
+            assertEquals(1, files.count());     // No samples of the recording left behind
+        }
+
+        // Two recordings in a budget of two chunks: the second cannot get one
+        PcmCache small = new PcmCache(64L << 20, 0, 2 << 20, dir.resolve("small"));
+        short[] frame = new short[PcmRingBuffer.MAX_FRAME_SAMPLES];
+        PcmCache.Recorder one = small.record(a);
+        PcmCache.Recorder two = small.record(a);
+        for (int i = 0; i < 300; i++) one.add(frame, frame.length, 2);
+        assertEquals(2 << 20, small.getRecordingBytes());
+        two.add(frame, frame.length, 2);
+        assertTrue(two.isAbandoned());
+        assertFalse(one.isAbandoned());
+        assertEquals(1, small.getAbandonedRecordings());
+        one.abandon();
+        assertEquals(0, small.getRecordingBytes());
+    }
+
+    @Test
+    void prefetcherPrimesNeighboursWithinBudgetAndCancelsOnQueueChange() throws Exception {
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        Song b = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null);
+        Song c = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - Talking To The Moon.mp3").toFile(), null);
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+        Prefetcher.Opener opener = song ->
+                new TrackDecoder(song, CompletableFuture.completedFuture(FrameIndex.of(song).join()), output, true);
+        long perSong = (long) Math.ceil(1000 / a.getMsPerFrame()) * PcmRingBuffer.MAX_FRAME_SAMPLES * 2;
+
+        Prefetcher prefetcher = new Prefetcher(opener, 2 * perSong, 1, 0);
+        prefetcher.update(a, b);
+        assertEquals(2 * perSong, prefetcher.getReservedBytes());
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (prefetcher.getReady() < 2 && System.nanoTime() < deadline) Thread.sleep(5);
+        TrackDecoder taken = prefetcher.take(a);
+        assertNotNull(taken);
+        assertArrayEquals(decode(opener.open(a), 20), decode(taken, 20));
+        taken.close();
+        assertEquals(1, prefetcher.getHits());
+
+        prefetcher.update(c);       // b is no longer next to the current song
+        assertEquals(1, prefetcher.getCancelled());
+        assertNull(prefetcher.take(b));
+        prefetcher.update();
+        assertEquals(0, prefetcher.getReservedBytes());
+
+        // Room for one song: the second one gets nothing
+        Prefetcher small = new Prefetcher(opener, perSong, 1, 0);
+        small.update(a, b);
+        assertEquals(perSong, small.getReservedBytes());
+        assertNull(small.take(b));
+
+        // A burst of changes within the delay opens nothing (the small prefetcher may still be opening a)
+        AtomicInteger opened = new AtomicInteger();
+        Prefetcher delayed = new Prefetcher(song -> {
+            opened.incrementAndGet();
+            return opener.open(song);
+        }, 2 * perSong, 1, 10_000);
+        delayed.update(a, b);
+        delayed.update(b, c);
+        delayed.update(c);
+        assertNull(delayed.take(c));
+        assertEquals(0, opened.get());
+        assertEquals(3, delayed.getCancelled());
+
+        // Playback never idle: the prefetch waits between frames until the song is taken, then finishes at once
+        CountDownLatch priming = new CountDownLatch(1);
+        Prefetcher throttled = new Prefetcher(song -> {
+            TrackDecoder track = opener.open(song);
+            priming.countDown();
+            return track;
+        }, 2 * perSong, 1, 0, Prefetcher.newWorker(), () -> true);
+        throttled.update(a);
+        assertTrue(priming.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);       // parked in the middle of priming
+        CompletableFuture<TrackDecoder> handedOver = CompletableFuture.supplyAsync(() -> throttled.take(a));
+        TrackDecoder throttledTrack = handedOver.get(5, TimeUnit.SECONDS);
+        assertNotNull(throttledTrack);
+        assertArrayEquals(decode(opener.open(a), 20), decode(throttledTrack, 20));
+        throttledTrack.close();
+    }
+
+    @Test
+    void audioOutputKeepsOneDeviceAndTwoDecodersAcrossSongs() throws Exception {
+        List<NullAudioDevice> created = new ArrayList<>();
+        AudioOutput output = new AudioOutput(format -> {
+            NullAudioDevice device = new NullAudioDevice();
+            created.add(device);
+            return device;
+        });
+        javax.sound.sampled.AudioFormat cd = FrameIndex.readFormat(testSong(TEST_SONG));
+        assertEquals(44100, cd.getSampleRate());
+        assertEquals(2, cd.getChannels());
+
+        Song song = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        TrackDecoder current = new TrackDecoder(song, FrameIndex.of(song), output, true);
+        AudioDevice device = output.open(cd);
+        for (int i = 0; i < 50; i++) {
+            assertSame(device, output.open(cd));
+            TrackDecoder next = new TrackDecoder(song, FrameIndex.of(song), output, true);
+            current.close();
+            current = next;
+        }
+        current.close();
+        assertEquals(1, output.getDevicesOpened());
+        assertEquals(2, output.getDecodersCreated());
+
+        output.open(new javax.sound.sampled.AudioFormat(22050, 16, 1, true, false));
+        assertEquals(2, output.getDevicesOpened());
+        assertFalse(device.isOpen());
+        assertEquals(2, created.size());
+    }
+
+    @Test
+    void uiPublisherPaintsAtAFixedRateAndSkipsUnchangedState() throws Exception {
+        int hz = 20;
+        List<PlaybackSnapshot> painted = new CopyOnWriteArrayList<>();
+        List<Boolean> onEdt = new CopyOnWriteArrayList<>();
+        UiPublisher<PlaybackSnapshot> publisher = new UiPublisher<>(hz, snapshot -> {
+            onEdt.add(SwingUtilities.isEventDispatchThread());
+            painted.add(snapshot);
+        });
+        publisher.start();
+
+        // The playback thread publishes once per decoded frame; here as fast as it can for half a second
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(500);
+        int published = 0;
+        PlaybackSnapshot last = null;
+        while (System.nanoTime() < deadline) {
+            last = new PlaybackSnapshot(published++, 180_000, false, true, false, true, true);
+            publisher.publish(last);
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        publisher.stop();
+        SwingUtilities.invokeAndWait(publisher::flush);
+
+        assertEquals(published, publisher.getPublished());
+        assertTrue(painted.size() <= elapsedMs * hz / 1000 + 3, painted.size() + " paints in " + elapsedMs + " ms");
+        assertEquals(last, painted.get(painted.size() - 1));
+        assertFalse(onEdt.contains(false));
+        assertEquals(published - painted.size(), publisher.getSkipped());
+
+        // Publishing a state equal to the one on screen paints nothing
+        long sent = publisher.getSent();
+        for (int i = 0; i < 1000; i++) {
+            publisher.publish(new PlaybackSnapshot(last.currentTime(), 180_000, false, true, false, true, true));
+            SwingUtilities.invokeAndWait(publisher::flush);
+        }
+        assertEquals(sent, publisher.getSent());
+        SwingUtilities.invokeAndWait(publisher::reset);
+        publisher.publish(last);
+        SwingUtilities.invokeAndWait(publisher::flush);
+        assertEquals(sent + 1, publisher.getSent());
+    }
+
+    /**
+     * Model of the playback side of Player: a looping playlist, and a playback loop started for every song played
+     * that runs until another song is played or playback stops.
+     */
+    private static final class FakeEngine {
+        final boolean threaded;
+        final AtomicInteger liveLoops = new AtomicInteger();
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        volatile Object playback;
+        int size, position, trackChanges, adds;
+        boolean playing;
+
+        FakeEngine(boolean threaded) {
+            this.threaded = threaded;
+        }
+
+        void apply(PlayerCommand command) {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            if (command instanceof PlayerCommand.PlayAt play) {
+                if (play.index() < size) {
+                    position = play.index();
+                    play();
+                }
+            } else if (command instanceof PlayerCommand.Skip skip) {
+                if (size > 0) {
+                    position = Math.floorMod(position + skip.steps(), size);
+                    play();
+                } else if (skip.steps() > 0) stop();
+            } else if (command instanceof PlayerCommand.Add) {
+                size++;
+                adds++;
+            } else if (command instanceof PlayerCommand.Remove remove) {
+                if (remove.index() < size) {
+                    size--;
+                    if (size == 0) stop();
+                    else if (remove.index() == position) {
+                        position = Math.min(position, size - 1);
+                        play();
+                    }
+                }
+            } else if (command instanceof PlayerCommand.Stop) stop();
+            running.decrementAndGet();
+        }
+
+        private void play() {
+            trackChanges++;
+            playing = true;
+            if (!threaded) return;
+            Object token = new Object();
+            playback = token;
+            liveLoops.incrementAndGet();
+            new Thread(() -> {
+                while (playback == token) LockSupport.parkNanos(100_000);
+                liveLoops.decrementAndGet();
+            }).start();
+        }
+
+        private void stop() {
+            playing = false;
+            playback = null;
+        }
+    }
+
+    @Test
+    void commandQueueRunsCommandsOneAtATimeAndCollapsesBursts() throws Exception {
+        // Ten quick clicks on next while a song is opening become one track change
+        CountDownLatch opening = new CountDownLatch(1);
+        FakeEngine engine = new FakeEngine(false);
+        engine.size = 20;
+        CommandQueue<PlayerCommand> commands = new CommandQueue<>("test-commands", command -> {
+            if (command instanceof PlayerCommand.PlayAt) {
+                try {
+                    opening.await();
+                } catch (InterruptedException e) {throw new RuntimeException(e);}
+            }
+            engine.apply(command);
+        }, PlayerCommand::collapse);
+        commands.submit(new PlayerCommand.PlayAt(0));
+        for (int i = 0; i < 10; i++) commands.submit(PlayerCommand.next());
+        opening.countDown();
+        assertTrue(commands.awaitIdle(5, TimeUnit.SECONDS));
+        assertEquals(2, engine.trackChanges);
+        assertEquals(10, engine.position);
+        assertEquals(9, commands.getCollapsed());
+        commands.shutdown();
+
+        // Thousands of random commands: same result as running them one by one, and one playback loop at the end
+        Random random = new Random(12);
+        FakeEngine reference = new FakeEngine(false);
+        FakeEngine player = new FakeEngine(true);
+        CommandQueue<PlayerCommand> queue = new CommandQueue<>("stress-commands", player::apply, PlayerCommand::collapse);
+        int adds = 0;
+        for (int i = 0; i < 20_000; i++) {
+            int kind = random.nextInt(10);
+            PlayerCommand command;
+            if (kind < 4) command = PlayerCommand.next();
+            else if (kind < 6) command = PlayerCommand.previous();
+            else if (kind < 7 && reference.size > 0) command = new PlayerCommand.PlayAt(random.nextInt(reference.size));
+            else if (kind < 8) command = new PlayerCommand.Remove(random.nextInt(reference.size + 2));
+            else if (kind < 9) command = new PlayerCommand.Stop();
+            else {
+                command = new PlayerCommand.Add(null);
+                adds++;
+            }
+            reference.apply(command);
+            queue.submit(command);
+            if (random.nextInt(500) == 0) Thread.sleep(1);      // Pauses between bursts
+        }
+        assertTrue(queue.awaitIdle(30, TimeUnit.SECONDS));
+        queue.shutdown();
+
+        assertEquals(1, player.maxRunning.get());
+        assertEquals(adds, player.adds);
+        assertEquals(reference.size, player.size);
+        assertEquals(reference.position, player.position);
+        assertEquals(reference.playing, player.playing);
+        assertTrue(queue.getCollapsed() > 0);
+        assertEquals(20_000, queue.getExecuted() + queue.getCollapsed());
+        assertTrue(player.trackChanges < reference.trackChanges);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        int expectedLoops = player.playing ? 1 : 0;
+        while (player.liveLoops.get() != expectedLoops && System.nanoTime() < deadline) Thread.sleep(1);
+        assertEquals(expectedLoops, player.liveLoops.get());
+    }
+
+    @Test
+    void steadyDecodeLoopAllocatesNothingPerFrame() throws Exception {
+        // A real line device minus the sound card: the samples are still converted into its reused byte array
+        long[] written = new long[1];
+        AudioOutput output = new AudioOutput(format -> new LineAudioDevice(format) {
+            @Override
+            protected void openImpl() {
+            }
+
+            @Override
+            protected void writeBytes(byte[] bytes, int length) {
+                written[0] += length;
+            }
+        });
+        Song song = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        FrameIndex.of(song).join();
+        AudioDevice device = output.open(FrameIndex.readFormat(testSong(TEST_SONG)));
+        PcmRingBuffer ring = new PcmRingBuffer(8, PcmRingBuffer.MAX_FRAME_SAMPLES);
+        TrackDecoder track = new TrackDecoder(song, FrameIndex.of(song), output, true);
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long allocated = 0;
+        for (int round = 0; round < 2; round++) {       // The first round warms up the JIT
+            allocated = threads.getThreadAllocatedBytes(id);
+            for (int i = 0; i < 2000; i++) {
+                assertTrue(track.decodeFrame(ring, 0, 0));
+                int slot = ring.peek();
+                if (slot < 0) continue;
+                device.write(ring.samples(slot), 0, ring.length(slot));
+                ring.release();
+            }
+            allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        }
+        track.close();
+        output.close();
+        assertTrue(written[0] > 0);
+        assertEquals(0, allocated / 2000, allocated + " bytes allocated in 2000 frames");
+    }
+
+    @Test
+    void adaptiveLatencyGrowsAfterUnderrunsAndShrinksWhenStable() {
+        long second = 1_000_000_000L;
+        LatencyController fixed = new LatencyController(LatencyProfile.LOW_LATENCY, 0);
+        fixed.underrun(second);
+        fixed.played(100 * second);
+        assertEquals(40, fixed.getTargetMs());
+        assertEquals(1, fixed.getUnderruns());
+
+        LatencyController adaptive = new LatencyController(LatencyProfile.ADAPTIVE, 0);
+        int initial = adaptive.getTargetMs();
+        adaptive.underrun(second);
+        adaptive.underrun(2 * second);
+        int grown = adaptive.getTargetMs();
+        assertTrue(grown > initial);
+        for (int i = 0; i < 100; i++) adaptive.underrun(3 * second);
+        assertEquals(LatencyProfile.ADAPTIVE.getMaxMs(), adaptive.getTargetMs());
+        assertEquals(102, adaptive.getUnderruns());
+
+        // Stable, but not for long enough yet
+        adaptive.played(3 * second + LatencyController.STABLE_NANOS - 1);
+        assertEquals(LatencyProfile.ADAPTIVE.getMaxMs(), adaptive.getTargetMs());
+        long now = 3 * second;
+        int previous = adaptive.getTargetMs();
+        for (int i = 0; i < 1000; i++) {
+            now += LatencyController.STABLE_NANOS;
+            adaptive.played(now);
+            assertTrue(adaptive.getTargetMs() <= previous);
+            previous = adaptive.getTargetMs();
+        }
+        assertEquals(LatencyProfile.ADAPTIVE.getMinMs(), adaptive.getTargetMs());
+    }
+
+    @Test
+    void latencyHistogramIsAccurateLockFreeAndAllocationFree() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(3);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = (long) Math.exp(random.nextDouble() * 20);     // 1 ns to about 0.5 s
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long reported = histogram.getPercentile(percentile);
+            assertTrue(reported >= exact && reported <= exact + exact / LatencyHistogram.SUB_BUCKETS + 1,
+                    "p" + percentile + ": " + reported + " for " + exact);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(values[values.length - 1], histogram.getPercentile(100));
+
+        // Concurrent recording loses nothing
+        LatencyHistogram shared = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) shared.record(i);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(400_000, shared.getCount());
+        assertEquals(99_999, shared.getMax());
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        for (int i = 0; i < 100_000; i++) histogram.record(i);
+        long allocated = mx.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 100_000; i++) histogram.record(i * 31L);
+        assertEquals(0, (mx.getThreadAllocatedBytes(id) - allocated) / 100_000);
+    }
+
+    @Test
+    void playbackMetricsAreReadableThroughJmx() throws Exception {
+        PlaybackMetrics metrics = new PlaybackMetrics();
+        metrics.recordDecode(2_000);
+        metrics.recordDecode(4_000);
+        metrics.recordSeek(5_000_000);
+        metrics.recordSkipped();
+        metrics.register("test");
+        javax.management.MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        javax.management.ObjectName name = new javax.management.ObjectName("tolafy:type=PlaybackMetrics,name=\"test\"");
+        assertEquals(2L, server.getAttribute(name, "DecodedFrames"));
+        assertEquals(1L, server.getAttribute(name, "SkippedFrames"));
+        assertEquals(1L, server.getAttribute(name, "Seeks"));
+        assertEquals(4_000L, server.getAttribute(name, "MaxDecodeNanos"));
+        assertTrue(((String) server.getAttribute(name, "Report")).contains("decode: 2 frames"));
+        server.invoke(name, "reset", null, null);
+        assertEquals(0L, server.getAttribute(name, "DecodedFrames"));
+        server.unregisterMBean(name);
+    }
+
+    @Test
+    void headlessPlayerIsControlledThroughTheTextProtocol() throws Exception {
+        WatchingView view = new WatchingView();
+        Player player = new Player(view, format -> new SlowDevice());
+        try {
+            ControlServer server = new ControlServer(player);
+
+            assertEquals("ok", server.handle("enqueue " + testSong(TEST_SONG)));
+            assertTrue(server.handle("enqueue /no/such/file.mp3").startsWith("error"));
+            Path notAnMp3 = Files.writeString(Files.createTempFile("not-an-mp3", ".mp3"), "just text");
+            try {
+                assertEquals("error cannot parse: " + notAnMp3, server.handle("enqueue " + notAnMp3));
+            } finally {
+                Files.delete(notAnMp3);
+            }
+            player.enqueue(null);       // Rejected by the playlist, which must leave the lock free and the queue intact
+            assertEquals("ok", server.handle("play 0"));
+            assertTrue(view.await(() -> !view.heard.isEmpty(), 5));
+            assertTrue(server.handle("status").startsWith("PLAYING index=0"), server.handle("status"));
+            assertTrue(server.handle("status").contains("queue=1 "), server.handle("status"));
+
+            assertEquals("ok", server.handle("seek 60"));
+            String status = server.handle("status");
+            int time = Integer.parseInt(status.substring(status.indexOf("time=") + 5, status.indexOf('/')));
+            assertTrue(time >= 59_000, status);
+            assertEquals("ok", server.handle("pause"));
+            assertTrue(server.handle("status").startsWith("PAUSED"));
+            assertEquals("ok", server.handle("pause"));
+            assertTrue(server.handle("status").startsWith("PLAYING"));
+            assertEquals("error play needs a number", server.handle("play next"));
+            assertTrue(server.handle("rewind").startsWith("error unknown command"));
+
+            // Same protocol on a loopback socket
+            ServerSocket listening = server.listen(0);
+            try (Socket client = new Socket(listening.getInetAddress(), listening.getLocalPort())) {
+                PrintWriter out = new PrintWriter(client.getOutputStream(), true);
+                java.io.BufferedReader in = new java.io.BufferedReader(new InputStreamReader(client.getInputStream()));
+                out.println("status");
+                assertTrue(in.readLine().startsWith("PLAYING"));
+                out.println("stop");
+                assertEquals("ok", in.readLine());
+                out.println("quit");
+                assertNull(in.readLine());
+            }
+            listening.close();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (!server.handle("status").startsWith("STOPPED") && System.nanoTime() < deadline) Thread.sleep(10);
+            assertEquals("STOPPED queue=1", server.handle("status"));
+            assertNull(server.handle("quit"));
+        } finally {
+            player.shutdown();
+        }
+    }
+
+    /**
+     * Null device consuming audio at the rate of 44.1 kHz stereo, like a sound card with 200 ms of buffer: writes
+     * block while more than that is queued, and a write arriving after the queue ran dry is an underrun.
+     */
+    static final class PacedDevice extends NullAudioDevice {
+        static final long BUFFER_NANOS = 200_000_000;
+        volatile int underruns;
+        volatile long samples;
+        private long playhead;      // When the queued audio runs out
+
+        @Override
+        protected void writeImpl(short[] data, int offset, int length) {
+            long now = System.nanoTime();
+            if (playhead == 0) playhead = now;
+            else if (now > playhead) {
+                underruns++;
+                playhead = now;
+            }
+            playhead += length * 1_000_000_000L / (44_100 * 2);
+            samples += length;
+            if (playhead - BUFFER_NANOS > now) LockSupport.parkNanos(playhead - BUFFER_NANOS - now);
+        }
+    }
+
+    /**
+     * Null device taking 1 ms per write, slower than decoding, so a song does not end during a test.
+     */
+    static final class SlowDevice extends NullAudioDevice {
+        @Override
+        protected void writeImpl(short[] samples, int offset, int length) {
+            LockSupport.parkNanos(1_000_000);
+        }
+    }
+
+    /**
+     * Silent view keeping, in order, the songs shown and the songs whose first audio reached the device.
+     */
+    static final class WatchingView extends HeadlessView {
+        final List<Song> shown = new CopyOnWriteArrayList<>();
+        final List<Song> heard = new CopyOnWriteArrayList<>();
+
+        WatchingView() {
+            super(null);
+        }
+
+        @Override
+        public void showSong(Song song) {
+            shown.add(song);
+        }
+
+        @Override
+        public void audioStarted(Song song, long latencyNanos) {
+            heard.add(song);
+        }
+
+        /**
+         * @return whether the condition became true within the timeout, checked every 10 ms.
+         */
+        boolean await(BooleanSupplier condition, long seconds) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            while (!condition.getAsBoolean()) {
+                if (System.nanoTime() > deadline) return false;
+                Thread.sleep(10);
+            }
+            return true;
+        }
+    }
+
+    @Test
+    void sixtyFourSessionsShareThePoolsAndPlayInRealTime() throws Exception {
+        int sessions = 64;
+        Song[] songs = {
+                SongParser.parse(testSong(TEST_SONG).toFile(), null),
+                SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null),
+                SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - Talking To The Moon.mp3").toFile(), null),
+                SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - Just the Way You Are.mp3").toFile(), null)};
+        for (Song song : songs) FrameIndex.of(song).join();
+        AudioOutput warmup = new AudioOutput(format -> new NullAudioDevice());
+        for (Song song : songs) {       // Compiles the decoder first, as a server that has been up for a while would have
+            TrackDecoder track = new TrackDecoder(song, FrameIndex.of(song), warmup, true);
+            PcmRingBuffer ring = PcmRingBuffer.forDuration(100_000, song.getMsPerFrame());
+            for (int frame = 0; frame < 2000 && track.decodeFrame(ring, 0, 0); frame++) ring.release();
+            track.close();
+        }
+        PlaybackRuntime runtime = new PlaybackRuntime(Runtime.getRuntime().availableProcessors(), new PcmCache(0, 0, null));
+        PlaybackSession[] zones = new PlaybackSession[sessions];
+        PacedDevice[] devices = new PacedDevice[sessions];
+        long[] starts = new long[sessions];
+        CountDownLatch started = new CountDownLatch(sessions);
+        com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        int threadsBefore = Thread.activeCount();
+
+        for (int i = 0; i < sessions; i++) {
+            int zone = i;
+            devices[i] = new PacedDevice();
+            zones[i] = new PlaybackSession("zone-" + i, new HeadlessView(null) {
+                @Override
+                public void audioStarted(Song song, long latencyNanos) {
+                    starts[zone] = latencyNanos;
+                    started.countDown();
+                }
+            }, format -> devices[zone], runtime);
+            for (Song song : songs) zones[i].enqueue(song);
+            zones[i].play(i % songs.length);
+        }
+        assertTrue(started.await(30, TimeUnit.SECONDS), started.getCount() + " sessions never started");
+        Thread.sleep(2000);      // Past the start: buffers full, neighbours prefetched, decoder compiled
+
+        int[] underrunsBefore = new int[sessions];
+        for (int i = 0; i < sessions; i++) underrunsBefore[i] = devices[i].underruns;
+        long cpuBefore = os.getProcessCpuTime();
+        long wallBefore = System.nanoTime();
+        Thread.sleep(3000);
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long wall = System.nanoTime() - wallBefore;
+        int threads = Thread.activeCount() - threadsBefore;
+        int underruns = 0;
+        int stalled = 0;
+        for (int i = 0; i < sessions; i++) {
+            int count = devices[i].underruns - underrunsBefore[i];
+            underruns += count;
+            if (count > 0) stalled++;
+        }
+        Arrays.sort(starts);
+        String summary = String.format("%d sessions on %d decoder threads: start p50 %d ms, max %d ms, underruns %d in %d sessions,"
+                        + " cpu %.0f%% of one core, %d new threads",
+                sessions, runtime.getDecodeThreads(), starts[sessions / 2] / 1_000_000, starts[sessions - 1] / 1_000_000,
+                underruns, stalled, 100.0 * cpu / wall, threads);
+
+        for (PacedDevice device : devices) assertTrue(device.samples > 0, summary);
+        assertTrue(threads < 2 * sessions, summary);     // One output loop per session, plus the pools
+        assertTrue(stalled <= sessions / 8, summary);
+
+        for (PlaybackSession zone : zones) zone.shutdown();
+        runtime.shutdown();
+    }
+
+    @Test
+    void offlineRendererWritesThePlayedSamplesToWavAndRawFiles(@TempDir Path dir) throws Exception {
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        Song b = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - Talking To The Moon.mp3").toFile(), null);
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+
+        OfflineRenderer.Report report = new OfflineRenderer(2, OfflineRenderer.Format.WAV).render(List.of(a, b), dir.resolve("wav"));
+        assertEquals(2, report.tracks().size());
+        for (OfflineRenderer.Track track : report.tracks()) {
+            assertEquals(track.song().getMsLength() / 1000, track.audioSeconds(), 0.1);
+            javax.sound.sampled.AudioInputStream wav = javax.sound.sampled.AudioSystem.getAudioInputStream(track.file().toFile());
+            assertEquals(44_100, wav.getFormat().getSampleRate());
+            assertEquals(2, wav.getFormat().getChannels());
+            assertEquals(track.samples() / 2, wav.getFrameLength());
+            short[] expected = decode(new TrackDecoder(track.song(), FrameIndex.of(track.song()), output, true), 50);
+            ByteBuffer written = ByteBuffer.wrap(wav.readNBytes(expected.length * 2)).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+            for (short sample : expected) assertEquals(sample, written.getShort());
+            wav.close();
+        }
+        assertEquals("001 Treasure.wav", report.tracks().get(0).file().getFileName().toString());
+        assertTrue(report.realtimeFactor() > 1, report.toString());
+
+        OfflineRenderer.Report raw = new OfflineRenderer(1, OfflineRenderer.Format.RAW).render(List.of(a), dir.resolve("raw"));
+        assertEquals(report.tracks().get(0).samples() * 2, Files.size(raw.tracks().get(0).file()));
+
+        Song missing = new Song("uuid", "Missing", "", "", "", "0:01", 1000, dir.resolve("missing.mp3").toString(), 0, 0, 26.12f);
+        IOException failure = assertThrows(IOException.class,
+                () -> new OfflineRenderer(2, OfflineRenderer.Format.WAV).render(List.of(a, missing), dir.resolve("failed")));
+        assertEquals(1, failure.getSuppressed().length);
+        assertTrue(failure.getSuppressed()[0].getMessage().contains("missing.mp3"), failure.getSuppressed()[0].getMessage());
+        assertTrue(Files.exists(dir.resolve("failed").resolve("001 Treasure.wav")));
+        assertFalse(Files.exists(dir.resolve("failed").resolve("002 Missing.wav")));
+    }
+
+    @Test
+    void streamedSongStartsBeforeItIsDownloadedAndSeeksWithARangeRequest() throws Exception {
+        Path file = testSong(TEST_SONG);
+        byte[] bytes = Files.readAllBytes(file);
+        Song local = SongParser.parse(file.toFile(), null);
+        AudioOutput output = new AudioOutput(format -> new NullAudioDevice());
+
+        // 250 KB/s and 50 ms per request: downloading the whole song would take 12 seconds
+        try (HttpStub slow = new HttpStub(bytes, 50, 250_000)) {
+            Song remote = SongParser.parse(slow.uri("/Treasure.mp3"));
+            assertEquals(bytes.length, remote.getFileSize());
+            assertEquals(local.getMsLength(), remote.getMsLength(), local.getMsLength() / 100);
+
+            long start = System.nanoTime();
+            TrackDecoder streamed = new TrackDecoder(remote, new CompletableFuture<>(), output, false);
+            short[] first = decode(streamed, 20);
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            streamed.close();
+            assertTrue(elapsedMs < 2000, "first frames after " + elapsedMs + " ms");
+            TrackDecoder reference = new TrackDecoder(local, new CompletableFuture<>(), output, false);
+            assertArrayEquals(decode(reference, 20), first);
+            reference.close();
+
+            // Trimmed from the first frame, without waiting for the index (which would download the whole song)
+            FrameIndex localIndex = FrameIndex.build(file, FrameIndex.DEFAULT_INTERVAL);
+            assertEquals(localIndex.getGapless(), FrameIndex.readGapless(remote.getSource()));
+            start = System.nanoTime();
+            TrackDecoder trimmed = new TrackDecoder(remote, new CompletableFuture<>(), output, true);
+            short[] trimmedFirst = decode(trimmed, 20);
+            elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            trimmed.close();
+            assertTrue(elapsedMs < 2000, "first trimmed frames after " + elapsedMs + " ms");
+            TrackDecoder indexed = new TrackDecoder(local, CompletableFuture.completedFuture(localIndex), output, true);
+            assertArrayEquals(decode(indexed, 20), trimmedFirst);
+            indexed.close();
+        }
+
+        try (HttpStub fast = new HttpStub(bytes, 0, 0)) {
+            Song remote = SongParser.parse(fast.uri("/Treasure.mp3"));
+            CompletableFuture<FrameIndex> remoteIndex = FrameIndex.of(remote);
+            FrameIndex index = remoteIndex.join();
+            FrameIndex localIndex = FrameIndex.build(file, FrameIndex.DEFAULT_INTERVAL);
+            assertEquals(localIndex.getNumFrames(), index.getNumFrames());
+            assertEquals(localIndex.getDataEnd(), index.getDataEnd());
+            assertEquals(localIndex.getEncoderDelay(), index.getEncoderDelay());
+
+            int target = index.getNumFrames() / 2 + 10;
+            TrackDecoder streamed = new TrackDecoder(remote, remoteIndex, output, true);
+            TrackDecoder reference = new TrackDecoder(local, CompletableFuture.completedFuture(localIndex), output, true);
+            streamed.seek(target);
+            reference.seek(target);
+            assertArrayEquals(decode(reference, 10), decode(streamed, 10));
+            streamed.close();
+            reference.close();
+            long offset = index.offsetOf(index.checkpointBefore(target));
+            assertTrue(fast.ranges.contains("bytes=" + offset + "-"), fast.ranges.toString());
+        }
+    }
+
+    @Test
+    void failedSeekEndsTheSongInsteadOfLockingThePlayer() throws Exception {
+        byte[] bytes = Files.readAllBytes(testSong(TEST_SONG));
+        WatchingView view = new WatchingView();
+        Player player = new Player(view, format -> new SlowDevice());
+        try {
+            try (HttpStub server = new HttpStub(bytes, 0, 250_000)) {
+                player.enqueue(SongParser.parse(server.uri("/Treasure.mp3")));
+                player.play(0);
+                assertTrue(view.await(() -> !view.heard.isEmpty(), 5));
+            }
+            player.seek(150_000);       // The range request is refused: the server is gone
+            assertTrue(view.await(() -> player.status().startsWith("STOPPED"), 10));
+            assertEquals("STOPPED queue=1", player.status());
+        } finally {
+            player.shutdown();
+        }
+    }
+
+    @Test
+    void songThatCannotBeOpenedStopsThePlayerAndLeavesTheLockFree(@TempDir Path dir) throws Exception {
+        Path copy = Files.copy(testSong(TEST_SONG), dir.resolve("gone.mp3"));
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        Song gone = SongParser.parse(copy.toFile(), null);
+        Files.delete(copy);
+        WatchingView view = new WatchingView();
+        Player player = new Player(view, format -> new SlowDevice());
+        try {
+            player.enqueue(a);
+            player.enqueue(gone);
+            player.enqueue(a);
+            player.play(0);
+            assertTrue(view.await(() -> !view.heard.isEmpty(), 5));
+
+            player.remove(0);       // The song playing is removed and the next one, deleted from disk, fails to open
+            assertTrue(view.await(() -> {
+                try {
+                    return CompletableFuture.supplyAsync(player::status).get(5, TimeUnit.SECONDS).startsWith("STOPPED");
+                } catch (Exception e) {     // status() blocks if the lock leaked
+                    throw new AssertionError(e);
+                }
+            }, 5));
+            assertEquals("STOPPED queue=2", player.status());
+
+            player.play(0);         // Fails again through playAt; the commands after it still run
+            player.play(1);
+            assertTrue(view.await(() -> view.heard.size() == 2, 5));
+            assertEquals(List.of(a, a), view.heard);
+            assertTrue(player.status().startsWith("PLAYING index=1"), player.status());
+        } finally {
+            player.shutdown();
+        }
+    }
+
+    @Test
+    void sessionChainsTheNextSongWithoutRestartingPlayback() throws Exception {
+        Song a = SongParser.parse(testSong(TEST_SONG).toFile(), null);
+        Song b = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null);
+        WatchingView view = new WatchingView();
+        Player player = new Player(view, format -> new SlowDevice());
+        try {
+            player.enqueue(a);
+            player.enqueue(b);
+            player.play(0);
+            assertTrue(view.await(() -> !view.heard.isEmpty(), 5));
+            player.seek((int) a.getMsLength() - 2000);
+            assertTrue(view.await(() -> view.shown.contains(b), 10));
+            assertEquals(List.of(a), view.heard);      // b was decoded into the same buffer, not started over
+        } finally {
+            player.shutdown();
+        }
+    }
+
+    @Test
+    void streamedNextSongIsChainedWithoutWaitingForItsIndex() throws Exception {
+        Song a = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null);
+        byte[] bytes = Files.readAllBytes(testSong(TEST_SONG));
+        WatchingView view = new WatchingView();
+        Player player = new Player(view, format -> new SlowDevice());
+        try (HttpStub slow = new HttpStub(bytes, 50, 250_000)) {     // Indexing it would take 12 seconds
+            Song b = SongParser.parse(slow.uri("/Treasure.mp3"));
+            player.enqueue(a);
+            player.enqueue(b);
+            player.play(0);
+            assertTrue(view.await(() -> !view.heard.isEmpty(), 5));
+            player.seek((int) a.getMsLength() - 2000);
+            assertTrue(view.await(() -> view.shown.contains(b), 6));
+            assertFalse(FrameIndex.of(b).isDone());
+            assertTrue(player.status().contains("song=Treasure"), player.status());
+        } finally {
+            player.shutdown();
+        }
+    }
+
+    @Test
+    void chainingOntoSlowStreamsDoesNotHoldTheSharedDecoderThread() throws Exception {
+        int chaining = 4;
+        Song a = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - When I Was Your Man.mp3").toFile(), null);
+        Song local = SongParser.parse(testSong("/Músicas Para Teste/Bruno Mars - Talking To The Moon.mp3").toFile(), null);
+        byte[] bytes = Files.readAllBytes(testSong(TEST_SONG));
+        PlaybackRuntime runtime = new PlaybackRuntime(1, new PcmCache(0, 0, null));
+        CountDownLatch heard = new CountDownLatch(chaining + 1);
+        CountDownLatch chained = new CountDownLatch(chaining);
+        try (HttpStub slow = new HttpStub(bytes, 50, 250_000)) {     // Indexing it would take 12 seconds
+            Song b = SongParser.parse(slow.uri("/Treasure.mp3"));
+            PlaybackSession[] zones = new PlaybackSession[chaining + 1];
+            PacedDevice bystander = new PacedDevice();
+            for (int i = 0; i <= chaining; i++) {
+                boolean watched = i == chaining;
+                zones[i] = new PlaybackSession("zone-" + i, new HeadlessView(null) {
+                    @Override
+                    public void showSong(Song song) {
+                        if (song == b) chained.countDown();
+                    }
+
+                    @Override
+                    public void audioStarted(Song song, long latencyNanos) {
+                        heard.countDown();
+                    }
+                }, format -> watched ? bystander : new PacedDevice(), runtime);
+                zones[i].enqueue(watched ? local : a);
+                if (!watched) zones[i].enqueue(b);
+                zones[i].play(0);
+            }
+            assertTrue(heard.await(10, TimeUnit.SECONDS));
+            Thread.sleep(500);
+            int underruns = bystander.underruns;
+            long samples = bystander.samples;
+            long start = System.nanoTime();
+            for (int i = 0; i < chaining; i++) zones[i].seek((int) a.getMsLength() - 1500);
+
+            assertTrue(chained.await(6, TimeUnit.SECONDS), chained.getCount() + " sessions never chained");
+            double played = (bystander.samples - samples) / (44_100.0 * 2);
+            double wall = (System.nanoTime() - start) / 1e9;
+            assertFalse(FrameIndex.of(b).isDone());
+            assertTrue(played > wall / 2, String.format("bystander played %.1f s in %.1f s", played, wall));
+            assertTrue(bystander.underruns - underruns <= 2, bystander.underruns - underruns + " underruns");
+            for (PlaybackSession zone : zones) zone.shutdown();
+        } finally {
+            runtime.shutdown();
+        }
+    }
+
+    /**
+     * HTTP server on the loopback interface serving one file with range requests, answering every request after a
+     * fixed latency and sending at a fixed bandwidth. Keeps the Range header of every GET.
+     */
+    private static final class HttpStub implements AutoCloseable {
+        final HttpServer server;
+        final List<String> ranges = new CopyOnWriteArrayList<>();
+
+        /**
+         * @param latencyMs      delay before each answer.
+         * @param bytesPerSecond bandwidth of each answer, or 0 for no limit.
+         */
+        HttpStub(byte[] content, long latencyMs, int bytesPerSecond) throws Exception {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.createContext("/", exchange -> {
+                try {
+                    LockSupport.parkNanos(latencyMs * 1_000_000);
+                    exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                    if (exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.getResponseHeaders().set("Content-Length", String.valueOf(content.length));
+                        exchange.sendResponseHeaders(200, -1);
+                        return;
+                    }
+                    String range = exchange.getRequestHeaders().getFirst("Range");
+                    ranges.add(String.valueOf(range));
+                    int from = 0;
+                    int to = content.length - 1;
+                    if (range != null && range.startsWith("bytes=")) {
+                        String[] bounds = range.substring(6).split("-", 2);
+                        from = Integer.parseInt(bounds[0]);
+                        if (!bounds[1].isEmpty()) to = Math.min(to, Integer.parseInt(bounds[1]));
+                        if (from >= content.length) {
+                            exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                            exchange.sendResponseHeaders(416, -1);
+                            return;
+                        }
+                        exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+                        exchange.sendResponseHeaders(206, to - from + 1);
+                    } else {
+                        exchange.sendResponseHeaders(200, content.length);
+                    }
+                    OutputStream body = exchange.getResponseBody();
+                    for (int at = from; at <= to; at += 4096) {
+                        int length = Math.min(4096, to + 1 - at);
+                        body.write(content, at, length);
+                        body.flush();
+                        if (bytesPerSecond > 0) LockSupport.parkNanos(length * 1_000_000_000L / bytesPerSecond);
+                    }
+                } catch (IOException e) {
+                    // The client closed the connection, after a seek or when the track was closed.
+                } finally {
+                    exchange.close();
+                }
+            });
+            server.start();
+        }
+
+        URI uri(String path) {
+            return URI.create("http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + path);
+        }
 
-}
\ No newline at end of file
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+}